@@ -1,5 +1,7 @@
 package edu.gla.kail.ad.agents;
 
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.rpc.ApiCallContext;
 import com.google.cloud.Tuple;
 import com.google.cloud.dialogflow.v2beta1.AudioEncoding;
 import com.google.cloud.dialogflow.v2beta1.Context;
@@ -26,12 +28,16 @@ import edu.gla.kail.ad.core.Log.ResponseLog;
 import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
 import edu.gla.kail.ad.core.Log.Slot;
 import edu.gla.kail.ad.core.Log.SystemAct;
+import io.grpc.Deadline;
 import io.grpc.stub.StreamObserver;
+import org.threeten.bp.Duration;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static edu.gla.kail.ad.agents.DialogflowAgentAuthorizationSingleton
@@ -144,19 +150,25 @@ public class DialogflowAgent implements AgentInterface {
      *
      * @param inputInteraction - A data structure (implemented in log.proto) holding the
      *         incoming interaction that is being sent to an agent.
+     * @param deadline - The deadline after which the Dialogflow call is cancelled, or null.
      * @return queryInput - A data structure which holds the query that needs to be send to
      *         Dialogflow.
      */
-    private DetectIntentResponse detectIntentResponseMethod(InputInteraction inputInteraction) {
+    private DetectIntentResponse detectIntentResponseMethod(InputInteraction inputInteraction,
+                                                            @Nullable Deadline deadline) {
         validateInputInteraction(inputInteraction);
         // Get a response from a Dialogflow agent for a particular request (inputInteraction type).
+        DetectIntentRequest detectIntentRequest;
         switch (inputInteraction.getType()) {
             case TEXT:
                 TextInput.Builder textInput = TextInput.newBuilder().setText(inputInteraction
                         .getText())
                         .setLanguageCode(inputInteraction.getLanguageCode());
-                return _sessionsClient.detectIntent(_session, QueryInput.newBuilder().setText
-                        (textInput).build());
+                detectIntentRequest = DetectIntentRequest.newBuilder()
+                        .setSession(_session.toString())
+                        .setQueryInput(QueryInput.newBuilder().setText(textInput).build())
+                        .build();
+                break;
             case AUDIO:
                 // AudioEncoding and sampleRateHertz hardcoded for simplicity, prone to changes.
                 AudioEncoding audioEncoding = AudioEncoding.AUDIO_ENCODING_LINEAR_16;
@@ -167,12 +179,13 @@ public class DialogflowAgent implements AgentInterface {
                         .setSampleRateHertz(sampleRateHertz)
                         .build();
                 byte[] inputAudio = inputInteraction.getAudioBytes().getBytes();
-                return _sessionsClient.detectIntent(DetectIntentRequest.newBuilder()
+                detectIntentRequest = DetectIntentRequest.newBuilder()
                         .setSession(_session.toString())
                         .setQueryInput(QueryInput.newBuilder().setAudioConfig(inputAudioConfig)
                                 .build())
                         .setInputAudio(ByteString.copyFrom(inputAudio))
-                        .build());
+                        .build();
+                break;
             case ACTION:
 //                EventInput eventInput = EventInput.newBuilder()
 //                        .setLanguageCode(inputInteraction.getLanguageCode())
@@ -187,6 +200,13 @@ public class DialogflowAgent implements AgentInterface {
             default:
                 throw new IllegalArgumentException("Unrecognised interaction type.");
         }
+        // The Dialogflow call is cancelled once the response is not waited for anymore.
+        ApiCallContext callContext = null;
+        if (deadline != null) {
+            callContext = GrpcCallContext.createDefault().withTimeout(Duration.ofMillis(Math.max
+                    (1, deadline.timeRemaining(TimeUnit.MILLISECONDS))));
+        }
+        return _sessionsClient.detectIntentCallable().call(detectIntentRequest, callContext);
     }
 
     /**
@@ -198,8 +218,21 @@ public class DialogflowAgent implements AgentInterface {
     @Override
     public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest) throws
             IllegalArgumentException {
+        return getResponseFromAgent(interactionRequest, null);
+    }
+
+    /**
+     * Send the request to the particular agent, using Dialogflow API. The Dialogflow call times
+     * out at the deadline.
+     *
+     * @throws IllegalArgumentException - The exception is being thrown when the type of the
+     *         interaction requested is not recognised or supported.
+     */
+    @Override
+    public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest, @Nullable
+            Deadline deadline) throws IllegalArgumentException {
         DetectIntentResponse response = detectIntentResponseMethod(interactionRequest
-                .getInteraction());
+                .getInteraction(), deadline);
         QueryResult queryResult = response.getQueryResult();
         Timestamp timestamp = Timestamp.newBuilder()
                 .setSeconds(Instant.now()
@@ -0,0 +1,403 @@
+package edu.gla.kail.ad.agents;
+
+import edu.gla.kail.ad.CoreConfiguration.CoreConfig;
+import edu.gla.kail.ad.CoreConfiguration.HttpTransportConfig;
+import edu.gla.kail.ad.core.PropertiesSingleton;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP client shared by the agents calling REST APIs (see HttpTransportConfig).
+ * The connections to each endpoint are pooled and kept alive between the requests. The requests
+ * are asynchronous: a few I/O threads handle all the connections, and the returned future is
+ * completed once the response has been received, so no thread waits for the remote server.
+ * A request which has failed, timed out or been cancelled closes its connection, so a late
+ * response is never read by the next request.
+ */
+public final class HttpTransportSingleton {
+    private static final Logger logger = LoggerFactory.getLogger(HttpTransportSingleton.class);
+
+    private static final int _DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 16;
+    private static final int _DEFAULT_MAX_PENDING_REQUESTS_PER_ENDPOINT = 1000;
+    private static final int _DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int _DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+    private static final int _DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    private static final int _DEFAULT_MAX_RESPONSE_BYTES = 16 << 20;
+    private static final int _DEFAULT_IO_THREADS = 2;
+    // The request being sent on a connection taken from the pool.
+    private static final AttributeKey<PendingRequest> _PENDING_REQUEST = AttributeKey.valueOf
+            ("pendingRequest");
+
+    private static HttpTransportSingleton _instance;
+
+    private final EventLoopGroup _eventLoopGroup;
+    private final SslContext _sslContext;
+    private final Map<Endpoint, FixedChannelPool> _pools = new ConcurrentHashMap<>();
+    private final int _maxConnectionsPerEndpoint;
+    private final int _maxPendingRequestsPerEndpoint;
+    private final int _connectTimeoutMillis;
+    private final int _requestTimeoutMillis;
+    private final int _idleTimeoutSeconds;
+    private final int _maxResponseBytes;
+    private final AtomicInteger _requestsInFlight = new AtomicInteger(0);
+
+    private HttpTransportSingleton(HttpTransportConfig config) throws SSLException {
+        _maxConnectionsPerEndpoint = config.getMaxConnectionsPerEndpoint() > 0 ? config
+                .getMaxConnectionsPerEndpoint() : _DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT;
+        _maxPendingRequestsPerEndpoint = config.getMaxPendingRequestsPerEndpoint() > 0 ? config
+                .getMaxPendingRequestsPerEndpoint() : _DEFAULT_MAX_PENDING_REQUESTS_PER_ENDPOINT;
+        _connectTimeoutMillis = config.getConnectTimeoutMillis() > 0 ? config
+                .getConnectTimeoutMillis() : _DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        _requestTimeoutMillis = config.getRequestTimeoutMillis() > 0 ? config
+                .getRequestTimeoutMillis() : _DEFAULT_REQUEST_TIMEOUT_MILLIS;
+        _idleTimeoutSeconds = config.getIdleTimeoutSeconds() > 0 ? config
+                .getIdleTimeoutSeconds() : _DEFAULT_IDLE_TIMEOUT_SECONDS;
+        _maxResponseBytes = config.getMaxResponseBytes() > 0 ? config.getMaxResponseBytes() :
+                _DEFAULT_MAX_RESPONSE_BYTES;
+        _sslContext = SslContextBuilder.forClient().build();
+        _eventLoopGroup = new NioEventLoopGroup(config.getIoThreads() > 0 ? config
+                .getIoThreads() : _DEFAULT_IO_THREADS, new DefaultThreadFactory("http-transport",
+                true));
+    }
+
+    /**
+     * Get instance of this class.
+     *
+     * @return HttpTransportSingleton - The transport set up with the HttpTransportConfig of the
+     *         core configuration.
+     * @throws IOException - Thrown when the TLS support cannot be set up.
+     */
+    public static synchronized HttpTransportSingleton getHttpTransportSingleton() throws
+            IOException {
+        if (_instance == null) {
+            CoreConfig coreConfig = PropertiesSingleton.getCoreConfig();
+            _instance = new HttpTransportSingleton(coreConfig == null ? HttpTransportConfig
+                    .getDefaultInstance() : coreConfig.getHttpTransport());
+        }
+        return _instance;
+    }
+
+    /**
+     * The response to a request.
+     */
+    public static final class Response {
+        private final int _statusCode;
+        private final String _reasonPhrase;
+        private final byte[] _body;
+
+        private Response(int statusCode, String reasonPhrase, byte[] body) {
+            _statusCode = statusCode;
+            _reasonPhrase = reasonPhrase;
+            _body = body;
+        }
+
+        public int getStatusCode() {
+            return _statusCode;
+        }
+
+        public String getReasonPhrase() {
+            return _reasonPhrase;
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+
+        public String getBodyAsString() {
+            return new String(_body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The scheme, host and port the connections are opened to, with the connect timeout.
+     */
+    private static final class Endpoint {
+        private final boolean _https;
+        private final String _host;
+        private final int _port;
+        private final int _connectTimeoutMillis;
+
+        private Endpoint(URL url, int connectTimeoutMillis) {
+            _https = "https".equalsIgnoreCase(url.getProtocol());
+            if (!_https && !"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new IllegalArgumentException("Unsupported protocol of the URL " + url);
+            }
+            _host = url.getHost();
+            _port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            _connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+        private String getHostHeader(URL url) {
+            return url.getPort() == -1 ? _host : _host + ":" + _port;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Endpoint)) {
+                return false;
+            }
+            Endpoint endpoint = (Endpoint) other;
+            return _https == endpoint._https && _host.equals(endpoint._host) && _port ==
+                    endpoint._port && _connectTimeoutMillis == endpoint._connectTimeoutMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(_https, _host, _port, _connectTimeoutMillis);
+        }
+
+        @Override
+        public String toString() {
+            return (_https ? "https://" : "http://") + _host + ":" + _port;
+        }
+    }
+
+    /**
+     * A request holding a connection of the pool. The connection is given back to the pool once
+     * the response future has completed: kept open after a successful response, closed
+     * otherwise.
+     */
+    private static final class PendingRequest {
+        private final CompletableFuture<Response> _responseFuture;
+        private final FixedChannelPool _pool;
+        private final Channel _channel;
+        private final AtomicBoolean _released = new AtomicBoolean(false);
+        private volatile boolean _keepAlive = false;
+
+        private PendingRequest(CompletableFuture<Response> responseFuture, FixedChannelPool pool,
+                               Channel channel) {
+            _responseFuture = responseFuture;
+            _pool = pool;
+            _channel = channel;
+        }
+
+        private void release() {
+            if (!_released.compareAndSet(false, true)) {
+                return;
+            }
+            _channel.attr(_PENDING_REQUEST).set(null);
+            if (!_keepAlive || _responseFuture.isCompletedExceptionally()) {
+                _channel.close();
+            }
+            _pool.release(_channel);
+        }
+    }
+
+    /**
+     * Send the request.
+     *
+     * @param method - The HTTP method, e.g. POST.
+     * @param url - The URL of the request, http or https.
+     * @param headers - The headers of the request.
+     * @param body - The body of the request, empty for none.
+     * @param connectTimeoutMillis - The time for opening a connection, or 0 for the default.
+     * @param timeoutMillis - The time budget of the whole request, including waiting for a free
+     *         connection, or 0 for the default.
+     * @return CompletableFuture<Response> - Completed with the response, whatever its status
+     *         code, or completed exceptionally with TimeoutException or IOException. Cancelling
+     *         the future abandons the request.
+     */
+    public CompletableFuture<Response> send(String method, URL url, Map<String, String> headers,
+                                            byte[] body, int connectTimeoutMillis,
+                                            long timeoutMillis) {
+        CompletableFuture<Response> responseFuture = new CompletableFuture<>();
+        Endpoint endpoint = new Endpoint(url, connectTimeoutMillis > 0 ? connectTimeoutMillis :
+                _connectTimeoutMillis);
+        FixedChannelPool pool = _pools.computeIfAbsent(endpoint, this::createPool);
+        long requestTimeoutMillis = timeoutMillis > 0 ? timeoutMillis : _requestTimeoutMillis;
+
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod
+                .valueOf(method), path, Unpooled.wrappedBuffer(body));
+        request.headers()
+                .set(HttpHeaderNames.HOST, endpoint.getHostHeader(url))
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                .set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP_DEFLATE)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        headers.forEach((name, value) -> request.headers().set(name, value));
+
+        _requestsInFlight.incrementAndGet();
+        ScheduledFuture<?> timeout = _eventLoopGroup.schedule(() -> responseFuture
+                .completeExceptionally(new TimeoutException("The request to " + endpoint + " " +
+                        "didn't complete within " + requestTimeoutMillis + " milliseconds.")),
+                requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        responseFuture.whenComplete((response, throwable) -> {
+            _requestsInFlight.decrementAndGet();
+            timeout.cancel(false);
+        });
+
+        pool.acquire().addListener((io.netty.util.concurrent.Future<Channel> acquired) -> {
+            if (!acquired.isSuccess()) {
+                request.release();
+                responseFuture.completeExceptionally(new IOException("Unable to connect to " +
+                        endpoint + ": " + acquired.cause().getMessage(), acquired.cause()));
+                return;
+            }
+            Channel channel = acquired.getNow();
+            if (responseFuture.isDone()) {
+                // Timed out or cancelled while waiting for the connection.
+                request.release();
+                pool.release(channel);
+                return;
+            }
+            PendingRequest pendingRequest = new PendingRequest(responseFuture, pool, channel);
+            channel.attr(_PENDING_REQUEST).set(pendingRequest);
+            responseFuture.whenComplete((response, throwable) -> pendingRequest.release());
+            channel.writeAndFlush(request).addListener(written -> {
+                if (!written.isSuccess()) {
+                    responseFuture.completeExceptionally(new IOException("Unable to send the " +
+                            "request to " + endpoint + ": " + written.cause().getMessage(),
+                            written.cause()));
+                }
+            });
+        });
+        return responseFuture;
+    }
+
+    private FixedChannelPool createPool(Endpoint endpoint) {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(_eventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, endpoint._connectTimeoutMillis)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .remoteAddress(InetSocketAddress.createUnresolved(endpoint._host, endpoint
+                        ._port));
+        return new FixedChannelPool(bootstrap, new AbstractChannelPoolHandler() {
+            @Override
+            public void channelCreated(Channel channel) {
+                ChannelPipeline pipeline = channel.pipeline();
+                if (endpoint._https) {
+                    pipeline.addLast(_sslContext.newHandler(channel.alloc(), endpoint._host,
+                            endpoint._port));
+                }
+                pipeline.addLast(new HttpClientCodec())
+                        .addLast(new HttpContentDecompressor())
+                        .addLast(new HttpObjectAggregator(_maxResponseBytes))
+                        .addLast(new IdleStateHandler(0, 0, _idleTimeoutSeconds))
+                        .addLast(new ResponseHandler());
+            }
+        }, ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL,
+                _requestTimeoutMillis, _maxConnectionsPerEndpoint,
+                _maxPendingRequestsPerEndpoint, true, true);
+    }
+
+    /**
+     * Completes the pending request of the connection with the response or the failure.
+     */
+    private static final class ResponseHandler extends SimpleChannelInboundHandler
+            <FullHttpResponse> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext context, FullHttpResponse response) {
+            PendingRequest pendingRequest = context.channel().attr(_PENDING_REQUEST).get();
+            if (pendingRequest == null) {
+                // A response nobody waits for: the connection cannot be reused.
+                context.close();
+                return;
+            }
+            pendingRequest._keepAlive = HttpUtil.isKeepAlive(response);
+            pendingRequest._responseFuture.complete(new Response(response.status().code(),
+                    response.status().reasonPhrase(), ByteBufUtil.getBytes(response.content())));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+            fail(context, new IOException(cause.getMessage(), cause));
+            context.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext context) throws Exception {
+            fail(context, new IOException("The connection has been closed by the server."));
+            super.channelInactive(context);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext context, Object event) throws
+                Exception {
+            if (event instanceof IdleStateEvent && context.channel().attr(_PENDING_REQUEST)
+                    .get() == null) {
+                // Close the unused connection, the pool discards it on the next acquire.
+                context.close();
+                return;
+            }
+            super.userEventTriggered(context, event);
+        }
+
+        private void fail(ChannelHandlerContext context, Exception exception) {
+            PendingRequest pendingRequest = context.channel().attr(_PENDING_REQUEST).get();
+            if (pendingRequest != null) {
+                pendingRequest._responseFuture.completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * Return the number of requests which haven't completed yet.
+     */
+    public int getRequestsInFlight() {
+        return _requestsInFlight.get();
+    }
+
+    /**
+     * Close the connections and stop the I/O threads.
+     */
+    public static synchronized void shutDown() {
+        if (_instance == null) {
+            return;
+        }
+        for (FixedChannelPool pool : _instance._pools.values()) {
+            pool.close();
+        }
+        _instance._pools.clear();
+        _instance._eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        _instance = null;
+        logger.info("The HTTP transport has been shut down.");
+    }
+}
@@ -1,22 +1,26 @@
 package edu.gla.kail.ad.agents;
 
-import java.io.BufferedReader;
+import javax.annotation.Nullable;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.google.api.core.SettableApiFuture;
 import com.google.gson.JsonObject;
 import com.google.protobuf.Struct;
 import com.google.protobuf.Timestamp;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Value;
 import com.google.protobuf.util.JsonFormat;
 
@@ -35,6 +39,7 @@ import edu.gla.kail.ad.core.AgentInterface;
 import edu.gla.kail.ad.core.Log.ResponseLog;
 import edu.gla.kail.ad.core.Log.SystemAct;
 import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
+import io.grpc.Deadline;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
@@ -82,81 +87,128 @@ public class ModelInteractionAgent implements AgentInterface {
 
     @Override
     public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest) throws Exception {
+        return getResponseFromAgent(interactionRequest, null);
+    }
+
+    /**
+     * Call the API and wait for the response; the request times out at the deadline.
+     */
+    @Override
+    public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest,
+                                            @Nullable Deadline deadline) throws Exception {
+        try {
+            return getResponseFromAgentAsync(interactionRequest, deadline).get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof Exception) {
+                throw (Exception) exception.getCause();
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Call the API through the shared HttpTransportSingleton, without holding a thread while
+     * waiting for the response. The request times out at the deadline, or earlier if the
+     * timeout_millis of the model is shorter.
+     */
+    @Override
+    public CompletableFuture<ResponseLog> getResponseFromAgentAsync(InteractionRequest
+                                                                            interactionRequest,
+                                                                    @Nullable Deadline deadline) {
+        CompletableFuture<ResponseLog> failedFuture = new CompletableFuture<>();
         // We need to perform a call based on the request specified.
         // The function handles any type of specific call. The only three parameters
         // that must be specified as agentRequestParameters are:
-        // 1) model_name: which specifies which model should be called. The name is 
+        // 1) model_name: which specifies which model should be called. The name is
         //                  specific to the one that we specified in model_api_config.json
-        // 2) api_endpoint: The api endpoint that we want to call 
+        // 2) api_endpoint: The api endpoint that we want to call
         // 3) request_body: the specific request body that need to be passed to the api
 
         Map<String, Value> fieldsMap = interactionRequest.getAgentRequestParameters().getFieldsMap();
-        String result = "";
         // Get request type
         String request_type = "POST";
         if(fieldsMap.containsKey("request_type")){
             request_type = fieldsMap.get("request_type").getStringValue();
         }
         // If these two parameters are not specified we return an error
-        if (fieldsMap.containsKey("model_name") && fieldsMap.containsKey("api_endpoint") && fieldsMap.containsKey("request_body")) {
-            try {
-                // Get the model name 
-                String modelName = fieldsMap.get("model_name").getStringValue();
-                String apiEndpoint = fieldsMap.get("api_endpoint").getStringValue();
-                String requestBodyString = JsonFormat.printer().preservingProtoFieldNames()
-                        .print(fieldsMap.get("request_body").getStructValue());
-
-                // Check that none of the fields is empty and that the model is actually specified in the config file 
-                if(modelName.isEmpty() || 
-                apiEndpoint.isEmpty() || 
-                requestBodyString.isEmpty() || 
-                !_supportedAPiEndpoints.has(modelName)) throw  new Exception("Invalid config file format");
-
-
-                JSONObject modelConfig = _supportedAPiEndpoints.getJSONObject(modelName);
-
-                // Construct the url where to perform the request
-                URL url = new URL(modelConfig.getString("root_url")
-                        + modelConfig.getJSONObject("api_endpoints").getString(apiEndpoint));
-
-                // Start the connection 
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod(request_type);
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setRequestProperty("Accept", "application/json");
-                conn.setDoOutput(true);
-
-                JSONObject requestBody = new JSONObject(requestBodyString);
-                OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-                wr.write(requestBody.toString());
-                wr.flush();
-
-                // If the response is not successful we raise an error
-                if (conn.getResponseCode() != 200) {
-                    throw new Exception("Failed : HTTP error code : " + conn.getResponseCode());
+        if (!(fieldsMap.containsKey("model_name") && fieldsMap.containsKey("api_endpoint") && fieldsMap.containsKey("request_body"))) {
+            failedFuture.completeExceptionally(new Exception("Model name, api endpoint or request body not specified."));
+            return failedFuture;
+        }
+        try {
+            // Get the model name
+            String modelName = fieldsMap.get("model_name").getStringValue();
+            String apiEndpoint = fieldsMap.get("api_endpoint").getStringValue();
+            String requestBodyString = JsonFormat.printer().preservingProtoFieldNames()
+                    .print(fieldsMap.get("request_body").getStructValue());
+
+            // Check that none of the fields is empty and that the model is actually specified in the config file
+            if(modelName.isEmpty() ||
+            apiEndpoint.isEmpty() ||
+            requestBodyString.isEmpty() ||
+            !_supportedAPiEndpoints.has(modelName)) throw  new Exception("Invalid config file format");
+
+            JSONObject modelConfig = _supportedAPiEndpoints.getJSONObject(modelName);
+
+            // Construct the url where to perform the request
+            URL url = new URL(modelConfig.getString("root_url")
+                    + modelConfig.getJSONObject("api_endpoints").getString(apiEndpoint));
+
+            // The timeouts of the endpoint, 0 for the defaults of the transport.
+            long timeoutMillis = modelConfig.optLong("timeout_millis", 0);
+            if (deadline != null) {
+                if (deadline.isExpired()) {
+                    throw new TimeoutException("The deadline of the call has expired.");
                 }
-
-                // We need now to parse the returned message from the API
-                BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
-
-                result = br.lines().collect(Collectors.joining());
-
-                conn.disconnect();
-
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-                throw new Exception("Malformed API URL:" + e.getMessage());
-
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new Exception("IOException:" + e.getMessage());
-
+                // Give up on the request once the response is not waited for anymore.
+                long remainingMillis = Math.max(1, deadline.timeRemaining(TimeUnit.MILLISECONDS));
+                timeoutMillis = timeoutMillis > 0 ? Math.min(timeoutMillis, remainingMillis) :
+                        remainingMillis;
             }
 
-        } else {
-            throw new Exception("Model name, api endpoint or request body not specified.");
+            JSONObject requestBody = new JSONObject(requestBodyString);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "application/json");
+            headers.put("Accept", "application/json");
+            CompletableFuture<HttpTransportSingleton.Response> sendFuture =
+                    HttpTransportSingleton.getHttpTransportSingleton().send(request_type, url,
+                            headers, requestBody.toString().getBytes(StandardCharsets.UTF_8),
+                            modelConfig.optInt("connect_timeout_millis", 0), timeoutMillis);
+            CompletableFuture<ResponseLog> responseFuture = sendFuture.thenApply(response -> {
+                // If the response is not successful we raise an error
+                if (response.getStatusCode() != 200) {
+                    throw new CompletionException(new Exception("Failed : HTTP error code : " +
+                            response.getStatusCode() + " " + response.getReasonPhrase() +
+                            " from " + url));
+                }
+                try {
+                    return buildResponseLog(response.getBodyAsString());
+                } catch (InvalidProtocolBufferException e) {
+                    throw new CompletionException(e);
+                }
+            });
+            // Cancelling the response abandons the request, which frees its connection.
+            responseFuture.whenComplete((responseLog, throwable) -> {
+                if (responseFuture.isCancelled()) {
+                    sendFuture.cancel(true);
+                }
+            });
+            return responseFuture;
+
+        } catch (MalformedURLException e) {
+            failedFuture.completeExceptionally(new Exception("Malformed API URL:" + e.getMessage()));
+        } catch (IOException e) {
+            failedFuture.completeExceptionally(new Exception("IOException:" + e.getMessage()));
+        } catch (Exception e) {
+            failedFuture.completeExceptionally(e);
         }
+        return failedFuture;
+    }
 
+    /**
+     * Return the ResponseLog holding the result returned by the API.
+     */
+    private ResponseLog buildResponseLog(String result) throws InvalidProtocolBufferException {
         Struct.Builder builder = Struct.newBuilder();
         JsonFormat.parser().merge(result, builder);
 
@@ -166,7 +218,6 @@ public class ModelInteractionAgent implements AgentInterface {
                 .setRawResponse(result).addAction(SystemAct.newBuilder().setInteraction(OutputInteraction.newBuilder()
                         .setType(InteractionType.TEXT).setText(result).setUnstructuredResult(builder).build()))
                 .build();
-
     }
 
     @Override
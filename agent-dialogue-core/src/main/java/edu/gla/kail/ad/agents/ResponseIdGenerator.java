@@ -87,6 +87,23 @@ public class ResponseIdGenerator {
     return id.toString();
   }
 
+  /**
+   * Return the smallest identifier generated at the given time: the 8 timestamp characters of the
+   * identifier, without the random part. All the identifiers generated at that time or later
+   * sort after it.
+   *
+   * @param timeMillis - The time in milliseconds since the epoch.
+   * @return the 8-character prefix of the identifiers generated at that time
+   */
+  public static String generateLowerBound(long timeMillis) {
+    char[] timeStampChars = new char[8];
+    for (int i = 7; i >= 0; i--) {
+      timeStampChars[i] = PUSH_CHARS.charAt((int)(timeMillis % 64));
+      timeMillis = timeMillis / 64;
+    }
+    return new String(timeStampChars);
+  }
+
   /**
    * Generate a base-64 encoded string that is a GUID for the response identifier.
    * Consider a response identifier that includes time + randomness, similar to Firestore: 48 bits of timestamp +
@@ -19,14 +19,18 @@ import edu.gla.kail.ad.core.AgentInterface;
 import edu.gla.kail.ad.core.Log.ResponseLog;
 import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
 import edu.gla.kail.ad.core.Log.SystemAct;
+import io.grpc.Deadline;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.net.URL;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
@@ -58,13 +62,23 @@ public class WizardAgent implements AgentInterface {
   // Gold the hardcoded agent ID.
   private String _agentId = null;
 
+  // Shares one Firestore listener between all the streams of a conversation.
+  private final WizardConversationListenerHub _listenerHub =
+          new WizardConversationListenerHub(this::getDbCollection);
+
+  // The conversation IDs of the open streams of each session, by session ID. The streams are
+  // unsubscribed and completed when their session is closed.
+  private final Map<String, Map<StreamObserver<Client.InteractionResponse>, String>>
+          _sessionStreams = new ConcurrentHashMap<>();
+
   /**
-   * Construct a new WizardAgent.
+   * Construct a new WizardAgent. The agent holds no session state, so one instance is shared
+   * by all the sessions.
    *
-   * @param sessionId
+   * @param agent
    * @throws Exception
    */
-  public WizardAgent(String sessionId, AgentConfig agent) throws Exception {
+  public WizardAgent(AgentConfig agent) throws Exception {
     _agent = agent;
     _projectId = _agent.getProjectId();
     _agentId = _agent.getProjectId();
@@ -119,6 +133,19 @@ public class WizardAgent implements AgentInterface {
 
   @Override
   public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest) throws Exception {
+    return getResponseFromAgent(interactionRequest, null);
+  }
+
+  /**
+   * Add the message to the conversation, unless the deadline has already expired, in which case
+   * the write to Firestore is skipped.
+   */
+  @Override
+  public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest,
+                                          @Nullable Deadline deadline) throws Exception {
+    if (deadline != null && deadline.isExpired()) {
+      throw new TimeoutException("The deadline of the call has expired.");
+    }
     String responseId = ResponseIdGenerator.generate();
     if (userExit(interactionRequest)) {
       Map<String, Object> data = new HashMap<>();
@@ -131,7 +158,26 @@ public class WizardAgent implements AgentInterface {
   @Override
   public void streamingResponseFromAgent(InteractionRequest interactionRequest, StreamObserver<Client.InteractionResponse> observer)
           throws Exception {
+    subscribe(interactionRequest, observer, null);
+  }
 
+  @Override
+  public void streamingResponseFromAgent(String sessionId, InteractionRequest interactionRequest,
+                                         StreamObserver<Client.InteractionResponse> observer)
+          throws Exception {
+    subscribe(interactionRequest, observer, sessionId);
+  }
+
+  /**
+   * Subscribe the stream to the messages of the conversation chosen by the request.
+   *
+   * @param interactionRequest
+   * @param observer
+   * @param sessionId - The session the stream is tracked for, or null.
+   */
+  private void subscribe(InteractionRequest interactionRequest,
+                         StreamObserver<Client.InteractionResponse> observer,
+                         @Nullable String sessionId) {
     // Get the conversation id from the request parameters.
     Map<String, Value> fieldsMap = interactionRequest.getAgentRequestParameters().getFieldsMap();
     if (!fieldsMap.containsKey("conversationId")) {
@@ -139,15 +185,63 @@ public class WizardAgent implements AgentInterface {
     }
     String conversationId = fieldsMap.get("conversationId").getStringValue();
     Client.ClientId clientId = interactionRequest.getClientId();
+    // The resume cursor: only the messages after it are sent.
+    String lastResponseId = fieldsMap.containsKey("lastResponseId") ?
+            fieldsMap.get("lastResponseId").getStringValue() : null;
+
+    Map<StreamObserver<Client.InteractionResponse>, String> sessionStreams = sessionId == null ?
+            null : _sessionStreams.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>());
+    // The stream is forgotten by its session however it is unsubscribed: cancelled by the client,
+    // closed by the flow control of the server, or failed while sending.
+    Runnable onUnsubscribed = null;
+    if (sessionStreams != null) {
+      sessionStreams.put(observer, conversationId);
+      onUnsubscribed = () -> sessionStreams.remove(observer);
+    }
+    if (observer instanceof ServerCallStreamObserver) {
+      // Leave the conversation once the client has cancelled the stream.
+      ServerCallStreamObserver<Client.InteractionResponse> serverCallStreamObserver =
+              (ServerCallStreamObserver<Client.InteractionResponse>) observer;
+      serverCallStreamObserver.setOnCancelHandler(() ->
+              _listenerHub.unsubscribe(conversationId, observer));
+      _listenerHub.subscribe(conversationId, observer, lastResponseId, onUnsubscribed);
+      if (serverCallStreamObserver.isCancelled()) {
+        _listenerHub.unsubscribe(conversationId, observer);
+      }
+    } else {
+      _listenerHub.subscribe(conversationId, observer, lastResponseId, onUnsubscribed);
+    }
+  }
 
-    CollectionReference conversationCollection = getDbCollection(conversationId);
+  /**
+   * Unsubscribe the open streams of the session from their conversations and complete them.
+   * The Firestore listener of a conversation is detached once none of the streams listens on it.
+   */
+  @Override
+  public void closeSession(String sessionId) {
+    Map<StreamObserver<Client.InteractionResponse>, String> sessionStreams =
+            _sessionStreams.remove(sessionId);
+    if (sessionStreams == null) {
+      return;
+    }
+    for (Map.Entry<StreamObserver<Client.InteractionResponse>, String> stream :
+            sessionStreams.entrySet()) {
+      _listenerHub.unsubscribe(stream.getValue(), stream.getKey());
+      try {
+        stream.getKey().onCompleted();
+      } catch (RuntimeException exception) {
+        // The stream has already been closed.
+        logger.debug("Unable to complete the stream of the session " + sessionId + ": " +
+                exception.getMessage());
+      }
+    }
+  }
 
-    // Wait for a response after the current time (filter out past messages).
-    Query query = conversationCollection;
-    logger.debug("Waiting on listener: " + query.toString());
-    WizardChatResponseListener wizardChatResponseListener = new WizardChatResponseListener(observer);
-    ListenerRegistration registration = query.addSnapshotListener(wizardChatResponseListener);
-    wizardChatResponseListener.setRegistration(registration);
+  @Override
+  public int getOpenResourceCount(String sessionId) {
+    Map<StreamObserver<Client.InteractionResponse>, String> sessionStreams =
+            _sessionStreams.get(sessionId);
+    return sessionStreams == null ? 0 : sessionStreams.size();
   }
 
 
@@ -1,6 +1,9 @@
 package edu.gla.kail.ad.agents;
 
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.cloud.firestore.*;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.util.Timestamps;
 import edu.gla.kail.ad.Client;
@@ -10,22 +13,106 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+/**
+ * Listens on the messages of one conversation and sends them to all the streams subscribed to
+ * the conversation. There is a single Firestore listener per conversation, managed by
+ * WizardConversationListenerHub: each message is read and converted to an InteractionResponse
+ * once, whatever the number of subscribed streams.
+ *
+ * The messages are ordered by their response_id, which grows with time (see
+ * ResponseIdGenerator). The shared listener only listens on the messages added from shortly
+ * before it was attached. Each stream first catches up with a one-off query of the messages
+ * after its resume cursor (the last response_id it has seen), while the messages coming from the
+ * listener are held back for it. Reconnecting therefore costs the number of new messages, not
+ * the length of the whole conversation.
+ *
+ * The resume cursor only applies while the stream catches up. The live messages are told apart
+ * by their document IDs, not by their response_ids, so a message written late or by a server
+ * with a skewed clock is still sent.
+ */
 public class WizardChatResponseListener implements EventListener<QuerySnapshot> {
 
   private static final Logger logger = LoggerFactory.getLogger(WizardChatResponseListener.class);
 
-  private StreamObserver<Client.InteractionResponse> m_observer;
+  // The messages added this long before the listener was attached are still listened on, in
+  // case the clock of the server writing them is behind.
+  private static final long LIVE_QUERY_MARGIN_MILLIS = 60000;
+
+  private final String m_conversationId;
+
+  // The messages of the conversation, ordered by their response_id.
+  private final Query m_messagesQuery;
+
+  // Notified about the streams which failed, so they are unsubscribed.
+  private final WizardConversationListenerHub m_hub;
+
+  // The streams subscribed to the conversation.
+  private final Map<StreamObserver<Client.InteractionResponse>, Subscription> m_subscriptions =
+          new LinkedHashMap<>();
+
+  // The IDs of the documents of the messages which came from the listener.
+  private final Set<String> m_liveDocumentIds = new HashSet<>();
 
   private ListenerRegistration m_registration;
 
+  /**
+   * A message of the conversation and the ID of its document.
+   */
+  private static class Message {
+    private final String m_documentId;
+    private final Client.InteractionResponse m_interactionResponse;
+
+    private Message(String documentId, Client.InteractionResponse interactionResponse) {
+      m_documentId = documentId;
+      m_interactionResponse = interactionResponse;
+    }
+  }
+
+  /**
+   * The state of a stream subscribed to the conversation.
+   */
+  private static class Subscription {
+    // The response_id of the last message seen by the client before subscribing, or null.
+    private final String m_resumeResponseId;
+    // The messages from the listener held back while the stream is catching up, or null once
+    // the stream has caught up.
+    private List<Message> m_heldBackMessages = new ArrayList<>();
+
+    private Subscription(@Nullable String resumeResponseId) {
+      m_resumeResponseId = resumeResponseId;
+    }
 
-  public WizardChatResponseListener(StreamObserver<Client.InteractionResponse> observer) {
-    m_observer = observer;
+    /**
+     * Return whether the message comes after the resume cursor.
+     */
+    private boolean isAfterResumeCursor(Message message) {
+      return m_resumeResponseId == null || message.m_interactionResponse.getResponseId()
+              .compareTo(m_resumeResponseId) > 0;
+    }
+  }
+
+
+  public WizardChatResponseListener(String conversationId, Query conversationCollection,
+                                    WizardConversationListenerHub hub) {
+    m_conversationId = conversationId;
+    m_messagesQuery = conversationCollection.orderBy("response_id");
+    m_hub = hub;
+  }
+
+  /**
+   * Return the query the shared listener listens on: the messages added from shortly before now.
+   */
+  Query getLiveQuery() {
+    return m_messagesQuery.startAt(ResponseIdGenerator.generateLowerBound(
+            System.currentTimeMillis() - LIVE_QUERY_MARGIN_MILLIS));
   }
 
   @Override
@@ -37,70 +124,216 @@ public class WizardChatResponseListener implements EventListener<QuerySnapshot>
     if (snapshots != null && !snapshots.isEmpty()) {
       List<DocumentChange> documentChanges = snapshots.getDocumentChanges();
       logger.debug("Num document changes:" + documentChanges.size());
+      List<Message> messages = new ArrayList<>();
       for (DocumentChange change : documentChanges) {
-        Log.ResponseLog response;
-        Map<String, Object> changeData = change.getDocument().getData();
+        // The messages are only ever added, the modifications are not sent again.
+        if (change.getType() == DocumentChange.Type.ADDED) {
+          Message message = buildMessage(change.getDocument());
+          if (message != null) {
+            messages.add(message);
+          }
+        }
+      }
+      for (StreamObserver<Client.InteractionResponse> failedObserver : sendToAll(messages)) {
+        m_hub.unsubscribe(m_conversationId, failedObserver);
+      }
+    }
+  }
 
-        // NOTE: This is replaying events from the DB for streaming.  It should copy the correct values from the
-        // change data to the response to mimic the original response correctly.
+  /**
+   * Send the messages which haven't come from the listener before to all the subscribed streams,
+   * or hold them back for the streams catching up.
+   *
+   * @return The streams which failed to receive the messages.
+   */
+  private synchronized List<StreamObserver<Client.InteractionResponse>> sendToAll(
+          List<Message> messages) {
+    List<Message> newMessages = messages.stream()
+            .filter(message -> m_liveDocumentIds.add(message.m_documentId))
+            .collect(Collectors.toList());
+    List<StreamObserver<Client.InteractionResponse>> failedObservers = new ArrayList<>();
+    for (Map.Entry<StreamObserver<Client.InteractionResponse>, Subscription> entry :
+            m_subscriptions.entrySet()) {
+      Subscription subscription = entry.getValue();
+      if (subscription.m_heldBackMessages != null) {
+        subscription.m_heldBackMessages.addAll(newMessages);
+      } else if (!send(entry.getKey(), newMessages)) {
+        failedObservers.add(entry.getKey());
+      }
+    }
+    return failedObservers;
+  }
 
-        // TODO: Factor this out into its own method.
-        Object responseIdString = changeData.get("response_id");
-        String responseId = null;
-        if (responseIdString != null) {
-          responseId = (String) responseIdString;
-        }
-        response = WizardAgent.buildResponse(responseId, changeData);
-
-        // Information about the original change.
-        String userId = null;
-        Object userString = changeData.get("user_id");
-        if (userString != null) {
-          userId = (String) userString;
-        } else {
-          userId = "undefined";
-        }
+  /**
+   * Send the messages to the stream.
+   *
+   * @return false if the stream failed.
+   */
+  private boolean send(StreamObserver<Client.InteractionResponse> observer,
+                       List<Message> messages) {
+    for (Message message : messages) {
+      Client.InteractionResponse interactionResponse = message.m_interactionResponse;
+      try {
+        logger.debug("Sending response: " + interactionResponse.getResponseId());
+        observer.onNext(interactionResponse);
+      } catch (Exception exception) {
+        logger.warn("Unable to send the response " + interactionResponse.getResponseId() + ": " +
+                exception.getMessage());
+        closeWithError(observer, exception);
+        return false;
+      }
+    }
+    return true;
+  }
 
-        Object timestampString = changeData.get("timestamp");
-        Timestamp timestamp = null;
-        try {
-          com.google.cloud.Timestamp cloudTimestamp = (com.google.cloud.Timestamp) timestampString;
-          timestamp = Timestamps.fromNanos(cloudTimestamp.getNanos());
-        } catch (Exception e1) {
-          logger.error("Unable to get timestamp for object. " + timestampString.toString());
-          e1.printStackTrace();
-        }
-        Client.InteractionResponse interactionResponse;
-        try {
-          interactionResponse = Client.InteractionResponse.newBuilder()
-                  .setResponseId(responseId)
-                  .setSessionId("blah")
-                  .setTime(timestamp)
-                  .setUserId(userId)
-                  .setMessageStatus(Client.InteractionResponse.ClientMessageStatus.SUCCESSFUL)
-                  .addAllInteraction(response.getActionList().stream()
-                          .map(action -> action.getInteraction())
-                          .collect(Collectors.toList()))
-                  .build();
-          logger.debug("Sending response: " + interactionResponse.getResponseId());
-          m_observer.onNext(interactionResponse);
-        } catch (Exception exception) {
-          logger.warn("Error processing request :" + exception.getMessage() + " " + exception.getMessage());
-          try {
-            if (m_registration != null) {
-              m_registration.remove();
-            }
-          } catch (Exception e1) {
-            logger.warn("Unable to remove listener:" + e1.getMessage() + " " + e1.getMessage());
+  private void closeWithError(StreamObserver<Client.InteractionResponse> observer,
+                              Throwable throwable) {
+    try {
+      observer.onError(throwable);
+    } catch (Exception e1) {
+      // The stream has already been closed.
+    }
+  }
+
+  /**
+   * Build the message sent to the streams from a message stored in Firestore.
+   *
+   * @return The message, or null if the message couldn't be read.
+   */
+  @Nullable
+  private Message buildMessage(DocumentSnapshot document) {
+    try {
+      Map<String, Object> changeData = document.getData();
+      // NOTE: This is replaying events from the DB for streaming.  It should copy the correct values from the
+      // change data to the response to mimic the original response correctly.
+      Object responseIdString = changeData.get("response_id");
+      String responseId = null;
+      if (responseIdString != null) {
+        responseId = (String) responseIdString;
+      }
+      Log.ResponseLog response = WizardAgent.buildResponse(responseId, changeData);
+
+      // Information about the original change.
+      String userId = null;
+      Object userString = changeData.get("user_id");
+      if (userString != null) {
+        userId = (String) userString;
+      } else {
+        userId = "undefined";
+      }
+
+      Object timestampString = changeData.get("timestamp");
+      Timestamp timestamp = null;
+      try {
+        com.google.cloud.Timestamp cloudTimestamp = (com.google.cloud.Timestamp) timestampString;
+        timestamp = Timestamps.fromNanos(cloudTimestamp.getNanos());
+      } catch (Exception e1) {
+        logger.error("Unable to get timestamp for object. " + timestampString);
+      }
+      return new Message(document.getId(), Client.InteractionResponse.newBuilder()
+              .setResponseId(responseId)
+              .setSessionId("blah")
+              .setTime(timestamp)
+              .setUserId(userId)
+              .setMessageStatus(Client.InteractionResponse.ClientMessageStatus.SUCCESSFUL)
+              .addAllInteraction(response.getActionList().stream()
+                      .map(action -> action.getInteraction())
+                      .collect(Collectors.toList()))
+              .build());
+    } catch (Exception exception) {
+      logger.warn("Error processing message " + document.getId() + " of the conversation " +
+              m_conversationId + ": " + exception.getMessage());
+      return null;
+    }
+  }
 
+  /**
+   * Subscribe the stream to the conversation. The stream is first sent the messages after its
+   * resume cursor, then the messages coming from the listener.
+   *
+   * @param observer
+   * @param lastResponseId - The response_id of the last message seen by the client, or null to
+   *         receive the whole conversation.
+   */
+  synchronized void addObserver(StreamObserver<Client.InteractionResponse> observer,
+                                @Nullable String lastResponseId) {
+    Subscription subscription = new Subscription(lastResponseId);
+    m_subscriptions.put(observer, subscription);
+    Query catchUpQuery = lastResponseId == null ? m_messagesQuery :
+            m_messagesQuery.startAfter(lastResponseId);
+    ApiFutures.addCallback(catchUpQuery.get(), new ApiFutureCallback<QuerySnapshot>() {
+      @Override
+      public void onSuccess(QuerySnapshot snapshot) {
+        List<Message> messages = new ArrayList<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+          Message message = buildMessage(document);
+          if (message != null) {
+            messages.add(message);
           }
-          m_observer.onError(exception);
+        }
+        if (!catchUp(observer, subscription, messages)) {
+          m_hub.unsubscribe(m_conversationId, observer);
         }
       }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        logger.warn("Unable to read the messages of the conversation " + m_conversationId + ": " +
+                throwable.getMessage());
+        closeWithError(observer, throwable);
+        m_hub.unsubscribe(m_conversationId, observer);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Send the stream the messages after its resume cursor, followed by the messages held back
+   * meanwhile which are after the cursor too and which the catch-up query didn't return.
+   *
+   * @return false if the stream failed.
+   */
+  private synchronized boolean catchUp(StreamObserver<Client.InteractionResponse> observer,
+                                       Subscription subscription,
+                                       List<Message> messages) {
+    if (m_subscriptions.get(observer) != subscription) {
+      // The stream has been unsubscribed meanwhile.
+      return true;
     }
+    Set<String> sentDocumentIds = messages.stream()
+            .map(message -> message.m_documentId)
+            .collect(Collectors.toSet());
+    List<Message> heldBackMessages = subscription.m_heldBackMessages.stream()
+            .filter(message -> subscription.isAfterResumeCursor(message) && !sentDocumentIds
+                    .contains(message.m_documentId))
+            .collect(Collectors.toList());
+    subscription.m_heldBackMessages = null;
+    return send(observer, messages) && send(observer, heldBackMessages);
+  }
+
+  /**
+   * Unsubscribe the stream from the conversation.
+   *
+   * @return The number of the streams still subscribed.
+   */
+  synchronized int removeObserver(StreamObserver<Client.InteractionResponse> observer) {
+    m_subscriptions.remove(observer);
+    return m_subscriptions.size();
   }
 
   public void setRegistration(ListenerRegistration registration) {
     m_registration = registration;
   }
+
+  /**
+   * Detach the listener from Firestore.
+   */
+  void remove() {
+    try {
+      if (m_registration != null) {
+        m_registration.remove();
+      }
+    } catch (Exception e1) {
+      logger.warn("Unable to remove listener:" + e1.getMessage());
+    }
+  }
 }
@@ -0,0 +1,115 @@
+package edu.gla.kail.ad.agents;
+
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import edu.gla.kail.ad.Client;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Shares one Firestore snapshot listener between all the streams listening on the same
+ * conversation (e.g. several browser tabs, or a client reconnecting).
+ * The listener is added when the first stream subscribes to the conversation and detached when
+ * the last one unsubscribes.
+ */
+public class WizardConversationListenerHub {
+
+  private static final Logger logger = LoggerFactory.getLogger(WizardConversationListenerHub.class);
+
+  // Return the query listened on for a conversation ID.
+  private final Function<String, Query> m_queryForConversation;
+
+  // The listeners of the conversations with at least one subscribed stream.
+  private final Map<String, WizardChatResponseListener> m_listeners = new HashMap<>();
+
+  // Run once the stream has been unsubscribed, whichever way it was closed.
+  private final Map<StreamObserver<Client.InteractionResponse>, Runnable> m_unsubscribeCallbacks =
+          new HashMap<>();
+
+  public WizardConversationListenerHub(Function<String, Query> queryForConversation) {
+    m_queryForConversation = queryForConversation;
+  }
+
+  /**
+   * Subscribe the stream to the messages of the conversation. The messages after the resume
+   * cursor are sent to the stream first.
+   *
+   * @param conversationId
+   * @param observer
+   * @param lastResponseId - The response_id of the last message seen by the client, or null to
+   *         receive the whole conversation.
+   */
+  public synchronized void subscribe(String conversationId,
+                                     StreamObserver<Client.InteractionResponse> observer,
+                                     @Nullable String lastResponseId) {
+    subscribe(conversationId, observer, lastResponseId, null);
+  }
+
+  /**
+   * Subscribe the stream to the messages of the conversation, and run the callback once the
+   * stream has been unsubscribed: by the caller, or because the stream failed.
+   *
+   * @param conversationId
+   * @param observer
+   * @param lastResponseId - The response_id of the last message seen by the client, or null to
+   *         receive the whole conversation.
+   * @param onUnsubscribed - Run once the stream has been unsubscribed, or null.
+   */
+  public synchronized void subscribe(String conversationId,
+                                     StreamObserver<Client.InteractionResponse> observer,
+                                     @Nullable String lastResponseId,
+                                     @Nullable Runnable onUnsubscribed) {
+    if (onUnsubscribed != null) {
+      m_unsubscribeCallbacks.put(observer, onUnsubscribed);
+    }
+    WizardChatResponseListener listener = m_listeners.get(conversationId);
+    if (listener == null) {
+      listener = new WizardChatResponseListener(conversationId,
+              m_queryForConversation.apply(conversationId), this);
+      Query query = listener.getLiveQuery();
+      logger.debug("Waiting on listener: " + query.toString());
+      ListenerRegistration registration = query.addSnapshotListener(listener);
+      listener.setRegistration(registration);
+      m_listeners.put(conversationId, listener);
+    }
+    listener.addObserver(observer, lastResponseId);
+  }
+
+  /**
+   * Unsubscribe the stream from the conversation, detaching the Firestore listener if it was the
+   * last stream subscribed.
+   *
+   * @param conversationId
+   * @param observer
+   */
+  public synchronized void unsubscribe(String conversationId,
+                                       StreamObserver<Client.InteractionResponse> observer) {
+    WizardChatResponseListener listener = m_listeners.get(conversationId);
+    if (listener != null && listener.removeObserver(observer) == 0) {
+      detach(conversationId, listener);
+    }
+    Runnable onUnsubscribed = m_unsubscribeCallbacks.remove(observer);
+    if (onUnsubscribed != null) {
+      onUnsubscribed.run();
+    }
+  }
+
+  private void detach(String conversationId, WizardChatResponseListener listener) {
+    m_listeners.remove(conversationId);
+    listener.remove();
+    logger.debug("Detached the listener of the conversation " + conversationId);
+  }
+
+  /**
+   * Return the number of the conversations listened on.
+   */
+  public synchronized int getNumberOfListeners() {
+    return m_listeners.size();
+  }
+}
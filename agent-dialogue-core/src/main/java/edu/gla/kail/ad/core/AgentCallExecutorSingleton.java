@@ -0,0 +1,207 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.gla.kail.ad.CoreConfiguration.AgentCallExecutorConfig;
+import edu.gla.kail.ad.CoreConfiguration.AgentCallExecutorConfig.ExecutorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process-wide engine used by all the instances of DialogAgentManager to call the agents.
+ * The number of threads (or, for virtual threads, the number of calls in flight) is bounded by
+ * the AgentCallExecutorConfig of the core configuration file, so the thread usage stays flat as
+ * the number of concurrent sessions grows. Calls exceeding the limit are rejected and counted.
+ */
+public final class AgentCallExecutorSingleton {
+    private static final Logger logger = LoggerFactory.getLogger(AgentCallExecutorSingleton.class);
+
+    private static final int _DEFAULT_MAX_THREADS = 64;
+    private static final int _DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final int _DEFAULT_KEEP_ALIVE_SECONDS = 60;
+
+    private static AgentCallExecutorSingleton _instance;
+    // The executor running the calls to the agents.
+    private final ExecutorService _executorService;
+    // Set only when the executor is a pool of platform threads, used for reading its metrics.
+    private final ThreadPoolExecutor _threadPoolExecutor;
+    // A single thread used only for firing the timeouts of the calls.
+    private final ScheduledThreadPoolExecutor _timeoutScheduler;
+    // The maximum number of calls accepted at the same time (executing and waiting).
+    private final int _maxCallsInFlight;
+    private final AtomicInteger _callsInFlight = new AtomicInteger(0);
+    private final AtomicLong _submittedCalls = new AtomicLong(0);
+    private final AtomicLong _rejectedCalls = new AtomicLong(0);
+
+    private AgentCallExecutorSingleton(AgentCallExecutorConfig config) {
+        int maxThreads = config.getMaxThreads() > 0 ? config.getMaxThreads() :
+                _DEFAULT_MAX_THREADS;
+        int queueCapacity = config.getQueueCapacity() > 0 ? config.getQueueCapacity() :
+                _DEFAULT_QUEUE_CAPACITY;
+        int keepAliveSeconds = config.getKeepAliveSeconds() > 0 ? config.getKeepAliveSeconds() :
+                _DEFAULT_KEEP_ALIVE_SECONDS;
+        _maxCallsInFlight = maxThreads + queueCapacity;
+
+        ExecutorService virtualThreadExecutor = null;
+        if (config.getExecutorType() == ExecutorType.VIRTUAL_THREADS) {
+            virtualThreadExecutor = createVirtualThreadExecutor();
+        }
+        if (virtualThreadExecutor != null) {
+            _executorService = virtualThreadExecutor;
+            _threadPoolExecutor = null;
+        } else {
+            _threadPoolExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                    keepAliveSeconds, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("agent-call-%d")
+                            .setDaemon(true)
+                            .build());
+            _threadPoolExecutor.allowCoreThreadTimeOut(true);
+            _executorService = _threadPoolExecutor;
+        }
+        _timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("agent-call-timeout-%d")
+                .setDaemon(true)
+                .build());
+        _timeoutScheduler.setRemoveOnCancelPolicy(true);
+        logger.info("Agent call executor started: " + (_threadPoolExecutor == null ? "virtual " +
+                "threads" : maxThreads + " threads") + ", at most " + _maxCallsInFlight +
+                " calls in flight.");
+    }
+
+    /**
+     * Get the instance of this class, created from the core configuration on the first call.
+     *
+     * @return AgentCallExecutorSingleton - An instance of the class itself.
+     */
+    public static synchronized AgentCallExecutorSingleton getAgentCallExecutorSingleton() {
+        if (_instance == null) {
+            AgentCallExecutorConfig config = PropertiesSingleton.getCoreConfig() == null ?
+                    AgentCallExecutorConfig.getDefaultInstance() : PropertiesSingleton
+                    .getCoreConfig().getAgentCallExecutor();
+            _instance = new AgentCallExecutorSingleton(config);
+        }
+        return _instance;
+    }
+
+    /**
+     * Return the executor creating a new virtual thread for each task, or null if the running
+     * JVM doesn't support virtual threads. Reflection is used, because the project is compiled
+     * for Java 8.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (Exception exception) {
+            logger.warn("Virtual threads are not supported by this JVM, falling back to the " +
+                    "bounded thread pool.");
+            return null;
+        }
+    }
+
+    /**
+     * Submit a call to an agent for the execution.
+     *
+     * @param callable - The call to be executed.
+     * @return Future - The future holding the result of the call.
+     * @throws RejectedExecutionException - Thrown when the limit of calls in flight has been
+     *         reached or the executor has been shut down.
+     */
+    public <T> Future<T> submit(Callable<T> callable) throws RejectedExecutionException {
+        if (_callsInFlight.incrementAndGet() > _maxCallsInFlight) {
+            _callsInFlight.decrementAndGet();
+            throw reject();
+        }
+        FutureTask<T> task = new FutureTask<T>(callable) {
+            @Override
+            protected void done() {
+                _callsInFlight.decrementAndGet();
+            }
+        };
+        try {
+            _executorService.execute(task);
+        } catch (RejectedExecutionException exception) {
+            _callsInFlight.decrementAndGet();
+            throw reject();
+        }
+        _submittedCalls.incrementAndGet();
+        return task;
+    }
+
+    /**
+     * Schedule a task (e.g. a timeout of a call) to be run after the given delay.
+     * The task must be short and must not block, as all the timeouts share one thread.
+     *
+     * @param task - The task to be run.
+     * @param delay - The time from now after which the task is run.
+     * @param unit - The unit of the delay.
+     * @return ScheduledFuture - The future used for cancelling the task.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return _timeoutScheduler.schedule(task, delay, unit);
+    }
+
+    private RejectedExecutionException reject() {
+        long rejectedCalls = _rejectedCalls.incrementAndGet();
+        logger.warn("Agent call rejected, " + _callsInFlight.get() + " calls in flight. Total " +
+                "number of rejected calls: " + rejectedCalls);
+        return new RejectedExecutionException("The agent call executor is overloaded - the " +
+                "limit of " + _maxCallsInFlight + " calls in flight has been reached.");
+    }
+
+    /**
+     * Return the number of calls waiting for a free thread.
+     */
+    public int getQueueDepth() {
+        return _threadPoolExecutor == null ? 0 : _threadPoolExecutor.getQueue().size();
+    }
+
+    /**
+     * Return the number of calls which are either executing or waiting for a free thread.
+     */
+    public int getCallsInFlight() {
+        return _callsInFlight.get();
+    }
+
+    /**
+     * Return the number of threads currently executing calls, or the number of calls in flight
+     * for virtual threads.
+     */
+    public int getActiveThreadCount() {
+        return _threadPoolExecutor == null ? _callsInFlight.get() : _threadPoolExecutor
+                .getActiveCount();
+    }
+
+    public long getSubmittedCallCount() {
+        return _submittedCalls.get();
+    }
+
+    public long getRejectedCallCount() {
+        return _rejectedCalls.get();
+    }
+
+    /**
+     * Stop accepting new calls and interrupt the running ones.
+     */
+    public static synchronized void shutDown() {
+        if (_instance != null) {
+            _instance._executorService.shutdownNow();
+            _instance._timeoutScheduler.shutdownNow();
+            _instance = null;
+        }
+    }
+}
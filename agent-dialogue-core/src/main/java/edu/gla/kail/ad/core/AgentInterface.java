@@ -4,8 +4,13 @@ import edu.gla.kail.ad.Client;
 import edu.gla.kail.ad.Client.InteractionRequest;
 import edu.gla.kail.ad.CoreConfiguration.ServiceProvider;
 import edu.gla.kail.ad.core.Log.ResponseLog;
+import io.grpc.Deadline;
 import io.grpc.stub.StreamObserver;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Agent interface is a common interface to different dialogue framework implementations.
  */
@@ -17,6 +22,35 @@ public interface AgentInterface {
 
     String getAgentId(); // Return the agentID of the instance (e.g. projectID).
 
+    /**
+     * Start using the agent in a session. Called by DialogAgentManager once for each session the
+     * agent is set up for; the agents shared by the sessions are opened by each of them.
+     *
+     * @param sessionId - The ID of the session.
+     * @throws Exception - Thrown when the agent cannot be used by the session.
+     */
+    default void openSession(String sessionId) throws Exception {
+    }
+
+    /**
+     * Release the resources the agent holds for the session, e.g. the listeners and the
+     * streams of the session. Called once the session has ended, also when it has timed out.
+     *
+     * @param sessionId - The ID of the session.
+     */
+    default void closeSession(String sessionId) {
+    }
+
+    /**
+     * Return the number of resources (e.g. listeners and streams) the agent holds for the
+     * session, which are released by closeSession.
+     *
+     * @param sessionId - The ID of the session.
+     */
+    default int getOpenResourceCount(String sessionId) {
+        return 0;
+    }
+
     /**
      * Return a response for a request.
      *
@@ -28,6 +62,56 @@ public interface AgentInterface {
      */
     ResponseLog getResponseFromAgent(InteractionRequest interactionRequest) throws Exception;
 
+    /**
+     * Return a response for a request, which is not waited for after the deadline.
+     * Agents doing remote work (HTTP, Firestore, Dialogflow) should override this method and
+     * give up the work once the deadline expires.
+     *
+     * @param interactionRequest - A data structure (implemented in log.proto) holding the
+     *         incoming interaction that is being sent to an agent.
+     * @param deadline - The time after which the response is not used anymore: the timeout of
+     *         the agent or the deadline of the client's call, whichever comes first.
+     * @return ResponseLog - The response from the agent, must be non-null.
+     * @throws Exception
+     */
+    default ResponseLog getResponseFromAgent(InteractionRequest interactionRequest, Deadline
+            deadline) throws Exception {
+        return getResponseFromAgent(interactionRequest);
+    }
+
+    /**
+     * Return the future response for a request. This is what DialogAgentManager calls.
+     * By default getResponseFromAgent is called on a thread of AgentCallExecutorSingleton, which
+     * is held until the agent replies. Agents which can wait for their remote service without
+     * holding a thread (e.g. through HttpTransportSingleton) should override this method.
+     *
+     * @param interactionRequest - A data structure (implemented in log.proto) holding the
+     *         incoming interaction that is being sent to an agent.
+     * @param deadline - The time after which the response is not used anymore.
+     * @return CompletableFuture<ResponseLog> - Completed with the response from the agent, or
+     *         exceptionally if the agent failed. The future is cancelled once the response is
+     *         not waited for anymore, which should abandon the work of the agent.
+     * @throws RejectedExecutionException - Thrown when the agent cannot take more calls.
+     */
+    default CompletableFuture<ResponseLog> getResponseFromAgentAsync(InteractionRequest
+            interactionRequest, Deadline deadline) throws RejectedExecutionException {
+        CompletableFuture<ResponseLog> responseFuture = new CompletableFuture<>();
+        Future<?> call = AgentCallExecutorSingleton.getAgentCallExecutorSingleton().submit(() -> {
+            try {
+                responseFuture.complete(getResponseFromAgent(interactionRequest, deadline));
+            } catch (Exception exception) {
+                responseFuture.completeExceptionally(exception);
+            }
+            return null;
+        });
+        responseFuture.whenComplete((responseLog, throwable) -> {
+            if (responseFuture.isCancelled()) {
+                call.cancel(true); // Cancel and send a thread interrupt.
+            }
+        });
+        return responseFuture;
+    }
+
     /**
      * Create a streaming response setup for the agent. Messages will be written to the observer.
      *
@@ -36,4 +120,19 @@ public interface AgentInterface {
      */
     void streamingResponseFromAgent(InteractionRequest interactionRequest,
                                 StreamObserver<Client.InteractionResponse> responseObserver) throws Exception;
+
+    /**
+     * Create a streaming response setup for the agent in a session. Agents holding resources
+     * for the stream (e.g. listeners) should override this method, and release them in
+     * closeSession.
+     *
+     * @param sessionId - The ID of the session the stream belongs to.
+     * @param interactionRequest - Initial setup to setup a streaming response pipeline.
+     * @throws Exception
+     */
+    default void streamingResponseFromAgent(String sessionId, InteractionRequest
+            interactionRequest, StreamObserver<Client.InteractionResponse> responseObserver)
+            throws Exception {
+        streamingResponseFromAgent(interactionRequest, responseObserver);
+    }
 }
\ No newline at end of file
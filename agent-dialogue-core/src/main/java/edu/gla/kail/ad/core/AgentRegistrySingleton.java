@@ -0,0 +1,124 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.CoreConfig;
+import edu.gla.kail.ad.agents.DialogflowAgent;
+import edu.gla.kail.ad.agents.ModelInteractionAgent;
+import edu.gla.kail.ad.agents.RestSearchAgent;
+import edu.gla.kail.ad.agents.SpeechToTextAgent;
+import edu.gla.kail.ad.agents.WizardAgent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the agents shared by all the sessions.
+ * The agents which don't hold any session state (Wizard, search, model inference and speech to
+ * text agents) are built once per AgentConfig - reading their credentials and configuration
+ * files only once - and the same instance is used by every DialogAgentManager. Only the
+ * Dialogflow agent is created per session, as it holds the Dialogflow session name; its
+ * SessionsClient is shared through DialogflowAgentAuthorizationSingleton, so it is cheap.
+ */
+public final class AgentRegistrySingleton {
+    private static final Logger logger = LoggerFactory.getLogger(AgentRegistrySingleton.class);
+
+    private static AgentRegistrySingleton _instance;
+    // The agents shared by all the sessions, for each AgentConfig.
+    private final ConcurrentMap<AgentConfig, AgentInterface> _sharedAgents = new
+            ConcurrentHashMap<>();
+
+    /**
+     * Get the instance of this class. On the first call, the shared agents of all the
+     * AgentConfigs of the core configuration file are built.
+     *
+     * @return AgentRegistrySingleton - An instance of the class itself.
+     */
+    public static synchronized AgentRegistrySingleton getAgentRegistrySingleton() {
+        if (_instance == null) {
+            _instance = new AgentRegistrySingleton();
+            CoreConfig coreConfig = PropertiesSingleton.getCoreConfig();
+            if (coreConfig != null) {
+                for (AgentConfig agentConfig : coreConfig.getAgentsList()) {
+                    try {
+                        _instance.getAgent(agentConfig, null);
+                    } catch (Exception exception) {
+                        logger.error("Unable to set up the agent " + agentConfig.getProjectId() +
+                                ": " + exception.getMessage());
+                    }
+                }
+            }
+        }
+        return _instance;
+    }
+
+    /**
+     * Return the agent to be used by a session.
+     *
+     * @param agentConfig - The configuration of the agent.
+     * @param sessionId - The ID of the session using the agent, or null if the agent is not
+     *         used by a particular session yet.
+     * @return AgentInterface - The shared agent, the new agent for the session, or null if the
+     *         service provider is unrecognised or the shared agent couldn't be set up.
+     * @throws IOException - Thrown when the Dialogflow agent cannot be set up.
+     * @throws IllegalArgumentException - Thrown when the service provider is not supported.
+     */
+    public AgentInterface getAgent(AgentConfig agentConfig, String sessionId) throws IOException,
+            IllegalArgumentException {
+        switch (agentConfig.getServiceProvider()) {
+            case UNRECOGNISED:
+                return null;
+            case DIALOGFLOW:
+                return sessionId == null ? null : new DialogflowAgent(sessionId, agentConfig);
+            case WIZARD:
+            case SEARCH:
+            case MODEL_INFERENCE:
+            case SPEECH_TO_TEXT:
+                return _sharedAgents.computeIfAbsent(agentConfig, this::createSharedAgent);
+            default:
+                throw new IllegalArgumentException("The type of the agent provided " +
+                        agentConfig.getServiceProvider().toString() + "\" is not supported (yet)!");
+        }
+    }
+
+    /**
+     * Share the agent built outside of the registry with all the sessions using the
+     * AgentConfig, e.g. an agent built by the tests.
+     *
+     * @param agentConfig - The configuration of the agent, of a service provider whose agents
+     *         are shared.
+     * @param agent - The agent returned for the configuration.
+     */
+    void registerSharedAgent(AgentConfig agentConfig, AgentInterface agent) {
+        _sharedAgents.put(agentConfig, agent);
+    }
+
+    /**
+     * Create the agent holding no session state.
+     *
+     * @param agentConfig - The configuration of the agent.
+     * @return AgentInterface - The agent, or null if it couldn't be set up.
+     */
+    private AgentInterface createSharedAgent(AgentConfig agentConfig) {
+        try {
+            switch (agentConfig.getServiceProvider()) {
+                case WIZARD:
+                    return new WizardAgent(agentConfig);
+                case SEARCH:
+                    return new RestSearchAgent(agentConfig);
+                case MODEL_INFERENCE:
+                    return new ModelInteractionAgent(agentConfig);
+                case SPEECH_TO_TEXT:
+                    return new SpeechToTextAgent(agentConfig);
+                default:
+                    return null;
+            }
+        } catch (Exception exception) {
+            logger.error("Unable to set up the agent " + agentConfig.getProjectId() + ": " +
+                    exception.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package edu.gla.kail.ad.core;
+
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import edu.gla.kail.ad.Client.InteractionRequest;
+import edu.gla.kail.ad.Client.InteractionType;
+import edu.gla.kail.ad.CoreConfiguration.RoutingRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The routing table deciding which of the agents of a session are asked to reply to a request.
+ * The agents listed in the chosen_agents of the request are looked up by their IDs. When the
+ * request doesn't list any agents, the RoutingRules of the core configuration file choose the
+ * agents from the interaction type and the agent_request_parameters of the request.
+ *
+ * The table is built once, when the agents are set up: the agents are indexed by their IDs, the
+ * rules are grouped by the interaction type and their agent IDs are resolved to the agents, so
+ * the cost of routing a request doesn't depend on the number of agents configured.
+ */
+public final class AgentRoutingTable {
+    private static final Logger logger = LoggerFactory.getLogger(AgentRoutingTable.class);
+
+    // The agents indexed by their IDs.
+    private final Map<String, AgentInterface> _agentsById = new HashMap<>();
+    // The routes applicable to each interaction type, in the order of the rules.
+    private final Map<InteractionType, List<Route>> _routesByInteractionType = new EnumMap<>
+            (InteractionType.class);
+    // The routes of the rules matching any interaction type, in the order of the rules.
+    private final List<Route> _routesForAnyInteractionType = new ArrayList<>();
+
+    /**
+     * A compiled RoutingRule: the conditions on the parameters of the request and the agents
+     * called when they are met.
+     */
+    private static final class Route {
+        private final List<String> _requiredParameters;
+        private final Map<String, String> _parameterValues;
+        private final List<AgentInterface> _agents;
+
+        private Route(RoutingRule rule, List<AgentInterface> agents) {
+            _requiredParameters = new ArrayList<>(rule.getRequiredParametersList());
+            _parameterValues = new HashMap<>(rule.getParameterValuesMap());
+            _agents = Collections.unmodifiableList(agents);
+        }
+
+        private boolean matches(Struct agentRequestParameters) {
+            Map<String, Value> fields = agentRequestParameters.getFieldsMap();
+            for (String requiredParameter : _requiredParameters) {
+                if (!fields.containsKey(requiredParameter)) {
+                    return false;
+                }
+            }
+            for (Map.Entry<String, String> parameterValue : _parameterValues.entrySet()) {
+                Value value = fields.get(parameterValue.getKey());
+                if (value == null || value.getKindCase() != Value.KindCase.STRING_VALUE ||
+                        !value.getStringValue().equals(parameterValue.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Build the routing table of a session.
+     *
+     * @param agents - The agents set up for the session.
+     * @param routingRules - The rules from the core configuration file.
+     */
+    public AgentRoutingTable(List<AgentInterface> agents, List<RoutingRule> routingRules) {
+        for (AgentInterface agent : agents) {
+            if (_agentsById.putIfAbsent(agent.getAgentId(), agent) != null) {
+                logger.warn("More than one agent has the ID " + agent.getAgentId() + ", only " +
+                        "the first one can be chosen.");
+            }
+        }
+        for (InteractionType interactionType : InteractionType.values()) {
+            if (interactionType != InteractionType.UNRECOGNIZED) {
+                _routesByInteractionType.put(interactionType, new ArrayList<>());
+            }
+        }
+        for (RoutingRule rule : routingRules) {
+            Route route = new Route(rule, getAgents(rule.getAgentIdsList()));
+            if (rule.getInteractionTypesList().isEmpty()) {
+                _routesForAnyInteractionType.add(route);
+                _routesByInteractionType.values().forEach(routes -> routes.add(route));
+            } else {
+                for (InteractionType interactionType : new LinkedHashSet<>(rule
+                        .getInteractionTypesList())) {
+                    if (interactionType != InteractionType.UNRECOGNIZED) {
+                        _routesByInteractionType.get(interactionType).add(route);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the agents which are asked to reply to the request.
+     *
+     * @param interactionRequest - The request sent by the client.
+     * @return List<AgentInterface> - The chosen agents of the request which have been set up, or
+     *         the agents of the first rule matching the request if no agents are chosen, or an
+     *         empty list if no rule matches.
+     */
+    public List<AgentInterface> route(InteractionRequest interactionRequest) {
+        if (interactionRequest.getChosenAgentsCount() > 0) {
+            return getAgents(interactionRequest.getChosenAgentsList());
+        }
+        List<Route> routes = _routesByInteractionType.getOrDefault(interactionRequest
+                .getInteraction().getType(), _routesForAnyInteractionType);
+        for (Route route : routes) {
+            if (route.matches(interactionRequest.getAgentRequestParameters())) {
+                return route._agents;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Return the agent with the given ID, or null if no such agent has been set up.
+     */
+    public AgentInterface getAgent(String agentId) {
+        return _agentsById.get(agentId);
+    }
+
+    public boolean isEmpty() {
+        return _agentsById.isEmpty();
+    }
+
+    /**
+     * Return the agents with the given IDs, skipping the IDs of the agents which haven't been set
+     * up and the repeated IDs.
+     */
+    private List<AgentInterface> getAgents(List<String> agentIds) {
+        List<AgentInterface> agents = new ArrayList<>(agentIds.size());
+        for (String agentId : agentIds) {
+            AgentInterface agent = _agentsById.get(agentId);
+            if (agent != null && !agents.contains(agent)) {
+                agents.add(agent);
+            }
+        }
+        return agents;
+    }
+}
@@ -0,0 +1,339 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The block compression of the turn log files.
+ * The data is split into blocks of a fixed size, each compressed on its own, so a reader only
+ * needs to decompress the block holding the data it looks for. A block is made of the 13-byte
+ * block header - the length of the compressed data (int), the CRC32C checksum of the rest of
+ * the block (int), the length of the data (int) and the Compression (byte) - followed by the
+ * compressed data.
+ *
+ * The compressed LogEntry files start with the magic number, followed by the blocks. The
+ * compressed segment files are described in TurnLogSegmentFile.
+ * Use openInputStream for reading a log file whether it is compressed or not.
+ */
+public final class BlockCompression {
+    static final int BLOCK_HEADER_SIZE = 13;
+    // The largest block size, so that a position in a block fits in 24 bits.
+    static final int MAX_BLOCK_SIZE = 1 << 24;
+
+    private static final int _MAGIC = 0x41444243; // "ADBC"
+    private static final int _DEFAULT_BLOCK_SIZE = 64 << 10;
+    private static final HashFunction _CRC32C = Hashing.crc32c();
+
+    private BlockCompression() {
+    }
+
+    /**
+     * Return the size of the blocks set in the configuration.
+     */
+    static int getBlockSize(TurnLogConfig config) {
+        int blockSize = config.getCompressionBlockBytes();
+        return blockSize > 0 ? Math.min(blockSize, MAX_BLOCK_SIZE) : _DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Compress the data into a block.
+     *
+     * @param compression - The compression of the block, other than NONE.
+     * @param data - The array holding the data.
+     * @param length - The length of the data, starting at the beginning of the array.
+     * @return ByteBuffer - The block, with its header.
+     */
+    static ByteBuffer encodeBlock(Compression compression, byte[] data, int length) throws
+            IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        switch (compression) {
+            case GZIP:
+                try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+                    gzipOutputStream.write(data, 0, length);
+                }
+                break;
+            case DEFLATE:
+                Deflater deflater = new Deflater();
+                try {
+                    deflater.setInput(data, 0, length);
+                    deflater.finish();
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished()) {
+                        compressed.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } finally {
+                    deflater.end();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported compression: " + compression);
+        }
+        byte[] compressedData = compressed.toByteArray();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + compressedData.length);
+        block.putInt(compressedData.length)
+                .putInt(checksum(length, (byte) compression.getNumber(), ByteBuffer.wrap
+                        (compressedData)))
+                .putInt(length)
+                .put((byte) compression.getNumber())
+                .put(compressedData);
+        block.flip();
+        return block;
+    }
+
+    /**
+     * Return the checksum of the length of the data, the compression and the compressed data.
+     */
+    private static int checksum(int length, byte compression, ByteBuffer compressedData) {
+        return _CRC32C.newHasher()
+                .putInt(length)
+                .putByte(compression)
+                .putBytes(compressedData.duplicate())
+                .hash()
+                .asInt();
+    }
+
+    /**
+     * Return the length of the compressed data of the block, from the block header.
+     */
+    static int getCompressedLength(ByteBuffer blockHeader) {
+        return blockHeader.getInt(0);
+    }
+
+    /**
+     * Check and decompress the data of the block.
+     *
+     * @param blockHeader - The block header.
+     * @param compressedData - The compressed data following the block header.
+     * @return byte[] - The data of the block.
+     * @throws IOException - Thrown when the block is damaged.
+     */
+    static byte[] decodeBlock(ByteBuffer blockHeader, ByteBuffer compressedData) throws
+            IOException {
+        int checksum = blockHeader.getInt(4);
+        int length = blockHeader.getInt(8);
+        Compression compression = Compression.forNumber(blockHeader.get(12));
+        if (checksum(length, blockHeader.get(12), compressedData) != checksum) {
+            throw new IOException("Invalid checksum of the compressed block.");
+        }
+        if (length < 0 || compression == null) {
+            throw new IOException("Invalid header of the compressed block.");
+        }
+        byte[] compressedBytes = new byte[compressedData.remaining()];
+        compressedData.duplicate().get(compressedBytes);
+        byte[] data = new byte[length];
+        switch (compression) {
+            case GZIP:
+                try (DataInputStream inputStream = new DataInputStream(new GZIPInputStream(new
+                        ByteArrayInputStream(compressedBytes)))) {
+                    inputStream.readFully(data);
+                }
+                break;
+            case DEFLATE:
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(compressedBytes);
+                    if (inflater.inflate(data) != length || !inflater.finished()) {
+                        throw new IOException("Invalid length of the compressed block.");
+                    }
+                } catch (DataFormatException exception) {
+                    throw new IOException("Invalid data of the compressed block.", exception);
+                } finally {
+                    inflater.end();
+                }
+                break;
+            default:
+                throw new IOException("Unsupported compression of the block: " + compression);
+        }
+        return data;
+    }
+
+    /**
+     * Open a log file for reading, decompressing it if it is compressed.
+     *
+     * @param path - The path of the file.
+     * @return InputStream - The stream of the data of the file.
+     * @throws IOException - Thrown when the file cannot be opened.
+     */
+    public static InputStream openInputStream(String path) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(path));
+        inputStream.mark(4);
+        byte[] magic = new byte[4];
+        int length = 0;
+        int read;
+        while (length < magic.length && (read = inputStream.read(magic, length, magic.length -
+                length)) > 0) {
+            length += read;
+        }
+        if (length == magic.length && ByteBuffer.wrap(magic).getInt() == _MAGIC) {
+            return new BlockInputStream(inputStream);
+        }
+        inputStream.reset();
+        return inputStream;
+    }
+
+    /**
+     * The stream writing the data in compressed blocks, preceded by the magic number.
+     */
+    public static final class BlockOutputStream extends OutputStream {
+        private final OutputStream _outputStream;
+        private final Compression _compression;
+        private final byte[] _block;
+        private int _blockLength = 0;
+
+        /**
+         * @param outputStream - The stream the blocks are written to.
+         * @param compression - The compression of the blocks, other than NONE.
+         * @param blockSize - The size of the data compressed in one block.
+         */
+        public BlockOutputStream(OutputStream outputStream, Compression compression, int
+                blockSize) throws IOException {
+            _outputStream = outputStream;
+            _compression = compression;
+            _block = new byte[blockSize];
+            _outputStream.write(ByteBuffer.allocate(4).putInt(_MAGIC).array());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_blockLength == _block.length) {
+                writeBlock();
+            }
+            _block[_blockLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (_blockLength == _block.length) {
+                    writeBlock();
+                }
+                int copied = Math.min(length, _block.length - _blockLength);
+                System.arraycopy(data, offset, _block, _blockLength, copied);
+                _blockLength += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (_blockLength > 0) {
+                ByteBuffer block = encodeBlock(_compression, _block, _blockLength);
+                _outputStream.write(block.array(), 0, block.limit());
+                _blockLength = 0;
+            }
+        }
+
+        /**
+         * Write the data written so far in a block, which may be shorter than the block size.
+         */
+        @Override
+        public void flush() throws IOException {
+            writeBlock();
+            _outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBlock();
+            } finally {
+                _outputStream.close();
+            }
+        }
+    }
+
+    /**
+     * The stream reading the data of the compressed blocks following the magic number.
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream _inputStream;
+        private byte[] _block = new byte[0];
+        private int _blockPosition = 0;
+
+        private BlockInputStream(InputStream inputStream) {
+            _inputStream = new DataInputStream(inputStream);
+        }
+
+        /**
+         * Read the next block.
+         *
+         * @return boolean - False at the end of the stream.
+         */
+        private boolean readBlock() throws IOException {
+            byte[] header = new byte[BLOCK_HEADER_SIZE];
+            int length = _inputStream.read(header);
+            if (length < 0) {
+                return false;
+            }
+            try {
+                _inputStream.readFully(header, length, BLOCK_HEADER_SIZE - length);
+                ByteBuffer blockHeader = ByteBuffer.wrap(header);
+                int compressedLength = getCompressedLength(blockHeader);
+                if (compressedLength < 0) {
+                    throw new IOException("Invalid length of the compressed block.");
+                }
+                byte[] compressedData = new byte[compressedLength];
+                _inputStream.readFully(compressedData);
+                _block = decodeBlock(blockHeader, ByteBuffer.wrap(compressedData));
+            } catch (EOFException exception) {
+                throw new IOException("The compressed block is truncated.", exception);
+            }
+            _blockPosition = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (_blockPosition == _block.length) {
+                if (!readBlock()) {
+                    return -1;
+                }
+            }
+            return _block[_blockPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (_blockPosition == _block.length) {
+                if (!readBlock()) {
+                    return -1;
+                }
+            }
+            int read = Math.min(length, _block.length - _blockPosition);
+            System.arraycopy(_block, _blockPosition, data, offset, read);
+            _blockPosition += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return _block.length - _blockPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _inputStream.close();
+        }
+    }
+}
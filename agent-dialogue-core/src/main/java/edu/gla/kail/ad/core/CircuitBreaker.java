@@ -0,0 +1,236 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.CircuitBreakerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker protecting the core from an agent which keeps failing or responding slowly.
+ * One breaker is shared by all the sessions calling the same agent (same AgentConfig).
+ *
+ * CLOSED - calls go through; the outcomes of the last calls are recorded in a sliding window.
+ * OPEN - once the failure rate or the slow call rate of the window reaches its threshold, calls
+ * are refused straight away, for the configured time.
+ * HALF_OPEN - afterwards a few trial calls are let through, which decide whether the circuit
+ * closes again or opens for another period.
+ *
+ * Each permission carries the generation of the state it was granted in. The outcome of a call
+ * finishing after a transition (e.g. a call made while CLOSED finishing once HALF_OPEN) is
+ * ignored, so only the calls made in the current state decide the next transition.
+ */
+public final class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Returned by tryAcquirePermission when the call is not permitted.
+    public static final long NOT_PERMITTED = -1;
+
+    // The breakers of all the agents, which have the circuit breaker configured.
+    private static final ConcurrentMap<AgentConfig, CircuitBreaker> _circuitBreakers = new
+            ConcurrentHashMap<>();
+
+    private final String _agentId;
+    private final int _minimumNumberOfCalls;
+    private final int _failureRateThresholdPercent;
+    private final long _slowCallDurationMillis;
+    private final int _slowCallRateThresholdPercent;
+    private final long _openStateDurationMillis;
+    private final int _permittedCallsInHalfOpenState;
+
+    // The outcomes of the most recent calls: the ring buffers and the totals over them.
+    private final boolean[] _failedCalls;
+    private final boolean[] _slowCalls;
+    private int _nextIndex = 0;
+    private int _numberOfCalls = 0;
+    private int _numberOfFailedCalls = 0;
+    private int _numberOfSlowCalls = 0;
+
+    private State _state = State.CLOSED;
+    // Incremented on every transition.
+    private long _generation = 0;
+    private long _openedAtMillis;
+    // The number of trial calls let through and finished in the HALF_OPEN state.
+    private int _halfOpenCallsPermitted = 0;
+    private int _halfOpenCallsFinished = 0;
+    private long _numberOfTransitions = 0;
+    private Instant _lastTransitionTime = Instant.now();
+
+    private CircuitBreaker(String agentId, CircuitBreakerConfig config, long agentTimeoutMillis) {
+        _agentId = agentId;
+        int slidingWindowSize = positiveOrDefault(config.getSlidingWindowSize(), 20);
+        _minimumNumberOfCalls = Math.min(slidingWindowSize, positiveOrDefault(config
+                .getMinimumNumberOfCalls(), 10));
+        _failureRateThresholdPercent = positiveOrDefault(config.getFailureRateThresholdPercent(),
+                50);
+        _slowCallDurationMillis = config.getSlowCallDurationMillis() > 0 ? config
+                .getSlowCallDurationMillis() : agentTimeoutMillis;
+        _slowCallRateThresholdPercent = positiveOrDefault(config
+                .getSlowCallRateThresholdPercent(), 100);
+        _openStateDurationMillis = TimeUnit.SECONDS.toMillis(positiveOrDefault(config
+                .getOpenStateDurationSeconds(), 30));
+        _permittedCallsInHalfOpenState = positiveOrDefault(config
+                .getPermittedCallsInHalfOpenState(), 3);
+        _failedCalls = new boolean[slidingWindowSize];
+        _slowCalls = new boolean[slidingWindowSize];
+    }
+
+    private static int positiveOrDefault(int value, int defaultValue) {
+        return value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * Return the circuit breaker of the agent, or null if the agent doesn't have the circuit
+     * breaker configured.
+     *
+     * @param agentConfig - The configuration of the agent.
+     * @param agentTimeoutMillis - The timeout of the agent, used as the default slow call
+     *         duration.
+     * @return CircuitBreaker - The breaker shared by all the sessions calling the agent.
+     */
+    public static CircuitBreaker getCircuitBreaker(AgentConfig agentConfig, long
+            agentTimeoutMillis) {
+        if (!agentConfig.hasCircuitBreaker()) {
+            return null;
+        }
+        return _circuitBreakers.computeIfAbsent(agentConfig, config -> new CircuitBreaker(config
+                .getProjectId(), config.getCircuitBreaker(), agentTimeoutMillis));
+    }
+
+    /**
+     * Return whether a call to the agent can be made. Each permitted call must be followed by
+     * either onCallFinished or releasePermission, given the returned permission.
+     *
+     * @return long - The permission of the call, or NOT_PERMITTED if the circuit is open.
+     */
+    public synchronized long tryAcquirePermission() {
+        if (_state == State.OPEN) {
+            if (System.currentTimeMillis() - _openedAtMillis < _openStateDurationMillis) {
+                return NOT_PERMITTED;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (_state == State.HALF_OPEN) {
+            if (_halfOpenCallsPermitted >= _permittedCallsInHalfOpenState) {
+                return NOT_PERMITTED;
+            }
+            _halfOpenCallsPermitted++;
+        }
+        return _generation;
+    }
+
+    /**
+     * Give back the permission of a call, which hasn't been made (e.g. it has been cancelled).
+     *
+     * @param permission - The permission returned by tryAcquirePermission.
+     */
+    public synchronized void releasePermission(long permission) {
+        if (permission == _generation && _state == State.HALF_OPEN && _halfOpenCallsPermitted >
+                _halfOpenCallsFinished) {
+            _halfOpenCallsPermitted--;
+        }
+    }
+
+    /**
+     * Record the outcome of a permitted call. The outcomes of the calls permitted before the
+     * last transition are ignored.
+     *
+     * @param permission - The permission returned by tryAcquirePermission.
+     * @param successful - Whether the agent responded successfully.
+     * @param durationMillis - The duration of the call.
+     */
+    public synchronized void onCallFinished(long permission, boolean successful, long
+            durationMillis) {
+        if (permission != _generation) {
+            return;
+        }
+        boolean slow = durationMillis >= _slowCallDurationMillis;
+        switch (_state) {
+            case CLOSED:
+                recordCall(!successful, slow);
+                if (_numberOfCalls >= _minimumNumberOfCalls && thresholdReached()) {
+                    open();
+                }
+                break;
+            case HALF_OPEN:
+                recordCall(!successful, slow);
+                _halfOpenCallsFinished++;
+                if (_halfOpenCallsFinished >= _permittedCallsInHalfOpenState) {
+                    if (thresholdReached()) {
+                        open();
+                    } else {
+                        transitionTo(State.CLOSED);
+                    }
+                }
+                break;
+            case OPEN:
+                // Unreachable: no call is permitted in the OPEN state.
+                break;
+        }
+    }
+
+    private void recordCall(boolean failed, boolean slow) {
+        if (_numberOfCalls == _failedCalls.length) {
+            _numberOfFailedCalls -= _failedCalls[_nextIndex] ? 1 : 0;
+            _numberOfSlowCalls -= _slowCalls[_nextIndex] ? 1 : 0;
+        } else {
+            _numberOfCalls++;
+        }
+        _failedCalls[_nextIndex] = failed;
+        _slowCalls[_nextIndex] = slow;
+        _numberOfFailedCalls += failed ? 1 : 0;
+        _numberOfSlowCalls += slow ? 1 : 0;
+        _nextIndex = (_nextIndex + 1) % _failedCalls.length;
+    }
+
+    private boolean thresholdReached() {
+        return _numberOfFailedCalls * 100 >= _failureRateThresholdPercent * _numberOfCalls ||
+                _numberOfSlowCalls * 100 >= _slowCallRateThresholdPercent * _numberOfCalls;
+    }
+
+    private void open() {
+        _openedAtMillis = System.currentTimeMillis();
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State state) {
+        logger.warn("Circuit breaker of the agent " + _agentId + " changed from " + _state + " " +
+                "to " + state + " (" + _numberOfFailedCalls + " failed and " +
+                _numberOfSlowCalls + " slow out of the last " + _numberOfCalls + " calls).");
+        _state = state;
+        _generation++;
+        _numberOfTransitions++;
+        _lastTransitionTime = Instant.now();
+        // Every state starts with a fresh window of calls.
+        _nextIndex = 0;
+        _numberOfCalls = 0;
+        _numberOfFailedCalls = 0;
+        _numberOfSlowCalls = 0;
+        _halfOpenCallsPermitted = 0;
+        _halfOpenCallsFinished = 0;
+    }
+
+    public String getAgentId() {
+        return _agentId;
+    }
+
+    public synchronized State getState() {
+        return _state;
+    }
+
+    public synchronized long getNumberOfTransitions() {
+        return _numberOfTransitions;
+    }
+
+    public synchronized Instant getLastTransitionTime() {
+        return _lastTransitionTime;
+    }
+}
@@ -1,14 +1,12 @@
 package edu.gla.kail.ad.core;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Timestamp;
 import edu.gla.kail.ad.Client;
 import edu.gla.kail.ad.Client.InteractionRequest;
 import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
-import edu.gla.kail.ad.agents.DialogflowAgent;
-import edu.gla.kail.ad.agents.ModelInteractionAgent;
-import edu.gla.kail.ad.agents.RestSearchAgent;
-import edu.gla.kail.ad.agents.SpeechToTextAgent;
-import edu.gla.kail.ad.agents.WizardAgent;
+import edu.gla.kail.ad.CoreConfiguration.CoreConfig;
+import edu.gla.kail.ad.CoreConfiguration.ResponseSelectionMode;
 import edu.gla.kail.ad.core.Log.RequestLog;
 import edu.gla.kail.ad.core.Log.ResponseLog;
 import edu.gla.kail.ad.core.Log.ResponseLog.Builder;
@@ -16,20 +14,30 @@ import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
 import edu.gla.kail.ad.core.Log.ResponseLogOrBuilder;
 import edu.gla.kail.ad.core.Log.Turn;
 import edu.gla.kail.ad.core.Log.TurnOrBuilder;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
-import io.reactivex.rxjava3.core.Observable;
-import io.reactivex.rxjava3.schedulers.Schedulers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -42,30 +50,51 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * data.
  *
  * Instruction of usage:
- * 1) Set up the Dialog agents using setUpAgents method.
- * 2) Call the getResponse for passed input.
+ * 1) Set up the Dialog agents using setUpAgents method (the agents without session state are
+ * shared by all the sessions, see AgentRegistrySingleton).
+ * 2) Call the getResponse for passed input and consume the future response.
  *
  * Example usage :
  * DialogAgentManager dialogAgentManager = new DialogAgentManager();
  * dialogAgentManager.setUpAgents(agents);
- * ResponseLog response = dialogAgentManager.getResponse(interactionRequest);
+ * dialogAgentManager.getResponse(interactionRequest).thenAccept(response -> ...);
  **/
 
 public class DialogAgentManager {
+    private static final Logger logger = LoggerFactory.getLogger(DialogAgentManager.class);
+
     // List of instances of used Dialog agents.
     private ArrayList<AgentInterface> _agents;
     // Session ID is a unique identifier of a session which is assigned by the method
     // startSession() called by DialogAgentManager constructor.
     private String _sessionId;
     private LogTurnManagerSingleton _logTurnManagerSingleton;
-    // Time of no response from agent, after which there is timeout on getting response from agent.
-    private Integer _agentCallTimeoutSeconds = 50;
+    // The configuration each of the agents has been set up with.
+    private Map<AgentInterface, AgentConfig> _agentConfigs;
+    // Decides which of the agents are asked to reply to a request.
+    private AgentRoutingTable _agentRoutingTable;
+    // Processes the requests of the session one at a time, in the order they arrived.
+    private final SessionMailbox _mailbox = new SessionMailbox();
+    private final AtomicBoolean _sessionEnded = new AtomicBoolean(false);
+    // Time of no response from agent, after which there is timeout on getting response from
+    // agent, unless a different timeout is set in the AgentConfig.
+    private static final long _DEFAULT_AGENT_CALL_TIMEOUT_MILLIS = 50000;
 
     /**
      * Create a unique session ID generated with startSession() method.
      */
     public DialogAgentManager() throws IOException {
-        startSession();
+        startSession(generateRandomID());
+    }
+
+    /**
+     * Resume the session with the given ID, e.g. a session restored after a restart of the
+     * server. The agents keeping the state of the conversation by the session ID carry on with it.
+     *
+     * @param sessionId - The ID of the session.
+     */
+    public DialogAgentManager(String sessionId) throws IOException {
+        startSession(checkNotNull(sessionId, "The session ID is null!"));
     }
 
     public String getSessionId() {
@@ -73,18 +102,51 @@ public class DialogAgentManager {
     }
 
     /**
-     * Create a unique sessionId.
+     * Start the session with the sessionId.
      */
-    private void startSession() throws IOException {
-        _sessionId = generateRandomID();
+    private void startSession(String sessionId) throws IOException {
+        _sessionId = sessionId;
         _logTurnManagerSingleton = LogTurnManagerSingleton.getLogTurnManagerSingleton();
     }
 
     /**
-     * End a session
+     * End the session: the agents release the resources they hold for it. Called once the
+     * session has been ended by the user or has timed out; calling it again has no effect.
      */
     public void endSession() {
+        if (!_sessionEnded.compareAndSet(false, true) || _agents == null) {
+            return;
+        }
+        int openResources = getOpenResourceCount();
+        for (AgentInterface agent : _agents) {
+            closeAgentSession(agent);
+        }
+        logger.debug("Ended the session " + _sessionId + ", released " + openResources +
+                " resources of the agents.");
+    }
 
+    private void closeAgentSession(AgentInterface agent) {
+        try {
+            agent.closeSession(_sessionId);
+        } catch (RuntimeException exception) {
+            logger.warn("Unable to close the session " + _sessionId + " of the agent " + agent
+                    .getAgentId() + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Return the number of resources (e.g. listeners and streams) the agents hold for the
+     * session.
+     */
+    public int getOpenResourceCount() {
+        if (_agents == null) {
+            return 0;
+        }
+        int openResources = 0;
+        for (AgentInterface agent : _agents) {
+            openResources += agent.getOpenResourceCount(_sessionId);
+        }
+        return openResources;
     }
 
     /**
@@ -98,71 +160,167 @@ public class DialogAgentManager {
     }
 
     /**
-     * Set up (e.g. authenticate) all agents and store them to the list of agents.
+     * Set up all agents and store them to the list of agents.
+     * The agents holding no session state are shared with the other sessions through
+     * AgentRegistrySingleton, so only the session-scoped agents (Dialogflow) are created here.
+     * Each of the agents is opened for the session (see AgentInterface.openSession).
      *
-     * @throws IllegalArgumentException - Raised by _agents.add(new
-     *         DialogflowAgent(_sessionId, agentSpecificData.get(0)));
+     * @throws IllegalArgumentException - Raised when the service provider of an agent is not
+     *         supported.
      * @throws IOException, IllegalArgumentException
      */
     public void setUpAgents(List<AgentConfig> agents) throws
             IllegalArgumentException, IOException {
-        _agents = new ArrayList<>();
+        AgentRegistrySingleton agentRegistry = AgentRegistrySingleton.getAgentRegistrySingleton();
+        ArrayList<AgentInterface> openedAgents = new ArrayList<>();
+        _agentConfigs = new HashMap<>();
         for (AgentConfig agent : agents) {
-            switch (agent.getServiceProvider()) {
-                case UNRECOGNISED:
-                    break;
-                case DIALOGFLOW:
-                    _agents.add(new DialogflowAgent(_sessionId, agent));
-                    break;
-                case WIZARD:
-                    try {
-                        _agents.add(new WizardAgent(_sessionId, agent));
-                    } catch (Exception exception) {
-                        // TODO: Implement
-                        exception.printStackTrace();
-                    }
-                    break;
-                case SEARCH:
-                    try {
-                        _agents.add(new RestSearchAgent(agent));
-                    } catch (Exception exception) {
-                        exception.printStackTrace();
-                    }
-                    break;
-                case SPEECH_TO_TEXT: 
-                    try {
-                        _agents.add(new SpeechToTextAgent(agent));
-                    } catch (Exception exception) {
-                        exception.printStackTrace();
-                    }
-                    break;
-                default:
-                    throw new IllegalArgumentException("The type of the agent provided " +
-                            agent.getServiceProvider().toString() + "\" is not supported (yet)!");
+            AgentInterface agentInstance = agentRegistry.getAgent(agent, _sessionId);
+            if (agentInstance != null) {
+                try {
+                    agentInstance.openSession(_sessionId);
+                } catch (Exception exception) {
+                    openedAgents.forEach(this::closeAgentSession);
+                    throw new IOException("Unable to open the session of the agent " +
+                            agentInstance.getAgentId() + ": " + exception.getMessage(),
+                            exception);
+                }
+                openedAgents.add(agentInstance);
+                _agentConfigs.put(agentInstance, agent);
             }
         }
+        _agents = openedAgents;
+        CoreConfig coreConfig = PropertiesSingleton.getCoreConfig();
+        _agentRoutingTable = new AgentRoutingTable(_agents, coreConfig == null ? new
+                ArrayList<>() : coreConfig.getRoutingRulesList());
+    }
+
+    /**
+     * Take the request from the service and asynchronously send back chosen response.
+     * Store the turn in the logfile.
+     * No thread is blocked while waiting for the agents: the agent calls, the timeouts, choosing
+     * the response and logging the turn are chained as the completion stages of the returned
+     * future.
+     * In the FIRST_SUCCESSFUL response selection mode the returned future is completed with the
+     * first successful response, while the remaining responses are still collected in the
+     * background and stored with the turn.
+     * The requests of the session are processed one at a time: the agents are called for a
+     * request once the turn of the previous request has been logged, so the agents keeping the
+     * state of the session see the requests in order and the turns are logged in order.
+     *
+     * @param interactionRequest - The request sent by the client.
+     * @param callContext - The gRPC context of the client's call, or null. The agents are not
+     *         waited for after its deadline, nor after the call has been cancelled.
+     * @return CompletableFuture<ResponseLog> - Completed with the response chosen with a
+     *         particular method from the list of responses obtained by calling all the agents.
+     */
+    public CompletableFuture<ResponseLog> getResponse(InteractionRequest interactionRequest,
+                                                      @Nullable Context callContext) {
+        CompletableFuture<ResponseLog> chosenResponseFuture = new CompletableFuture<>();
+        _mailbox.submit(() -> {
+            if (callContext != null && callContext.isCancelled()) {
+                // The client has given up while the request was waiting for its turn.
+                chosenResponseFuture.completeExceptionally(new CancellationException("The call " +
+                        "has been cancelled by the client."));
+                return chosenResponseFuture;
+            }
+            return processRequest(interactionRequest, callContext, chosenResponseFuture);
+        }).whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                chosenResponseFuture.completeExceptionally(throwable);
+            }
+        });
+        return chosenResponseFuture;
     }
 
     /**
-     * Take the request from the service and send back chosen response.
-     * Store the turn in the logfile
+     * Call the agents for the request and complete the future of the chosen response.
      *
      * @param interactionRequest - The request sent by the client.
-     * @return ResponseLog - The response chosen with a particular method from the list of responses
-     *         obtained by calling all the agents.
+     * @param callContext - The gRPC context of the client's call, or null.
+     * @param chosenResponseFuture - Completed with the chosen response.
+     * @return CompletableFuture<?> - Completed once the turn has been queued to be logged, or
+     *         the request has failed.
      */
-    public ResponseLog getResponse(InteractionRequest interactionRequest) throws Exception {
+    private CompletableFuture<?> processRequest(InteractionRequest interactionRequest, @Nullable
+            Context callContext, CompletableFuture<ResponseLog> chosenResponseFuture) {
         RequestLog requestLog = RequestLog.newBuilder()
                 .setRequestId(generateRandomID())
                 .setTime(getCurrentTimeStamp())
                 .setClientId(interactionRequest.getClientId())
                 .setInteraction(interactionRequest.getInteraction()).build();
 
-        List<ResponseLog> responses = getResponsesFromAgents(interactionRequest);
-        ResponseLog chosenResponse = chooseOneResponse(responses);
+        List<CompletableFuture<ResponseLog>> responseFutures;
+        try {
+            responseFutures = getResponsesFromAgents(interactionRequest, callContext);
+        } catch (Exception exception) {
+            chosenResponseFuture.completeExceptionally(exception);
+            return chosenResponseFuture;
+        }
+        CompletableFuture<List<ResponseLog>> responsesFuture = allResponses(responseFutures);
+        if (getResponseSelectionMode() != ResponseSelectionMode.FIRST_SUCCESSFUL) {
+            return responsesFuture.thenApply(responses -> {
+                ResponseLog chosenResponse = chooseOneResponse(responses);
+                logTurn(requestLog, interactionRequest.getUserId(), chosenResponse,
+                        responses);
+                return chosenResponse;
+            }).whenComplete((chosenResponse, throwable) -> {
+                if (throwable == null) {
+                    chosenResponseFuture.complete(chosenResponse);
+                } else {
+                    chosenResponseFuture.completeExceptionally(throwable);
+                }
+            });
+        }
+
+        for (CompletableFuture<ResponseLog> responseFuture : responseFutures) {
+            responseFuture.thenAccept(responseLog -> {
+                if (responseLog.getMessageStatus() == MessageStatus.SUCCESSFUL) {
+                    chosenResponseFuture.complete(responseLog);
+                }
+            });
+        }
+        // None of the responses was successful: fall back to the regular choice.
+        responsesFuture.thenAccept(responses -> {
+            try {
+                chosenResponseFuture.complete(chooseOneResponse(responses));
+            } catch (Exception exception) {
+                chosenResponseFuture.completeExceptionally(exception);
+            }
+        });
+        // The turn is stored once all the candidate responses have been collected.
+        return responsesFuture.thenAcceptBoth(chosenResponseFuture, (responses,
+                                                                     chosenResponse) ->
+                logTurn(requestLog, interactionRequest.getUserId(), chosenResponse,
+                        responses));
+    }
+
+    /**
+     * Return the response selection mode set in the configuration file.
+     */
+    private ResponseSelectionMode getResponseSelectionMode() {
+        CoreConfig coreConfig = PropertiesSingleton.getCoreConfig();
+        return coreConfig == null ? ResponseSelectionMode.WAIT_FOR_ALL_AGENTS : coreConfig
+                .getResponseSelectionMode();
+    }
+
+    /**
+     * Build the turn from the request and the responses, and queue it to be stored in the log
+     * file. The response is not held back by the write; a failed write is logged.
+     *
+     * @param requestLog - The request sent by the client.
+     * @param userId - The ID of the user who sent the request.
+     * @param chosenResponse - The response sent back to the client.
+     * @param responses - All the responses obtained from the agents.
+     * @return CompletableFuture<Void> - Completed once the turn has been written.
+     */
+    private CompletableFuture<Void> logTurn(RequestLog requestLog, String userId,
+                                            ResponseLog chosenResponse,
+                                            List<ResponseLog> responses) {
         TurnOrBuilder turnBuilder = Turn.newBuilder()
                 .setRequestLog(requestLog)
                 .setSessionId(_sessionId)
+                .setUserId(userId)
                 .setResponseLog(chosenResponse);
         for (ResponseLog response : responses) {
             ((Turn.Builder) turnBuilder).addCandidateResponse(response);
@@ -170,8 +328,13 @@ public class DialogAgentManager {
         Turn turn = ((Turn.Builder) turnBuilder).build();
 
         // Store the turn in the log file.
-        _logTurnManagerSingleton.addTurn(turn);
-        return chosenResponse;
+        CompletableFuture<Void> writeFuture = _logTurnManagerSingleton.addTurn(turn);
+        writeFuture.exceptionally(throwable -> {
+            logger.error("Unable to store the turn of the session " + _sessionId + ": " +
+                    throwable.getMessage());
+            return null;
+        });
+        return writeFuture;
     }
 
     /**
@@ -179,129 +342,256 @@ public class DialogAgentManager {
      *
      */
     public void listResponse(InteractionRequest interactionRequest, StreamObserver<Client.InteractionResponse> responseObserver) throws Exception {
-        if (checkNotNull(_agents, "Agents are not set up! Use the method" +
+        if (checkNotNull(_agentRoutingTable, "Agents are not set up! Use the method" +
                 " setUpAgents() first.").isEmpty()) {
             throw new IllegalArgumentException("The list of agents is empty!");
         }
-        ArrayList<AgentInterface> agents = (ArrayList<AgentInterface>) _agents.stream().filter
-                (agent -> interactionRequest.getChosenAgentsList().contains(agent.getAgentId()))
-                .collect(Collectors.toList());
+        List<AgentInterface> agents = _agentRoutingTable.route(interactionRequest);
 
         for (AgentInterface agent : agents) {
-            agent.streamingResponseFromAgent(interactionRequest, responseObserver);
+            agent.streamingResponseFromAgent(_sessionId, interactionRequest, responseObserver);
         }
     }
 
     /**
      * Get Request from Client and convert it to the RequestLog.
-     * Return the list of responses for a given request.
+     * Return the list of future responses for a given request.
      *
      * @param interactionRequest - The a data structure (implemented in log.proto) holding
      *         the interaction input passed to agents.
-     * @return List<ResponseLog> - The list of responses of all agents set up on the
-     *         setUpAgents(...) method call.
+     * @param callContext - The gRPC context of the client's call, or null.
+     * @return List<CompletableFuture<ResponseLog>> - The future responses of the agents chosen by
+     *         the request, or by the routing rules if the request doesn't choose any agents.
      */
-    private List<ResponseLog> getResponsesFromAgents(InteractionRequest interactionRequest) {
-        if (checkNotNull(_agents, "Agents are not set up! Use the method" +
+    private List<CompletableFuture<ResponseLog>> getResponsesFromAgents(InteractionRequest
+                                                                                interactionRequest,
+                                                                        @Nullable Context
+                                                                                callContext) {
+        if (checkNotNull(_agentRoutingTable, "Agents are not set up! Use the method" +
                 " setUpAgents() first.").isEmpty()) {
             throw new IllegalArgumentException("The list of agents is empty!");
         }
-        ArrayList<AgentInterface> agents = (ArrayList<AgentInterface>) _agents.stream().filter
-                (agent -> interactionRequest.getChosenAgentsList().contains(agent.getAgentId()))
-                .collect(Collectors.toList());
-        List<ResponseLog> listOfResponseLogs = asynchronousAgentCaller(interactionRequest, agents);
-        // TODO: Remove when the log saving is implemented. Currently we can see the output.
-        listOfResponseLogs.forEach(System.out::println);
-        return listOfResponseLogs;
+        List<AgentInterface> agents = _agentRoutingTable.route(interactionRequest);
+        return asynchronousAgentCaller(interactionRequest, agents, callContext);
     }
 
     /**
-     * Return the responses by calling agents asynchronously.
+     * Return the future responses by calling agents asynchronously.
      *
      * @param interactionRequest - The a data structure (implemented in log .proto) holding
      *         the interaction input sent to the agent.
-     * @return List<ResponseLog> - The list of responses of all agents set up on the
-     *         setUpAgents(...) method call.
+     * @param callContext - The gRPC context of the client's call, or null.
+     * @return List<CompletableFuture<ResponseLog>> - The future responses of the agents, each
+     *         completed once the agent has replied or timed out.
      */
-    private List<ResponseLog> asynchronousAgentCaller(InteractionRequest interactionRequest,
-                                                      List<AgentInterface> agents) {
-        Observable<AgentInterface> agentInterfaceObservable = Observable.fromIterable(agents);
-        return (agentInterfaceObservable.flatMap(agentObservable -> Observable
-                .just(agentObservable)
-                .subscribeOn(Schedulers.computation())
-                .take(_agentCallTimeoutSeconds, TimeUnit.SECONDS) // Take only the observable emitted (completed) within specified time.
-                .map(agent -> callForResponseAndValidate(agent, interactionRequest))
-        ).toList().blockingGet());
+    private List<CompletableFuture<ResponseLog>> asynchronousAgentCaller(InteractionRequest
+                                                                                 interactionRequest,
+                                                                         List<AgentInterface>
+                                                                                 agents,
+                                                                         @Nullable Context
+                                                                                 callContext) {
+        return agents.stream()
+                .map(agent -> callForResponseAndValidate(agent, interactionRequest, callContext)
+                        .thenApply(responseLog -> responseLog.toBuilder()
+                                .setAgentId(agent.getAgentId())
+                                .build()))
+                .collect(Collectors.toList());
     }
 
     /**
-     * Return the responses by calling agents synchronously.
+     * Combine the future responses into the future list of all the responses.
      *
-     * @param interactionRequest - The a data structure (implemented in log .proto) holding
-     *         the interaction input sent to the agent.
-     * @return List<ResponseLog> - The list of responses of all agents set up on the
-     *         setUpAgents(...) method call.
+     * @param responseFutures - The future responses of the agents.
+     * @return CompletableFuture<List<ResponseLog>> - Completed with the list of responses, once
+     *         every agent has replied or timed out.
      */
-    private List<ResponseLog> synchronousAgentCaller(InteractionRequest interactionRequest) {
-        List<ResponseLog> listOfResponseLogs = new ArrayList<>();
-        for (AgentInterface agent : _agents) {
-            listOfResponseLogs.add(callForResponseAndValidate(agent, interactionRequest));
-        }
-        return listOfResponseLogs;
+    private CompletableFuture<List<ResponseLog>> allResponses(List<CompletableFuture
+            <ResponseLog>> responseFutures) {
+        return CompletableFuture.allOf(responseFutures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> responseFutures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
     }
 
     /**
-     * Return a valid response from an agent within a set time period or return and unsuccessful
-     * response.
+     * Return a future valid response from an agent within a set time period or an unsuccessful
+     * response. The returned future never completes exceptionally.
+     * The time period is the timeout of the agent, shortened to the deadline of the client's
+     * call. The deadline is passed down to the agent, so it can give up its own work early.
      *
      * @param agent - The agent which
      * @param interactionRequest - The a data structure (implemented in log .proto) holding
      *         the interaction input sent to the agent.
-     * @return ResponseLog - Response from the agent or unsuccessful reponse.
+     * @param callContext - The gRPC context of the client's call, or null.
+     * @return CompletableFuture<ResponseLog> - Completed with the response from the agent or
+     *         unsuccessful reponse.
      */
-    private ResponseLog callForResponseAndValidate(AgentInterface agent, InteractionRequest
-            interactionRequest) {
+    private CompletableFuture<ResponseLog> callForResponseAndValidate(AgentInterface agent,
+                                                                      InteractionRequest
+                                                                              interactionRequest,
+                                                                      @Nullable Context
+                                                                              callContext) {
         // TODO(Adam): Resend a call if unsuccessful? To be done later on.
-        Callable<ResponseLog> callableCallForResponseAndValidate = () -> {
-            try {
-                return checkNotNull(agent.getResponseFromAgent(interactionRequest),
-                        "The response from Agent was null!");
-            } catch (Exception exception) {
-                return ResponseLog.newBuilder()
-                        .setMessageStatus(MessageStatus.UNSUCCESSFUL)
-                        .setErrorMessage(exception.getMessage())
-                        .setServiceProvider(agent.getServiceProvider())
-                        .setTime(Timestamp.newBuilder()
-                                .setSeconds(Instant.now()
-                                        .getEpochSecond())
-                                .setNanos(Instant.now()
-                                        .getNano())
-                                .build())
-                        .build();
-            }
-        };
-
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<ResponseLog> future = executor.submit(callableCallForResponseAndValidate);
-        ResponseLog responseLog;
+        CompletableFuture<ResponseLog> responseFuture = new CompletableFuture<>();
+        CircuitBreaker circuitBreaker = getCircuitBreaker(agent);
+        long permission = circuitBreaker == null ? CircuitBreaker.NOT_PERMITTED :
+                circuitBreaker.tryAcquirePermission();
+        if (circuitBreaker != null && permission == CircuitBreaker.NOT_PERMITTED) {
+            // Fail fast instead of waiting for an agent which is known to be failing.
+            responseFuture.complete(buildUnsuccessfulResponse(agent, new IllegalStateException
+                    ("The circuit breaker of the agent " + agent.getAgentId() + " is open, the " +
+                            "agent has not been called.")));
+            return responseFuture;
+        }
+        // False if the call ends for a reason unrelated to the agent, e.g. it is cancelled.
+        AtomicBoolean outcomeCausedByAgent = new AtomicBoolean(true);
+        if (circuitBreaker != null) {
+            long startNanos = System.nanoTime();
+            responseFuture.whenComplete((responseLog, throwable) -> {
+                if (outcomeCausedByAgent.get()) {
+                    circuitBreaker.onCallFinished(permission, responseLog.getMessageStatus()
+                            == MessageStatus.SUCCESSFUL, TimeUnit.NANOSECONDS.toMillis(System
+                            .nanoTime() - startNanos));
+                } else {
+                    circuitBreaker.releasePermission(permission);
+                }
+            });
+        }
+        Deadline deadline = getAgentCallDeadline(agent, callContext);
+        AgentCallExecutorSingleton agentCallExecutor = AgentCallExecutorSingleton
+                .getAgentCallExecutorSingleton();
+        CompletableFuture<ResponseLog> future;
         try {
-            responseLog = future.get(_agentCallTimeoutSeconds, TimeUnit.SECONDS);
-        } catch (Exception exception) {
-            future.cancel(true); // Cancel and send a thread interrupt.
-            ResponseLogOrBuilder responseLogBuilder = ResponseLog.newBuilder()
-                    .setMessageStatus(MessageStatus.UNSUCCESSFUL)
-                    .setServiceProvider(agent.getServiceProvider())
-                    .setTime(getCurrentTimeStamp());
-            if (exception.getMessage() == null) {
-                ((Builder) responseLogBuilder).setErrorMessage(exception.toString());
+            // The blocking agents run on the executor shared by all the sessions, so the number
+            // of threads is bounded; the asynchronous agents hold no thread.
+            future = agent.getResponseFromAgentAsync(interactionRequest, deadline);
+        } catch (RejectedExecutionException exception) {
+            outcomeCausedByAgent.set(false);
+            responseFuture.complete(buildUnsuccessfulResponse(agent, exception));
+            return responseFuture;
+        } catch (RuntimeException exception) {
+            responseFuture.complete(buildUnsuccessfulResponse(agent, exception));
+            return responseFuture;
+        }
+        future.whenComplete((responseLog, throwable) -> {
+            if (throwable == null) {
+                responseFuture.complete(responseLog != null ? responseLog :
+                        buildUnsuccessfulResponse(agent, new NullPointerException("The response " +
+                                "from Agent was null!")));
             } else {
-                ((Builder) responseLogBuilder).setErrorMessage(exception.getMessage());
+                Throwable cause = throwable instanceof CompletionException && throwable
+                        .getCause() != null ? throwable.getCause() : throwable;
+                responseFuture.complete(buildUnsuccessfulResponse(agent, cause instanceof
+                        Exception ? (Exception) cause : new Exception(cause)));
             }
-            responseLog = ((Builder) responseLogBuilder).build();
-        } finally {
-            executor.shutdownNow();
+        });
+        long timeoutMillis = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> timeout = agentCallExecutor.schedule(() -> abandonAgentCall
+                (responseFuture, future, agent, new TimeoutException("The agent " + agent
+                        .getAgentId() + " didn't respond within " + timeoutMillis + " " +
+                        "milliseconds.")), timeoutMillis, TimeUnit.MILLISECONDS);
+        responseFuture.whenComplete((responseLog, throwable) -> timeout.cancel(false));
+        if (callContext != null) {
+            // Stop waiting for the agent once the client has given up on the call. The deadline
+            // of the client's call expiring is the agent being too slow, not a cancellation.
+            Context.CancellationListener cancellationListener = context -> {
+                if (isDeadlineExceeded(context)) {
+                    abandonAgentCall(responseFuture, future, agent, new TimeoutException("The " +
+                            "agent " + agent.getAgentId() + " didn't respond before the " +
+                            "deadline of the call."));
+                    return;
+                }
+                outcomeCausedByAgent.set(false);
+                abandonAgentCall(responseFuture, future, agent, new CancellationException("The " +
+                        "call has been cancelled by the client."));
+            };
+            callContext.addListener(cancellationListener, MoreExecutors.directExecutor());
+            responseFuture.whenComplete((responseLog, throwable) -> callContext.removeListener
+                    (cancellationListener));
+        }
+        return responseFuture;
+    }
+
+    /**
+     * Return whether the context has been cancelled because its deadline expired, rather than
+     * by the client.
+     */
+    private static boolean isDeadlineExceeded(Context context) {
+        Throwable cause = context.cancellationCause();
+        return (context.getDeadline() != null && context.getDeadline().isExpired()) || cause
+                instanceof TimeoutException || (cause != null && Status.fromThrowable(cause)
+                .getCode() == Status.Code.DEADLINE_EXCEEDED);
+    }
+
+    /**
+     * Return the deadline of a call to the agent: the timeout set in its AgentConfig, or the
+     * deadline of the client's call if it comes earlier.
+     *
+     * @param agent - The agent to be called.
+     * @param callContext - The gRPC context of the client's call, or null.
+     * @return Deadline - The time after which the response of the agent is not waited for.
+     */
+    private Deadline getAgentCallDeadline(AgentInterface agent, @Nullable Context callContext) {
+        Deadline deadline = Deadline.after(getAgentTimeoutMillis(agent), TimeUnit.MILLISECONDS);
+        if (callContext != null && callContext.getDeadline() != null) {
+            deadline = deadline.minimum(callContext.getDeadline());
+        }
+        return deadline;
+    }
+
+    /**
+     * Return the timeout of a call to the agent set in its AgentConfig, or the default one.
+     */
+    private long getAgentTimeoutMillis(AgentInterface agent) {
+        AgentConfig agentConfig = _agentConfigs == null ? null : _agentConfigs.get(agent);
+        return agentConfig != null && agentConfig.getTimeoutMillis() > 0 ? agentConfig
+                .getTimeoutMillis() : _DEFAULT_AGENT_CALL_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Return the circuit breaker shared by all the sessions calling the agent, or null if the
+     * circuit breaker is not configured for the agent.
+     */
+    private CircuitBreaker getCircuitBreaker(AgentInterface agent) {
+        AgentConfig agentConfig = _agentConfigs == null ? null : _agentConfigs.get(agent);
+        return agentConfig == null ? null : CircuitBreaker.getCircuitBreaker(agentConfig,
+                getAgentTimeoutMillis(agent));
+    }
+
+    /**
+     * Complete the future response of the agent with an unsuccessful response and interrupt the
+     * call, unless the agent has already responded.
+     *
+     * @param responseFuture - The future response of the agent.
+     * @param call - The call to the agent being executed.
+     * @param agent - The agent being called.
+     * @param reason - The reason of abandoning the call.
+     */
+    private void abandonAgentCall(CompletableFuture<ResponseLog> responseFuture, Future<?> call,
+                                  AgentInterface agent, Exception reason) {
+        if (responseFuture.complete(buildUnsuccessfulResponse(agent, reason))) {
+            call.cancel(true); // Cancel and send a thread interrupt.
+        }
+    }
+
+    /**
+     * Return an unsuccessful response of an agent, holding the message of the exception.
+     *
+     * @param agent - The agent which failed to respond.
+     * @param exception - The reason of the failure.
+     * @return ResponseLog - The unsuccessful response.
+     */
+    private ResponseLog buildUnsuccessfulResponse(AgentInterface agent, Exception exception) {
+        ResponseLogOrBuilder responseLogBuilder = ResponseLog.newBuilder()
+                .setMessageStatus(MessageStatus.UNSUCCESSFUL)
+                .setServiceProvider(agent.getServiceProvider())
+                .setTime(getCurrentTimeStamp());
+        if (exception.getMessage() == null) {
+            ((Builder) responseLogBuilder).setErrorMessage(exception.toString());
+        } else {
+            ((Builder) responseLogBuilder).setErrorMessage(exception.getMessage());
         }
-        return responseLog;
+        return ((Builder) responseLogBuilder).build();
     }
 
 
@@ -310,9 +600,10 @@ public class DialogAgentManager {
      *
      * @param responses - The list of ResponseLog responses obtained from agents.
      * @return ResponseLog - One of the responses chosen using specified ranking/choosing method.
-     * @throws Exception - Throw when the list is not initialized or empty.
+     * @throws IllegalArgumentException - Throw when the list is not initialized or empty.
      */
-    private ResponseLog chooseOneResponse(List<ResponseLog> responses) throws Exception {
+    private ResponseLog chooseOneResponse(List<ResponseLog> responses) throws
+            IllegalArgumentException {
         if (checkNotNull(responses, "The list passed to the chooseOneResponse function is not " +
                 "initialized!").isEmpty()) {
             throw new IllegalArgumentException("The list of responses is empty!");
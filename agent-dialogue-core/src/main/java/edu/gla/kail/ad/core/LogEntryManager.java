@@ -1,28 +1,47 @@
 package edu.gla.kail.ad.core;
 
+import com.google.protobuf.CodedOutputStream;
+import edu.gla.kail.ad.CoreConfiguration.CoreConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
 import edu.gla.kail.ad.core.Log.LogEntry;
-import edu.gla.kail.ad.core.Log.LogEntry.Builder;
-import edu.gla.kail.ad.core.Log.LogEntryOrBuilder;
 import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
- * Reformat all the turns from a file generated by LogTurnManagerSingleton to separate files of
- * LogEntries for each session.
+ * Reformat all the turns from the files (segments) generated by LogTurnManagerSingleton to
+ * separate files of LogEntries for each session.
  * TODO(Adam): Change LogEntryManager, so that it creates a file with LogEntries, not multiple
  * LogEntry files!
  */
 public final class LogEntryManager {
+    private static final long _DEFAULT_SEGREGATION_MEMORY_BYTES = 64L << 20;
+    private static final int _BUFFER_SIZE = 1 << 16;
+    // The order of the turns in a LogEntry: from oldest to newest.
+    private static final Comparator<Turn> _TURN_ORDER = Comparator
+            .comparing(Turn::getSessionId)
+            .thenComparingLong(turn -> turn.getRequestLog().getTime().getSeconds())
+            .thenComparingInt(turn -> turn.getRequestLog().getTime().getNanos());
+
     /**
      * Segregate turns into LogEntries and safe LogEntries in a particular directory.
      *
@@ -32,36 +51,338 @@ public final class LogEntryManager {
      */
     public static void segregateFiles(String readDirectory, String writeDirectory) throws
             IOException {
-        InputStream inputStream = new FileInputStream(readDirectory);
-        Map<String, List<Turn>> mapOfTurns = new HashMap<>();
-        // Store all the turns in the map: key - sessionID, value - turn.
-        while (true) {
-            Turn turn = Turn.parseDelimitedFrom(inputStream);
-            if (turn == null) {
-                break;
-            }
-            if (!mapOfTurns.containsKey(turn.getSessionId())) {
-                mapOfTurns.put(turn.getSessionId(), new ArrayList<Turn>());
+        segregateFiles(Collections.singletonList(readDirectory), writeDirectory);
+    }
+
+    /**
+     * Segregate the turns of all the segments of a day directory, listed in its manifest, into
+     * LogEntries stored in the same directory.
+     *
+     * @param dayDirectory - The day directory created by LogTurnManagerSingleton.
+     * @throws IOException - Thrown when the manifest or a segment cannot be read.
+     */
+    public static void segregateDay(String dayDirectory) throws IOException {
+        List<String> segmentPaths = new ArrayList<>();
+        for (TurnLogSegment segment : readManifest(dayDirectory)) {
+            segmentPaths.add(dayDirectory + "/" + segment.getFileName());
+        }
+        segregateFiles(segmentPaths, dayDirectory);
+    }
+
+    /**
+     * Return the closed segments of a day directory, listed in its manifest.
+     *
+     * @param dayDirectory - The day directory created by LogTurnManagerSingleton.
+     * @return List<TurnLogSegment> - The segments, from the oldest to the newest.
+     * @throws IOException - Thrown when the manifest cannot be read.
+     */
+    public static List<TurnLogSegment> readManifest(String dayDirectory) throws IOException {
+        List<TurnLogSegment> segments = new ArrayList<>();
+        File manifest = new File(dayDirectory, TurnLogWriter.TURN_LOG_MANIFEST_FILE_NAME);
+        if (!manifest.exists()) {
+            return segments;
+        }
+        try (InputStream inputStream = new FileInputStream(manifest)) {
+            TurnLogSegment segment;
+            while ((segment = TurnLogSegment.parseDelimitedFrom(inputStream)) != null) {
+                segments.add(segment);
             }
-            mapOfTurns.get(turn.getSessionId()).add(turn);
         }
+        return segments;
+    }
 
-        // Write all the turns to separate LogEntry files.
+    /**
+     * Segregate the turns of several files into LogEntries, one for each session, and save the
+     * LogEntries in a particular directory.
+     *
+     * The turns are sorted externally, so the memory used doesn't depend on the size of the
+     * files: each file is read into a buffer of bounded size, which is sorted by the session ID
+     * and the time of the request and spilled to a run file whenever it gets full. The runs are
+     * then merged, and the turns of each session are streamed into its LogEntry file. The files
+     * are read and sorted in parallel, sharing the memory set by the segregation_memory_bytes of
+     * the TurnLogConfig. The same memory bounds the number of runs merged at once, each of them
+     * being read through a buffer of _BUFFER_SIZE: if there are more runs, they are first merged
+     * into bigger runs, in as many passes as needed.
+     *
+     * The memory counts the serialized size of the buffered turns, the parsed turns take a few
+     * times more of the heap.
+     *
+     * @param readFiles - The paths of the files of turns to be read, e.g. the segments of a day.
+     * @param writeDirectory - Directory in which LogEntry files are going to be stored.
+     * @throws IOException - Thrown when a file cannot be read or written.
+     */
+    public static void segregateFiles(List<String> readFiles, String writeDirectory) throws
+            IOException {
         directoryExistsOrCreate(writeDirectory);
-        for (List<Turn> listOfTurns : mapOfTurns.values()) {
-            LogEntryOrBuilder logEntryOrBuilder = LogEntry.newBuilder().setSessionId(listOfTurns
-                    .get(0).getSessionId());
-            // Sort the turns: from oldest to newest.
-            listOfTurns.sort((turn1, turn2) -> turn1.getRequestLog().getTime().getSeconds() >
-                    turn2.getRequestLog().getTime().getSeconds() ? 1 : turn1.getRequestLog()
-                    .getTime().getNanos() > turn2.getRequestLog().getTime().getNanos() ? 1 : -1);
-            for (Turn turn : listOfTurns) {
-                ((Builder) logEntryOrBuilder).addTurn(turn);
+        if (readFiles.isEmpty()) {
+            return;
+        }
+        int parallelism = Math.min(readFiles.size(), Runtime.getRuntime().availableProcessors());
+        long bufferBytes = Math.max(1, getSegregationMemoryBytes() / parallelism);
+        Path runDirectory = Files.createTempDirectory(Paths.get(writeDirectory), ".segregation");
+        List<Path> runs = Collections.synchronizedList(new ArrayList<>());
+        try {
+            readFiles.parallelStream().forEach(readFile -> {
+                try {
+                    runs.addAll(spillSortedRuns(readFile, runDirectory, bufferBytes));
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+            List<Path> finalRuns = mergeIntoRuns(runs, runDirectory, getMaxMergedRuns());
+            try (LogEntryWriter logEntryWriter = new LogEntryWriter(writeDirectory)) {
+                mergeRuns(finalRuns, logEntryWriter);
+            }
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        } finally {
+            // The runs spilled and the intermediate runs of the merge.
+            File[] runFiles = runDirectory.toFile().listFiles();
+            if (runFiles != null) {
+                for (File runFile : runFiles) {
+                    Files.deleteIfExists(runFile.toPath());
+                }
+            }
+            Files.deleteIfExists(runDirectory);
+        }
+    }
+
+    /**
+     * Return the turn log configuration set in the configuration file.
+     */
+    private static TurnLogConfig getTurnLogConfig() {
+        CoreConfig coreConfig = PropertiesSingleton.getCoreConfig();
+        return coreConfig != null ? coreConfig.getTurnLog() : TurnLogConfig.getDefaultInstance();
+    }
+
+    /**
+     * Return the memory used for sorting the turns, set in the configuration file.
+     */
+    private static long getSegregationMemoryBytes() {
+        return getTurnLogConfig().getSegregationMemoryBytes() > 0 ? getTurnLogConfig()
+                .getSegregationMemoryBytes() : _DEFAULT_SEGREGATION_MEMORY_BYTES;
+    }
+
+    /**
+     * Return the number of runs merged at once, so that their read buffers fit in the memory set
+     * in the configuration file.
+     */
+    private static int getMaxMergedRuns() {
+        // One buffer is kept for the output of the merge.
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, getSegregationMemoryBytes() /
+                _BUFFER_SIZE - 1));
+    }
+
+    /**
+     * Open the LogEntry file for writing, compressed in blocks if a Compression is set in the
+     * configuration file. The files are read with BlockCompression.openInputStream.
+     */
+    private static OutputStream openLogEntryOutputStream(String path) throws IOException {
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(path),
+                _BUFFER_SIZE);
+        TurnLogConfig config = getTurnLogConfig();
+        if (config.getCompression() == Compression.NONE) {
+            return outputStream;
+        }
+        return new BlockCompression.BlockOutputStream(outputStream, config.getCompression(),
+                BlockCompression.getBlockSize(config));
+    }
+
+    /**
+     * Read the file into sorted runs: the turns are buffered until their size reaches the limit,
+     * then sorted and written to a run file.
+     *
+     * @param readFile - The path of the file of turns to be read.
+     * @param runDirectory - The directory the run files are created in.
+     * @param bufferBytes - The maximum size of the turns buffered.
+     * @return List<Path> - The run files, each holding length-delimited turns sorted by the
+     *         session ID and the time of the request.
+     * @throws IOException - Thrown when the file cannot be read or a run cannot be written.
+     */
+    private static List<Path> spillSortedRuns(String readFile, Path runDirectory, long
+            bufferBytes) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        List<Turn> buffer = new ArrayList<>();
+        long[] bufferedBytes = {0};
+        try {
+            // A damaged record only loses the tail of the file, not the whole file.
+            TurnLogSegmentFile.readTurns(readFile, turn -> {
+                buffer.add(turn);
+                bufferedBytes[0] += turn.getSerializedSize();
+                if (bufferedBytes[0] >= bufferBytes) {
+                    runs.add(spillRun(buffer, runDirectory));
+                    bufferedBytes[0] = 0;
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(spillRun(buffer, runDirectory));
+        }
+        return runs;
+    }
+
+    /**
+     * Sort the buffered turns, write them to a new run file and clear the buffer.
+     */
+    private static Path spillRun(List<Turn> buffer, Path runDirectory) {
+        buffer.sort(_TURN_ORDER);
+        try {
+            Path run = Files.createTempFile(runDirectory, "run", "");
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream
+                    (run), _BUFFER_SIZE)) {
+                for (Turn turn : buffer) {
+                    turn.writeDelimitedTo(outputStream);
+                }
+            }
+            buffer.clear();
+            return run;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * The next turn of a run file being merged.
+     */
+    private static final class RunReader implements Closeable {
+        private final InputStream _inputStream;
+        private final int _index; // Keeps the order of the runs for the turns of the same time.
+        private Turn _head;
+
+        private RunReader(Path run, int index) throws IOException {
+            _inputStream = new BufferedInputStream(Files.newInputStream(run), _BUFFER_SIZE);
+            _index = index;
+        }
+
+        /**
+         * Read the next turn of the run.
+         *
+         * @return boolean - False if the run has ended.
+         */
+        private boolean advance() throws IOException {
+            _head = Turn.parseDelimitedFrom(_inputStream);
+            return _head != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _inputStream.close();
+        }
+    }
+
+    /**
+     * Receives the merged turns, in order.
+     */
+    private interface TurnSink {
+        void accept(Turn turn) throws IOException;
+    }
+
+    /**
+     * Streams the merged turns of each session into its LogEntry file.
+     */
+    private static final class LogEntryWriter implements TurnSink, Closeable {
+        private final String _writeDirectory;
+        private String _currentSessionId = null;
+        private OutputStream _outputStream = null;
+        private CodedOutputStream _codedOutputStream = null;
+
+        private LogEntryWriter(String writeDirectory) {
+            _writeDirectory = writeDirectory;
+        }
+
+        @Override
+        public void accept(Turn turn) throws IOException {
+            if (!turn.getSessionId().equals(_currentSessionId)) {
+                close();
+                _currentSessionId = turn.getSessionId();
+                _outputStream = openLogEntryOutputStream(_writeDirectory + "/" +
+                        _currentSessionId + ".log");
+                _codedOutputStream = CodedOutputStream.newInstance(_outputStream);
+                // The file holds a serialized LogEntry, written field by field.
+                _codedOutputStream.writeString(LogEntry.SESSION_ID_FIELD_NUMBER,
+                        _currentSessionId);
+            }
+            _codedOutputStream.writeMessage(LogEntry.TURN_FIELD_NUMBER, turn);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_outputStream == null) {
+                return;
+            }
+            try {
+                _codedOutputStream.flush();
+            } finally {
+                _outputStream.close();
+                _outputStream = null;
+            }
+        }
+    }
+
+    /**
+     * Merge the sorted runs into new runs, by groups of at most maxMergedRuns runs, until there
+     * are no more than maxMergedRuns runs left. The merged runs are deleted.
+     *
+     * @param runs - The sorted runs, in the order their turns of the same time are kept in.
+     * @param runDirectory - The directory the new runs are created in.
+     * @param maxMergedRuns - The maximum number of runs merged at once.
+     * @return List<Path> - The runs left, in the same order.
+     * @throws IOException - Thrown when a run cannot be read or written.
+     */
+    private static List<Path> mergeIntoRuns(List<Path> runs, Path runDirectory, int
+            maxMergedRuns) throws IOException {
+        while (runs.size() > maxMergedRuns) {
+            List<Path> mergedRuns = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += maxMergedRuns) {
+                List<Path> group = runs.subList(i, Math.min(runs.size(), i + maxMergedRuns));
+                if (group.size() == 1) {
+                    mergedRuns.add(group.get(0));
+                    continue;
+                }
+                Path mergedRun = Files.createTempFile(runDirectory, "run", "");
+                try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream
+                        (mergedRun), _BUFFER_SIZE)) {
+                    mergeRuns(group, turn -> turn.writeDelimitedTo(outputStream));
+                }
+                for (Path run : group) {
+                    Files.delete(run);
+                }
+                mergedRuns.add(mergedRun);
+            }
+            runs = mergedRuns;
+        }
+        return runs;
+    }
+
+    /**
+     * Merge the sorted runs into the sink. Only the current turn of each run is held in memory.
+     */
+    private static void mergeRuns(List<Path> runs, TurnSink sink) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), Comparator
+                .comparing((RunReader runReader) -> runReader._head, _TURN_ORDER)
+                .thenComparingInt(runReader -> runReader._index));
+        List<RunReader> runReaders = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                RunReader runReader = new RunReader(run, runReaders.size());
+                runReaders.add(runReader);
+                if (runReader.advance()) {
+                    queue.add(runReader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader runReader = queue.poll();
+                sink.accept(runReader._head);
+                if (runReader.advance()) {
+                    queue.add(runReader);
+                }
+            }
+        } finally {
+            for (RunReader runReader : runReaders) {
+                runReader.close();
             }
-            OutputStream outputStream = new FileOutputStream(writeDirectory + "/" +
-                    listOfTurns.get(0).getSessionId() + ".log");
-            ((Builder) logEntryOrBuilder).build().writeTo(outputStream);
-            outputStream.close();
         }
     }
 
@@ -2,24 +2,24 @@ package edu.gla.kail.ad.core;
 
 import edu.gla.kail.ad.core.Log.Turn;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.time.ZonedDateTime;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Manage turns and store them in the output stream.
- * TODO(Adam): Implement the use of LogStash, or maybe log4j, or make this thread safe.
+ * Manage turns and store them in the log files.
+ * The turns are written asynchronously by TurnLogWriter, which groups the turns of all the
+ * sessions into batched writes and splits the log into segments, stored in a directory for each
+ * day.
  */
 public final class LogTurnManagerSingleton {
     private static LogTurnManagerSingleton _instance;
-    private static OutputStream _outputStream; // The stream used for writing all the log entries
-    // to.
+    private static TurnLogWriter _turnLogWriter; // The writer used for writing all the log
+    // entries, or null once closed by saveAndExit.
     private static String _logDailyTurnsPath; // A path for storing all folders with LogTurns for
     // each day.
-    private static String _currentDailyTurnPath; // A path which the OutputStream is being
-    // written to.
+    private static TurnLogReader _turnLogReader; // The reader of the closed segments.
+    // The live subscribers to the turns, kept when the writer is reopened.
+    private static final TurnTail _turnTail = new TurnTail();
 
     /**
      * Get instance of this class.
@@ -31,52 +31,84 @@ public final class LogTurnManagerSingleton {
             _instance = new LogTurnManagerSingleton();
             // Directory to the folder with logs.
             _logDailyTurnsPath = PropertiesSingleton.getCoreConfig().getLogStoragePath() +
-                    "/DailyTurns/" + ZonedDateTime.now().toLocalDate().toString() + "/";
-            directoryExistsOrCreate(_logDailyTurnsPath);
-            _currentDailyTurnPath = _logDailyTurnsPath + ZonedDateTime.now().toLocalDateTime()
-                    .toString();
-            _outputStream = new FileOutputStream(_currentDailyTurnPath);
+                    "/DailyTurns/";
+            _turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, PropertiesSingleton
+                    .getCoreConfig().getTurnLog());
+            _turnLogReader = new TurnLogReader(_logDailyTurnsPath);
 
         }
         return _instance;
     }
 
     /**
-     * Validate whether the directory exists and if not, then create it.
+     * Return the writer, reopened if it has been closed by saveAndExit.
      */
-    private static void directoryExistsOrCreate(String path) throws IOException {
-        File directory = new File(path);
-        if (!directory.exists()) {
-            directory.mkdirs();
-        }
-        if (!directory.exists()) {
-            throw new IOException("Unable to create directory." + path);
+    private static synchronized TurnLogWriter getTurnLogWriter() throws IOException {
+        if (_turnLogWriter == null) {
+            _turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, PropertiesSingleton
+                    .getCoreConfig().getTurnLog());
         }
+        return _turnLogWriter;
     }
 
     /**
-     * Add the message (Turn) to the Output buffer.
+     * Queue the message (Turn) to be written to the log file. The method doesn't wait for the
+     * write, the returned future can be used for that. The accepted turn is published to the
+     * subscribers of the TurnTail straight away.
      *
      * @param turn - The instance of Turn from proto buffer to be saved.
-     * @throws IOException - Thrown when... TODO
+     * @return CompletableFuture<Void> - Completed once the turn has been written according to
+     *         the durability policy of the TurnLogConfig, or completed exceptionally with the
+     *         IOException if the turn couldn't be written.
      */
-    public synchronized void addTurn(Turn turn) throws IOException {
-        // TODO(Adam): Handle the exception.
-        turn.writeDelimitedTo(_outputStream);
-        _outputStream.flush();
+    public CompletableFuture<Void> addTurn(Turn turn) {
+        CompletableFuture<Void> writeFuture;
+        try {
+            writeFuture = getTurnLogWriter().append(turn);
+        } catch (IOException exception) {
+            writeFuture = new CompletableFuture<>();
+            writeFuture.completeExceptionally(exception);
+            return writeFuture;
+        }
+        if (!writeFuture.isCompletedExceptionally()) {
+            _turnTail.publish(turn);
+        }
+        return writeFuture;
+    }
+
+    /**
+     * Return the reader of the turns stored in the closed segments of the log.
+     */
+    public TurnLogReader getTurnLogReader() {
+        return _turnLogReader;
+    }
+
+    /**
+     * Return the publisher of the turns to the live subscribers.
+     */
+    public TurnTail getTurnTail() {
+        return _turnTail;
     }
 
     /**
-     * Close the stream = save the file; set the instance to null.
+     * Write the queued turns and close the current segment; segregate the turns of all the
+     * segments of the days written to into LogEntries stored in their day directories.
+     * No new segment is opened: the writer is only reopened by the next addTurn, if any.
      *
      * @throws IOException - Thrown when... TODO
      */
     public void saveAndExit() throws IOException {
         // TODO(Adam): Handle the exception.
-        // TODO(Adam): Code below is buggy - it can create issues. Resolve it!
-        _outputStream.close();
-        LogEntryManager.segregateFiles(_currentDailyTurnPath, _logDailyTurnsPath);
-        _instance = null;
-        _instance = LogTurnManagerSingleton.getLogTurnManagerSingleton();
+        TurnLogWriter turnLogWriter;
+        synchronized (LogTurnManagerSingleton.class) {
+            turnLogWriter = _turnLogWriter;
+            _turnLogWriter = null;
+        }
+        if (turnLogWriter == null) {
+            return;
+        }
+        for (String dayDirectory : turnLogWriter.close()) {
+            LogEntryManager.segregateDay(dayDirectory);
+        }
     }
 }
@@ -0,0 +1,59 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * The serial lane of the requests of a session: each task starts once the task submitted before
+ * it has finished, so the turns of a session are processed and logged in the order the requests
+ * arrived. The lanes hold no thread: a task only starts asynchronous work and returns the future
+ * of its completion, and the next task is started on the executor shared by all the sessions,
+ * so different sessions run fully in parallel.
+ */
+final class SessionMailbox {
+    // Only starts the tasks, which return as soon as their asynchronous work has been started.
+    private static final Executor _executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+            .availableProcessors(), new ThreadFactoryBuilder()
+            .setNameFormat("session-mailbox-%d")
+            .setDaemon(true)
+            .build());
+
+    // Completed once the last submitted task has finished.
+    private final AtomicReference<CompletableFuture<?>> _tail = new AtomicReference<>
+            (CompletableFuture.completedFuture(null));
+
+    /**
+     * Submit the task, started once the previous tasks have finished, whether successfully or
+     * not.
+     *
+     * @param task - Starts the asynchronous work and returns the future of its completion.
+     * @return CompletableFuture<Void> - Completed once the future returned by the task has
+     *         completed.
+     */
+    CompletableFuture<Void> submit(Supplier<? extends CompletableFuture<?>> task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture<?> previous = _tail.getAndSet(result);
+        previous.whenCompleteAsync((ignored, throwable) -> {
+            CompletableFuture<?> taskFuture;
+            try {
+                taskFuture = task.get();
+            } catch (RuntimeException exception) {
+                taskFuture = new CompletableFuture<>();
+                taskFuture.completeExceptionally(exception);
+            }
+            taskFuture.whenComplete((value, taskThrowable) -> {
+                if (taskThrowable == null) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(taskThrowable);
+                }
+            });
+        }, _executor);
+        return result;
+    }
+}
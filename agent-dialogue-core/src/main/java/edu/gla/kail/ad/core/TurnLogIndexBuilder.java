@@ -0,0 +1,110 @@
+package edu.gla.kail.ad.core;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.Offsets;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.TimeBlock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Build the index of a segment file of the turn log from the records appended to the segment,
+ * and write it next to the segment (see TurnLogReader).
+ */
+final class TurnLogIndexBuilder {
+    static final String TURN_LOG_INDEX_SUFFIX = ".idx";
+
+    // The number of records in a block of the sparse time index.
+    private static final int _TIME_BLOCK_SIZE = 128;
+
+    private final Map<String, Offsets.Builder> _sessionOffsets = new LinkedHashMap<>();
+    private final Map<String, Offsets.Builder> _userOffsets = new LinkedHashMap<>();
+    private final TurnLogSegmentIndex.Builder _index = TurnLogSegmentIndex.newBuilder();
+    private TimeBlock.Builder _timeBlock;
+
+    /**
+     * Add the record of the Turn to the index.
+     *
+     * @param offset - The position of the record in the segment file.
+     * @param turn - The Turn of the record.
+     */
+    void add(long offset, Turn turn) {
+        _sessionOffsets.computeIfAbsent(turn.getSessionId(), key -> Offsets.newBuilder())
+                .addOffset(offset);
+        if (!turn.getUserId().isEmpty()) {
+            _userOffsets.computeIfAbsent(turn.getUserId(), key -> Offsets.newBuilder())
+                    .addOffset(offset);
+        }
+        Timestamp time = turn.getRequestLog().getTime();
+        if (_timeBlock == null || _timeBlock.getNumberOfTurns() == _TIME_BLOCK_SIZE) {
+            addTimeBlock();
+            _timeBlock = TimeBlock.newBuilder()
+                    .setOffset(offset)
+                    .setMinTime(time)
+                    .setMaxTime(time);
+        }
+        _timeBlock.setNumberOfTurns(_timeBlock.getNumberOfTurns() + 1);
+        // The turns are logged once their responses are received, so the request times aren't
+        // in the order of the records.
+        if (Timestamps.compare(time, _timeBlock.getMinTime()) < 0) {
+            _timeBlock.setMinTime(time);
+        }
+        if (Timestamps.compare(time, _timeBlock.getMaxTime()) > 0) {
+            _timeBlock.setMaxTime(time);
+        }
+    }
+
+    private void addTimeBlock() {
+        if (_timeBlock != null) {
+            _index.addTimeBlock(_timeBlock);
+        }
+    }
+
+    /**
+     * Build the index of the segment.
+     *
+     * @param fileName - The name of the segment file.
+     */
+    TurnLogSegmentIndex build(String fileName) {
+        addTimeBlock();
+        _timeBlock = null;
+        _sessionOffsets.forEach((sessionId, offsets) -> _index.putSessionOffsets(sessionId,
+                offsets.build()));
+        _userOffsets.forEach((userId, offsets) -> _index.putUserOffsets(userId, offsets.build()));
+        return _index.setFileName(fileName).build();
+    }
+
+    /**
+     * Return the path of the index of the segment file.
+     */
+    static String getIndexPath(String segmentPath) {
+        return segmentPath + TURN_LOG_INDEX_SUFFIX;
+    }
+
+    /**
+     * Write the index of the segment file. The index is written to a temporary file first, so
+     * the readers never see a partly written index.
+     *
+     * @param segmentPath - The path of the segment file.
+     * @param index - The index of the segment.
+     * @throws IOException - Thrown when the index cannot be written.
+     */
+    static void write(String segmentPath, TurnLogSegmentIndex index) throws IOException {
+        Path indexPath = Paths.get(getIndexPath(segmentPath));
+        Path temporaryPath = Paths.get(indexPath + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporaryPath)) {
+            index.writeTo(outputStream);
+        }
+        Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,235 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.Offsets;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.TimeBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Read the turns of a session, of a user or of a time range from the turn log, without parsing
+ * the whole log of the day. The turns matching several conditions, over several days, are read
+ * with a TurnQueryCursor.
+ * The closed segments of a day are listed in the manifest of the day directory, and each of them
+ * has an index written next to it (see TurnLogIndexBuilder). The index maps the session IDs and
+ * the user IDs to the offsets of their records, so only the records of the session are read;
+ * its sparse time index limits a time range query to the blocks of records overlapping the
+ * range. The indexes of the closed segments never change, so the recently used ones are kept in
+ * memory.
+ *
+ * Only the closed segments are read: the turns of the segment being written are not visible
+ * until the segment is closed.
+ */
+public final class TurnLogReader {
+    private static final Logger logger = LoggerFactory.getLogger(TurnLogReader.class);
+
+    private static final int _MAX_NUMBER_OF_CACHED_INDEXES = 256;
+
+    // The directory holding the day directories.
+    private final String _logDailyTurnsPath;
+    // The indexes by the path of their segment.
+    private final LoadingCache<String, TurnLogSegmentIndex> _indexes = CacheBuilder
+            .newBuilder()
+            .maximumSize(_MAX_NUMBER_OF_CACHED_INDEXES)
+            .build(new CacheLoader<String, TurnLogSegmentIndex>() {
+                @Override
+                public TurnLogSegmentIndex load(String segmentPath) throws IOException {
+                    return loadIndex(segmentPath);
+                }
+            });
+
+    /**
+     * @param logDailyTurnsPath - The directory holding the day directories of the turn log.
+     */
+    public TurnLogReader(String logDailyTurnsPath) {
+        _logDailyTurnsPath = logDailyTurnsPath;
+    }
+
+    /**
+     * Return the turns of the session logged on the day, in the order they were logged.
+     *
+     * @param day - The day the turns were logged.
+     * @param sessionId - The ID of the session.
+     * @throws IOException - Thrown when a segment or its index cannot be read.
+     */
+    public List<Turn> getSessionTurns(LocalDate day, String sessionId) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        for (String segmentPath : getSegmentPaths(day)) {
+            TurnLogSegmentIndex index = getIndex(segmentPath);
+            if (index == null) {
+                readAllTurns(segmentPath, turn -> turn.getSessionId().equals(sessionId), turns);
+            } else if (index.containsSessionOffsets(sessionId)) {
+                readTurnsAt(segmentPath, index.getSessionOffsetsOrThrow(sessionId), turns);
+            }
+        }
+        return turns;
+    }
+
+    /**
+     * Return the turns of the user logged on the day, in the order they were logged.
+     *
+     * @param day - The day the turns were logged.
+     * @param userId - The ID of the user.
+     * @throws IOException - Thrown when a segment or its index cannot be read.
+     */
+    public List<Turn> getUserTurns(LocalDate day, String userId) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        for (String segmentPath : getSegmentPaths(day)) {
+            TurnLogSegmentIndex index = getIndex(segmentPath);
+            if (index == null) {
+                readAllTurns(segmentPath, turn -> turn.getUserId().equals(userId), turns);
+            } else if (index.containsUserOffsets(userId)) {
+                readTurnsAt(segmentPath, index.getUserOffsetsOrThrow(userId), turns);
+            }
+        }
+        return turns;
+    }
+
+    /**
+     * Return the turns logged on the day, whose requests were created in the time range.
+     *
+     * @param day - The day the turns were logged.
+     * @param startTime - The start of the range, inclusive.
+     * @param endTime - The end of the range, inclusive.
+     * @throws IOException - Thrown when a segment or its index cannot be read.
+     */
+    public List<Turn> getTurns(LocalDate day, Timestamp startTime, Timestamp endTime) throws
+            IOException {
+        Predicate<Turn> inRange = turn -> Timestamps.compare(turn.getRequestLog().getTime(),
+                startTime) >= 0 && Timestamps.compare(turn.getRequestLog().getTime(), endTime) <= 0;
+        List<Turn> turns = new ArrayList<>();
+        for (String segmentPath : getSegmentPaths(day)) {
+            TurnLogSegmentIndex index = getIndex(segmentPath);
+            if (index == null) {
+                readAllTurns(segmentPath, inRange, turns);
+                continue;
+            }
+            try (FileChannel fileChannel = FileChannel.open(Paths.get(segmentPath),
+                    StandardOpenOption.READ)) {
+                TurnLogSegmentFile.RecordReader recordReader = new TurnLogSegmentFile
+                        .RecordReader(fileChannel);
+                for (TimeBlock timeBlock : index.getTimeBlockList()) {
+                    if (Timestamps.compare(timeBlock.getMaxTime(), startTime) < 0 || Timestamps
+                            .compare(timeBlock.getMinTime(), endTime) > 0) {
+                        continue;
+                    }
+                    TurnLogSegmentFile.readTurnsAt(recordReader, timeBlock.getOffset(), timeBlock
+                            .getNumberOfTurns(), turn -> {
+                        if (inRange.test(turn)) {
+                            turns.add(turn);
+                        }
+                    });
+                }
+            }
+        }
+        return turns;
+    }
+
+    /**
+     * Open a cursor over the turns matching the filter.
+     *
+     * @param filter - The conditions the turns must meet.
+     * @param pageToken - The page token of a previous cursor to continue after, or null.
+     * @return TurnQueryCursor - The cursor, which must be closed.
+     * @throws IllegalArgumentException - Thrown when the page token is invalid.
+     */
+    public TurnQueryCursor query(TurnFilter filter, @Nullable String pageToken) {
+        return new TurnQueryCursor(this, _logDailyTurnsPath, filter, pageToken);
+    }
+
+    /**
+     * Return the paths of the closed segments of the day, in the order they were written.
+     */
+    private List<String> getSegmentPaths(LocalDate day) throws IOException {
+        String dayDirectory = _logDailyTurnsPath + day.toString() + "/";
+        List<String> segmentPaths = new ArrayList<>();
+        for (TurnLogSegment segment : LogEntryManager.readManifest(dayDirectory)) {
+            segmentPaths.add(dayDirectory + segment.getFileName());
+        }
+        return segmentPaths;
+    }
+
+    /**
+     * Return the index of the segment, or null if the segment is in the older format of
+     * length-delimited Turns, which has no index.
+     */
+    TurnLogSegmentIndex getIndex(String segmentPath) throws IOException {
+        if (!TurnLogSegmentFile.isChecksummed(segmentPath)) {
+            return null;
+        }
+        try {
+            return _indexes.get(segmentPath);
+        } catch (ExecutionException | UncheckedExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+            throw new IOException("Unable to load the index of the segment " + segmentPath,
+                    exception.getCause());
+        }
+    }
+
+    /**
+     * Read the index written next to the segment. A missing index (e.g. the server crashed
+     * after the segment was closed) is rebuilt from the segment and written.
+     */
+    private static TurnLogSegmentIndex loadIndex(String segmentPath) throws IOException {
+        String indexPath = TurnLogIndexBuilder.getIndexPath(segmentPath);
+        if (new File(indexPath).exists()) {
+            try (InputStream inputStream = new FileInputStream(indexPath)) {
+                return TurnLogSegmentIndex.parseFrom(inputStream);
+            }
+        }
+        logger.warn("Rebuilding the missing index of the turn log segment " + segmentPath);
+        TurnLogSegmentIndex index = TurnLogSegmentFile.buildIndex(segmentPath);
+        TurnLogIndexBuilder.write(segmentPath, index);
+        return index;
+    }
+
+    /**
+     * Read the records of the segment at the offsets. A single reader keeps the last block
+     * read, so the records sharing a compressed block decompress it once.
+     */
+    private static void readTurnsAt(String segmentPath, Offsets offsets, List<Turn> turns)
+            throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(segmentPath),
+                StandardOpenOption.READ)) {
+            TurnLogSegmentFile.RecordReader recordReader = new TurnLogSegmentFile.RecordReader
+                    (fileChannel);
+            for (long offset : offsets.getOffsetList()) {
+                turns.add(recordReader.read(offset));
+            }
+        }
+    }
+
+    private static void readAllTurns(String segmentPath, Predicate<Turn> filter, List<Turn>
+            turns) throws IOException {
+        TurnLogSegmentFile.readTurns(segmentPath, turn -> {
+            if (filter.test(turn)) {
+                turns.add(turn);
+            }
+        });
+    }
+}
@@ -0,0 +1,652 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A segment file of the turn log in the checksummed format, appended to through memory mapping.
+ *
+ * The file starts with the 8-byte header: the magic number and the version of the format. It is
+ * followed by the records, each made of the 16-byte record header - the length of the Turn
+ * (int), the CRC32C checksum of the Turn (int) and the sequence number of the record (long) -
+ * and the serialized Turn. The Turns are serialized straight into the mapped file, and read
+ * straight from it.
+ *
+ * The file is mapped ahead of the records, so after a crash it can end with a torn record or
+ * with zeros. Such a tail is found by the recovery scan - the first record with an invalid
+ * length, checksum or sequence number ends the valid part of the file - and truncated.
+ * The readers also accept the older files of length-delimited Turns (detected by the missing
+ * magic number), reading them up to the first damaged Turn.
+ *
+ * The index of the records is written next to the file when it is closed or recovered (see
+ * TurnLogIndexBuilder), so the records can be read at their offsets.
+ *
+ * In the compressed version of the format, the file header is followed by the blocks of
+ * BlockCompression, each holding the records of a part of the file. The blocks are written
+ * when they are full or when the records are forced to the disk, and a damaged block ends the
+ * valid part of the file. The offset of a record is then made of the position of its block in
+ * the file (the upper bits) and the position of the record in the data of the block (the lower
+ * 24 bits), so a record is read by decompressing a single block.
+ */
+final class TurnLogSegmentFile implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TurnLogSegmentFile.class);
+
+    private static final int _MAGIC = 0x4144544c; // "ADTL"
+    private static final int _VERSION = 1;
+    private static final int _COMPRESSED_VERSION = 2;
+    private static final int _BLOCK_POSITION_BITS = 24;
+    private static final int _FILE_HEADER_SIZE = 8;
+    private static final int _RECORD_HEADER_SIZE = 16;
+    // The size of the region of the file mapped at once.
+    private static final int _MAPPING_SIZE = 4 << 20;
+    private static final HashFunction _CRC32C = Hashing.crc32c();
+
+    private final Path _path;
+    private final FileChannel _fileChannel;
+    // The mapped region of the file the records are appended to.
+    private MappedByteBuffer _mappedBuffer;
+    // The mapped regions written to since the last call of force.
+    private final List<MappedByteBuffer> _unforcedBuffers = new ArrayList<>();
+    // The position in the file after the last record, or after the last block if the file is
+    // compressed.
+    private long _position;
+    private long _nextSequenceNumber;
+    private final TurnLogIndexBuilder _indexBuilder = new TurnLogIndexBuilder();
+    private final Compression _compression;
+    private final int _blockSize;
+    // The records of the block being filled, if the file is compressed.
+    private byte[] _block;
+    private int _blockLength = 0;
+
+    /**
+     * Create a new segment file.
+     *
+     * @param path - The path of the file, which mustn't exist.
+     * @param firstSequenceNumber - The sequence number of the first record.
+     * @param compression - The compression of the blocks, or NONE for the uncompressed format.
+     * @param blockSize - The size of the records compressed in one block.
+     * @throws IOException - Thrown when the file cannot be created.
+     */
+    TurnLogSegmentFile(String path, long firstSequenceNumber, Compression compression, int
+            blockSize) throws IOException {
+        _path = Paths.get(path);
+        _fileChannel = FileChannel.open(_path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _nextSequenceNumber = firstSequenceNumber;
+        _compression = compression;
+        _blockSize = blockSize;
+        if (compression == Compression.NONE) {
+            map(0, _FILE_HEADER_SIZE);
+            _mappedBuffer.putInt(_MAGIC).putInt(_VERSION);
+        } else {
+            _block = new byte[blockSize];
+            writeFully(ByteBuffer.allocate(_FILE_HEADER_SIZE).putInt(_MAGIC).putInt
+                    (_COMPRESSED_VERSION), 0);
+        }
+        _position = _FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Return the number of bytes taken by the record of the Turn.
+     */
+    static long getRecordSize(Turn turn) {
+        return _RECORD_HEADER_SIZE + turn.getSerializedSize();
+    }
+
+    /**
+     * Append the record of the Turn to the file.
+     *
+     * @param turn - The turn to be written.
+     * @return long - The number of bytes written.
+     * @throws IOException - Thrown when the file cannot be mapped or written.
+     */
+    long append(Turn turn) throws IOException {
+        if (_compression != Compression.NONE) {
+            return appendToBlock(turn);
+        }
+        int length = turn.getSerializedSize();
+        int recordSize = _RECORD_HEADER_SIZE + length;
+        if (_mappedBuffer.remaining() < recordSize) {
+            map(_position, recordSize);
+        }
+        int recordStart = _mappedBuffer.position();
+        ByteBuffer payload = (ByteBuffer) _mappedBuffer.duplicate()
+                .position(recordStart + _RECORD_HEADER_SIZE)
+                .limit(recordStart + recordSize);
+        CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(payload.slice());
+        turn.writeTo(codedOutputStream);
+        codedOutputStream.flush();
+        payload.position(recordStart + _RECORD_HEADER_SIZE);
+        // The header is written last, so a record isn't valid before its Turn is complete.
+        _mappedBuffer.putInt(recordStart, length);
+        _mappedBuffer.putInt(recordStart + 4, _CRC32C.hashBytes(payload).asInt());
+        _mappedBuffer.putLong(recordStart + 8, _nextSequenceNumber++);
+        _mappedBuffer.position(recordStart + recordSize);
+        _indexBuilder.add(_position, turn);
+        _position += recordSize;
+        return recordSize;
+    }
+
+    /**
+     * Append the record of the Turn to the block being filled, writing the block first if the
+     * record doesn't fit in it.
+     */
+    private long appendToBlock(Turn turn) throws IOException {
+        int length = turn.getSerializedSize();
+        int recordSize = _RECORD_HEADER_SIZE + length;
+        if (_blockLength > 0 && _blockLength + recordSize > _block.length) {
+            writeBlock();
+        }
+        if (recordSize > _block.length) {
+            // A record larger than the block size gets a block of its own.
+            _block = Arrays.copyOf(_block, recordSize);
+        }
+        CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(_block, _blockLength
+                + _RECORD_HEADER_SIZE, length);
+        turn.writeTo(codedOutputStream);
+        codedOutputStream.flush();
+        ByteBuffer.wrap(_block, _blockLength, _RECORD_HEADER_SIZE)
+                .putInt(length)
+                .putInt(_CRC32C.hashBytes(_block, _blockLength + _RECORD_HEADER_SIZE, length)
+                        .asInt())
+                .putLong(_nextSequenceNumber++);
+        _indexBuilder.add(_position << _BLOCK_POSITION_BITS | _blockLength, turn);
+        _blockLength += recordSize;
+        return recordSize;
+    }
+
+    /**
+     * Compress the records of the block being filled and write the block to the file.
+     */
+    private void writeBlock() throws IOException {
+        if (_blockLength == 0) {
+            return;
+        }
+        ByteBuffer block = BlockCompression.encodeBlock(_compression, _block, _blockLength);
+        writeFully(block, _position);
+        _position += block.limit();
+        _blockLength = 0;
+        if (_block.length > _blockSize) {
+            _block = new byte[_blockSize];
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            _fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Map the region of the file starting at the position, large enough for the given number of
+     * bytes.
+     */
+    private void map(long position, int minimumSize) throws IOException {
+        _mappedBuffer = _fileChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.max
+                (_MAPPING_SIZE, minimumSize));
+        _unforcedBuffers.add(_mappedBuffer);
+    }
+
+    /**
+     * Force the appended records to the disk. If the file is compressed, the block being filled
+     * is written first.
+     */
+    void force() throws IOException {
+        if (_compression != Compression.NONE) {
+            writeBlock();
+            _fileChannel.force(false);
+            return;
+        }
+        for (MappedByteBuffer mappedBuffer : _unforcedBuffers) {
+            mappedBuffer.force();
+        }
+        _unforcedBuffers.clear();
+        _unforcedBuffers.add(_mappedBuffer);
+    }
+
+    long getNextSequenceNumber() {
+        return _nextSequenceNumber;
+    }
+
+    /**
+     * Force the records to the disk, cut the mapped space after the last record, close the file
+     * and write its index.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        _fileChannel.truncate(_position);
+        _fileChannel.close();
+        TurnLogIndexBuilder.write(_path.toString(), _indexBuilder.build(_path.getFileName()
+                .toString()));
+    }
+
+    /**
+     * Return whether the file is in the checksummed format.
+     */
+    static boolean isChecksummed(String path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption
+                .READ)) {
+            ByteBuffer header = ByteBuffer.allocate(_FILE_HEADER_SIZE);
+            fileChannel.read(header, 0);
+            return header.position() == _FILE_HEADER_SIZE && header.getInt(0) == _MAGIC;
+        }
+    }
+
+    /**
+     * Read all the valid Turns of a segment file in either format.
+     *
+     * @param path - The path of the file.
+     * @param consumer - Called with each Turn, in the order of the file.
+     * @return long - The number of Turns read.
+     * @throws IOException - Thrown when the file cannot be read.
+     */
+    static long readTurns(String path, Consumer<Turn> consumer) throws IOException {
+        if (!isChecksummed(path)) {
+            return readDelimitedTurns(path, consumer);
+        }
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption
+                .READ)) {
+            long[] numberOfTurns = {0};
+            long validSize = scanAny(fileChannel, (turn, offset) -> {
+                consumer.accept(turn);
+                numberOfTurns[0]++;
+            });
+            if (validSize < fileChannel.size()) {
+                logger.warn("Skipped the damaged tail of the turn log segment " + path + " (" +
+                        (fileChannel.size() - validSize) + " bytes).");
+            }
+            return numberOfTurns[0];
+        }
+    }
+
+    /**
+     * Read the length-delimited Turns of a file in the older format, up to the first damaged
+     * Turn.
+     */
+    private static long readDelimitedTurns(String path, Consumer<Turn> consumer) throws
+            IOException {
+        long numberOfTurns = 0;
+        try (InputStream inputStream = new FileInputStream(path)) {
+            Turn turn;
+            while ((turn = readDelimitedTurn(inputStream, path)) != null) {
+                consumer.accept(turn);
+                numberOfTurns++;
+            }
+        }
+        return numberOfTurns;
+    }
+
+    /**
+     * Read the next length-delimited Turn of a file in the older format.
+     *
+     * @param inputStream - The stream of the file.
+     * @param path - The path of the file, for the logs.
+     * @return Turn - The Turn read, or null at the end of the file or at its damaged tail.
+     */
+    static Turn readDelimitedTurn(InputStream inputStream, String path) throws IOException {
+        try {
+            return Turn.parseDelimitedFrom(inputStream);
+        } catch (InvalidProtocolBufferException exception) {
+            logger.warn("Skipped the damaged tail of the turn log segment " + path + ": " +
+                    exception.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read the consecutive records of a file in the checksummed format, starting at the offset.
+     *
+     * @param recordReader - The reader of the file.
+     * @param offset - The offset of the first record, taken from the index of the file.
+     * @param numberOfTurns - The number of records to be read.
+     * @param consumer - Called with each Turn, in the order of the file.
+     * @throws IOException - Thrown when the file cannot be read, or a record is damaged.
+     */
+    static void readTurnsAt(RecordReader recordReader, long offset, int numberOfTurns,
+                            Consumer<Turn> consumer) throws IOException {
+        for (int i = 0; i < numberOfTurns; i++) {
+            consumer.accept(recordReader.read(offset));
+            offset = recordReader.getNextOffset();
+        }
+    }
+
+    /**
+     * Reads the records of a file in the checksummed format at their offsets. The last block
+     * read is kept, so reading the records of the same block decompresses it once.
+     */
+    static final class RecordReader {
+        private final FileChannel _fileChannel;
+        private final boolean _compressed;
+        private long _blockPosition = -1;
+        private long _nextBlockPosition;
+        private ByteBuffer _blockData;
+        private long _nextOffset;
+
+        RecordReader(FileChannel fileChannel) throws IOException {
+            _fileChannel = fileChannel;
+            _compressed = readVersion(fileChannel) == _COMPRESSED_VERSION;
+        }
+
+        /**
+         * Read the record at the offset.
+         *
+         * @throws IOException - Thrown when the file cannot be read, or the record is damaged.
+         */
+        Turn read(long offset) throws IOException {
+            if (!_compressed) {
+                ByteBuffer header = ByteBuffer.allocate(_RECORD_HEADER_SIZE);
+                readFully(_fileChannel, header, offset);
+                int length = header.getInt(0);
+                if (length <= 0 || offset + _RECORD_HEADER_SIZE + length > _fileChannel.size()) {
+                    throw new IOException("Invalid record length " + length + " at the offset " +
+                            offset + ".");
+                }
+                ByteBuffer record = ByteBuffer.allocate(_RECORD_HEADER_SIZE + length);
+                readFully(_fileChannel, record, offset);
+                _nextOffset = offset + _RECORD_HEADER_SIZE + length;
+                return parseRecord(record, 0, offset);
+            }
+            long blockPosition = offset >>> _BLOCK_POSITION_BITS;
+            int position = (int) (offset & ((1 << _BLOCK_POSITION_BITS) - 1));
+            loadBlock(blockPosition);
+            if (position >= _blockData.limit()) {
+                // The record following the last record of a block starts the next block.
+                blockPosition = _nextBlockPosition;
+                position = 0;
+                loadBlock(blockPosition);
+            }
+            Turn turn = parseRecord(_blockData, position, offset);
+            _nextOffset = blockPosition << _BLOCK_POSITION_BITS | (position +
+                    _RECORD_HEADER_SIZE + _blockData.getInt(position));
+            return turn;
+        }
+
+        long getNextOffset() {
+            return _nextOffset;
+        }
+
+        private void loadBlock(long blockPosition) throws IOException {
+            if (blockPosition == _blockPosition) {
+                return;
+            }
+            ByteBuffer blockHeader = ByteBuffer.allocate(BlockCompression.BLOCK_HEADER_SIZE);
+            readFully(_fileChannel, blockHeader, blockPosition);
+            int compressedLength = BlockCompression.getCompressedLength(blockHeader);
+            if (compressedLength < 0 || blockPosition + BlockCompression.BLOCK_HEADER_SIZE +
+                    compressedLength > _fileChannel.size()) {
+                throw new IOException("Invalid block length " + compressedLength + " at the " +
+                        "position " + blockPosition + ".");
+            }
+            ByteBuffer compressedData = ByteBuffer.allocate(compressedLength);
+            readFully(_fileChannel, compressedData, blockPosition + BlockCompression
+                    .BLOCK_HEADER_SIZE);
+            compressedData.flip();
+            _blockData = ByteBuffer.wrap(BlockCompression.decodeBlock(blockHeader,
+                    compressedData));
+            _blockPosition = blockPosition;
+            _nextBlockPosition = blockPosition + BlockCompression.BLOCK_HEADER_SIZE +
+                    compressedLength;
+        }
+    }
+
+    /**
+     * Check and parse the record at the position of the buffer.
+     *
+     * @param offset - The offset of the record, for the error message.
+     * @throws IOException - Thrown when the record is damaged.
+     */
+    private static Turn parseRecord(ByteBuffer buffer, int position, long offset) throws
+            IOException {
+        Turn turn = parseRecordOrNull(buffer, position);
+        if (turn == null) {
+            throw new IOException("Invalid record at the offset " + offset + ".");
+        }
+        return turn;
+    }
+
+    /**
+     * Check and parse the record at the position of the buffer.
+     *
+     * @return Turn - The Turn of the record, or null if the record is damaged.
+     */
+    private static Turn parseRecordOrNull(ByteBuffer buffer, int position) {
+        if (position + _RECORD_HEADER_SIZE > buffer.limit()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        int checksum = buffer.getInt(position + 4);
+        if (length <= 0 || (long) position + _RECORD_HEADER_SIZE + length > buffer.limit()) {
+            return null;
+        }
+        ByteBuffer payload = (ByteBuffer) buffer.duplicate()
+                .position(position + _RECORD_HEADER_SIZE)
+                .limit(position + _RECORD_HEADER_SIZE + length);
+        if (_CRC32C.hashBytes(payload.slice()).asInt() != checksum) {
+            return null;
+        }
+        try {
+            return Turn.parseFrom(payload.slice());
+        } catch (InvalidProtocolBufferException exception) {
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the file at the position " + (position +
+                        buffer.position()) + ".");
+            }
+        }
+    }
+
+    /**
+     * Return the version of the format of a file in the checksummed format.
+     */
+    private static int readVersion(FileChannel fileChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(_FILE_HEADER_SIZE);
+        readFully(fileChannel, header, 0);
+        int version = header.getInt(4);
+        if (header.getInt(0) != _MAGIC || (version != _VERSION && version !=
+                _COMPRESSED_VERSION)) {
+            throw new IOException("Unsupported format of the turn log segment.");
+        }
+        return version;
+    }
+
+    /**
+     * Build the index of a file in the checksummed format, from its valid records.
+     *
+     * @param path - The path of the file.
+     * @throws IOException - Thrown when the file cannot be read.
+     */
+    static TurnLogSegmentIndex buildIndex(String path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption
+                .READ)) {
+            TurnLogIndexBuilder indexBuilder = new TurnLogIndexBuilder();
+            scanAny(fileChannel, (turn, offset) -> indexBuilder.add(offset, turn));
+            return indexBuilder.build(Paths.get(path).getFileName().toString());
+        }
+    }
+
+    /**
+     * Truncate the torn tail of a segment file in the checksummed format, left by a crash, and
+     * write the index of the file.
+     *
+     * @param path - The path of the file.
+     * @return long - The number of valid records in the file.
+     * @throws IOException - Thrown when the file cannot be read or truncated.
+     */
+    static long recover(String path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long[] numberOfRecords = {0};
+            TurnLogIndexBuilder indexBuilder = new TurnLogIndexBuilder();
+            long validSize = scanAny(fileChannel, (turn, offset) -> {
+                indexBuilder.add(offset, turn);
+                numberOfRecords[0]++;
+            });
+            if (validSize < fileChannel.size()) {
+                logger.warn("Truncating the torn tail of the turn log segment " + path + " from " +
+                        fileChannel.size() + " to " + validSize + " bytes.");
+                fileChannel.truncate(validSize);
+                fileChannel.force(true);
+            }
+            TurnLogIndexBuilder.write(path, indexBuilder.build(Paths.get(path).getFileName()
+                    .toString()));
+            return numberOfRecords[0];
+        }
+    }
+
+    /**
+     * Read the records of a file in the checksummed format, in either version, up to the first
+     * invalid one.
+     *
+     * @param consumer - Called with each Turn and the offset of its record.
+     * @return long - The size of the valid part of the file.
+     */
+    private static long scanAny(FileChannel fileChannel, ObjLongConsumer<Turn> consumer) throws
+            IOException {
+        if (fileChannel.size() >= _FILE_HEADER_SIZE && readVersion(fileChannel) ==
+                _COMPRESSED_VERSION) {
+            return scanBlocks(fileChannel, consumer);
+        }
+        return scan(fileChannel, consumer);
+    }
+
+    /**
+     * Read the records of a compressed file, up to the first invalid block.
+     *
+     * @param consumer - Called with each Turn and the offset of its record.
+     * @return long - The size of the valid part of the file.
+     */
+    private static long scanBlocks(FileChannel fileChannel, ObjLongConsumer<Turn> consumer)
+            throws IOException {
+        long size = fileChannel.size();
+        long position = _FILE_HEADER_SIZE;
+        long expectedSequenceNumber = -1;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BlockCompression.BLOCK_HEADER_SIZE);
+        while (position + BlockCompression.BLOCK_HEADER_SIZE <= size) {
+            blockHeader.clear();
+            readFully(fileChannel, blockHeader, position);
+            int compressedLength = BlockCompression.getCompressedLength(blockHeader);
+            if (compressedLength <= 0 || position + BlockCompression.BLOCK_HEADER_SIZE +
+                    compressedLength > size) {
+                return position;
+            }
+            ByteBuffer compressedData = ByteBuffer.allocate(compressedLength);
+            readFully(fileChannel, compressedData, position + BlockCompression.BLOCK_HEADER_SIZE);
+            compressedData.flip();
+            ByteBuffer blockData;
+            try {
+                blockData = ByteBuffer.wrap(BlockCompression.decodeBlock(blockHeader,
+                        compressedData));
+            } catch (IOException exception) {
+                return position;
+            }
+            // The records of a block are only passed on once the whole block is valid.
+            List<Turn> turns = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            int recordPosition = 0;
+            while (recordPosition < blockData.limit()) {
+                Turn turn = parseRecordOrNull(blockData, recordPosition);
+                long sequenceNumber = turn == null ? 0 : blockData.getLong(recordPosition + 8);
+                if (turn == null || (expectedSequenceNumber >= 0 && sequenceNumber !=
+                        expectedSequenceNumber)) {
+                    return position;
+                }
+                turns.add(turn);
+                offsets.add(position << _BLOCK_POSITION_BITS | recordPosition);
+                expectedSequenceNumber = sequenceNumber + 1;
+                recordPosition += _RECORD_HEADER_SIZE + blockData.getInt(recordPosition);
+            }
+            for (int i = 0; i < turns.size(); i++) {
+                consumer.accept(turns.get(i), offsets.get(i));
+            }
+            position += BlockCompression.BLOCK_HEADER_SIZE + compressedLength;
+        }
+        return position;
+    }
+
+    /**
+     * Read the records of a file in the checksummed format, up to the first invalid one.
+     *
+     * @param consumer - Called with each Turn and the offset of its record.
+     * @return long - The size of the valid part of the file.
+     */
+    private static long scan(FileChannel fileChannel, ObjLongConsumer<Turn> consumer) throws
+            IOException {
+        long size = fileChannel.size();
+        if (size < _FILE_HEADER_SIZE) {
+            return 0;
+        }
+        long position = _FILE_HEADER_SIZE;
+        long expectedSequenceNumber = -1;
+        // The file is read in mapped regions, as a single mapping is limited to 2 GiB.
+        while (position + _RECORD_HEADER_SIZE <= size) {
+            MappedByteBuffer mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    position, Math.min(size - position, Integer.MAX_VALUE));
+            int offset = 0;
+            while (offset + _RECORD_HEADER_SIZE <= mappedBuffer.limit()) {
+                int length = mappedBuffer.getInt(offset);
+                int checksum = mappedBuffer.getInt(offset + 4);
+                long sequenceNumber = mappedBuffer.getLong(offset + 8);
+                if (length <= 0 || (expectedSequenceNumber >= 0 && sequenceNumber !=
+                        expectedSequenceNumber)) {
+                    return position + offset;
+                }
+                if ((long) offset + _RECORD_HEADER_SIZE + length > mappedBuffer.limit()) {
+                    break;
+                }
+                ByteBuffer payload = (ByteBuffer) mappedBuffer.duplicate()
+                        .position(offset + _RECORD_HEADER_SIZE)
+                        .limit(offset + _RECORD_HEADER_SIZE + length);
+                if (_CRC32C.hashBytes(payload.slice()).asInt() != checksum) {
+                    return position + offset;
+                }
+                Turn turn;
+                try {
+                    turn = Turn.parseFrom(CodedInputStream.newInstance(payload.slice()));
+                } catch (InvalidProtocolBufferException exception) {
+                    return position + offset;
+                }
+                consumer.accept(turn, position + offset);
+                expectedSequenceNumber = sequenceNumber + 1;
+                offset += _RECORD_HEADER_SIZE + length;
+            }
+            if (offset == 0) {
+                // The record doesn't fit in the rest of the file.
+                return position;
+            }
+            position += offset;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,446 @@
+package edu.gla.kail.ad.core;
+
+import com.google.protobuf.Timestamp;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.DurabilityPolicy;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group-commit writer of the turn log.
+ * The turns added by all the sessions are put in a lock-free queue; a single writer thread takes
+ * all the turns queued meanwhile and appends them to the log in one pass, so the sessions never
+ * wait for each other on the disk. The turns are forced to the disk (fsync) according to the
+ * DurabilityPolicy of the TurnLogConfig.
+ *
+ * The log is split into segment files stored in a directory for each day. A new segment is
+ * started when the day changes, or when the size or the number of turns of the current segment
+ * reaches its limit. The closed segments are listed in the manifest of the day directory (see
+ * TURN_LOG_MANIFEST_FILE_NAME), so the readers only ever deal with files of bounded size.
+ * The segments are written in the checksummed format of TurnLogSegmentFile, compressed in
+ * blocks if a Compression is set. The size limit of a segment applies to the size of its
+ * records before the compression. The segments left
+ * unclosed by a crash are recovered when the writer starts: their torn tails are truncated and
+ * they are added to the manifest.
+ */
+final class TurnLogWriter {
+    private static final Logger logger = LoggerFactory.getLogger(TurnLogWriter.class);
+
+    // The file of each day directory listing the closed segments, as length-delimited
+    // TurnLogSegments.
+    static final String TURN_LOG_MANIFEST_FILE_NAME = "segments.manifest";
+
+    private static final int _DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+    private static final int _DEFAULT_MAX_BATCH_SIZE = 1000;
+    private static final long _DEFAULT_MAX_SEGMENT_BYTES = 64L << 20;
+    private static final int _DEFAULT_MAX_SEGMENT_TURNS = 100000;
+
+    // The directory holding the day directories.
+    private final String _logDailyTurnsPath;
+    private final DurabilityPolicy _durabilityPolicy;
+    private final long _fsyncIntervalNanos;
+    private final int _maxBatchSize;
+    private final long _maxSegmentBytes;
+    private final int _maxSegmentTurns;
+    private final Compression _compression;
+    private final int _compressionBlockSize;
+    // The turns waiting to be written.
+    private final ConcurrentLinkedQueue<PendingTurn> _queue = new ConcurrentLinkedQueue<>();
+    private final Thread _writerThread;
+    private volatile boolean _closed = false;
+
+    // Used only by the writer thread.
+    // The current segment.
+    private TurnLogSegmentFile _segmentFile;
+    private TurnLogSegment.Builder _segment;
+    private String _dayDirectory;
+    private LocalDate _segmentDay;
+    // The turns written, but not forced to the disk yet.
+    private final List<PendingTurn> _awaitingFsync = new ArrayList<>();
+    private long _lastFsyncNanos = System.nanoTime();
+    private long _nextSequenceNumber = 0;
+    // The day directories the segments have been written to or recovered in.
+    private final Set<String> _dayDirectories = new LinkedHashSet<>();
+
+    /**
+     * A turn and the future completed once the turn has been written.
+     */
+    private static final class PendingTurn {
+        private final Turn _turn;
+        private final CompletableFuture<Void> _future = new CompletableFuture<>();
+
+        private PendingTurn(Turn turn) {
+            _turn = turn;
+        }
+    }
+
+    /**
+     * Recover the segments left unclosed, open the first segment and start the writer thread.
+     *
+     * @param logDailyTurnsPath - The directory in which the day directories are created.
+     * @param config - The configuration of the writer.
+     * @throws IOException - Thrown when the segment file cannot be opened or recovered.
+     */
+    TurnLogWriter(String logDailyTurnsPath, TurnLogConfig config) throws IOException {
+        _logDailyTurnsPath = logDailyTurnsPath;
+        _durabilityPolicy = config.getDurabilityPolicy();
+        _fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getFsyncIntervalMillis() > 0 ?
+                config.getFsyncIntervalMillis() : _DEFAULT_FSYNC_INTERVAL_MILLIS);
+        _maxBatchSize = config.getMaxBatchSize() > 0 ? config.getMaxBatchSize() :
+                _DEFAULT_MAX_BATCH_SIZE;
+        _maxSegmentBytes = config.getMaxSegmentBytes() > 0 ? config.getMaxSegmentBytes() :
+                _DEFAULT_MAX_SEGMENT_BYTES;
+        _maxSegmentTurns = config.getMaxSegmentTurns() > 0 ? config.getMaxSegmentTurns() :
+                _DEFAULT_MAX_SEGMENT_TURNS;
+        _compression = config.getCompression();
+        _compressionBlockSize = BlockCompression.getBlockSize(config);
+        recoverUnclosedSegments();
+        openSegment();
+        _writerThread = new Thread(this::run, "turn-log-writer");
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+    }
+
+    /**
+     * Queue the turn to be written.
+     *
+     * @param turn - The turn to be written.
+     * @return CompletableFuture<Void> - Completed once the turn has been written and, depending
+     *         on the durability policy, forced to the disk; completed exceptionally if the turn
+     *         couldn't be written.
+     */
+    CompletableFuture<Void> append(Turn turn) {
+        PendingTurn pendingTurn = new PendingTurn(turn);
+        if (_closed) {
+            pendingTurn._future.completeExceptionally(new IOException("The turn log is closed."));
+            return pendingTurn._future;
+        }
+        _queue.add(pendingTurn);
+        // The writer may have stopped meanwhile, in which case the turn is taken back.
+        if (_closed && _queue.remove(pendingTurn)) {
+            pendingTurn._future.completeExceptionally(new IOException("The turn log is closed."));
+            return pendingTurn._future;
+        }
+        LockSupport.unpark(_writerThread);
+        return pendingTurn._future;
+    }
+
+    /**
+     * Return the number of turns waiting to be written.
+     */
+    int getQueueSize() {
+        return _queue.size();
+    }
+
+    private void run() {
+        List<PendingTurn> batch = new ArrayList<>(_maxBatchSize);
+        try {
+            writeQueuedTurns(batch);
+        } catch (Throwable throwable) {
+            // Nothing is written anymore: the turns waiting are failed rather than left pending.
+            logger.error("The turn log writer has stopped unexpectedly: " + throwable
+                    .getMessage(), throwable);
+            _closed = true;
+            IOException exception = new IOException("The turn log writer has stopped.",
+                    throwable);
+            // The futures already completed are left as they are.
+            batch.forEach(pendingTurn -> pendingTurn._future.completeExceptionally(exception));
+            _awaitingFsync.forEach(pendingTurn -> pendingTurn._future.completeExceptionally
+                    (exception));
+            _awaitingFsync.clear();
+            PendingTurn pendingTurn;
+            while ((pendingTurn = _queue.poll()) != null) {
+                pendingTurn._future.completeExceptionally(exception);
+            }
+        }
+    }
+
+    private void writeQueuedTurns(List<PendingTurn> batch) {
+        while (!_closed || !_queue.isEmpty()) {
+            PendingTurn pendingTurn;
+            while (batch.size() < _maxBatchSize && (pendingTurn = _queue.poll()) != null) {
+                batch.add(pendingTurn);
+            }
+            if (batch.isEmpty()) {
+                if (_awaitingFsync.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    long untilFsyncNanos = _lastFsyncNanos + _fsyncIntervalNanos - System
+                            .nanoTime();
+                    if (untilFsyncNanos > 0) {
+                        LockSupport.parkNanos(this, untilFsyncNanos);
+                    } else {
+                        fsync();
+                    }
+                }
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+        fsync();
+    }
+
+    /**
+     * Append the turns to the current segment, starting a new segment when needed. If a turn
+     * cannot be written, the turns written before it are kept, the turns from it on are failed
+     * and the segment is closed, so the next batch starts a new one.
+     */
+    private void writeBatch(List<PendingTurn> batch) {
+        List<PendingTurn> written = new ArrayList<>(batch.size());
+        int numberOfTurnsHandled = 0;
+        try {
+            for (PendingTurn pendingTurn : batch) {
+                long recordSize = TurnLogSegmentFile.getRecordSize(pendingTurn._turn);
+                if (_segmentFile != null && segmentIsFull(recordSize)) {
+                    completeWritten(written);
+                    written.clear();
+                    closeSegment();
+                }
+                if (_segmentFile == null) {
+                    openSegment();
+                }
+                _segmentFile.append(pendingTurn._turn);
+                _segment.setSizeBytes(_segment.getSizeBytes() + recordSize)
+                        .setNumberOfTurns(_segment.getNumberOfTurns() + 1);
+                written.add(pendingTurn);
+                numberOfTurnsHandled++;
+            }
+        } catch (IOException | RuntimeException exception) {
+            List<PendingTurn> unwritten = batch.subList(numberOfTurnsHandled, batch.size());
+            logger.error("Unable to write " + unwritten.size() + " turns to the log: " +
+                    exception.getMessage());
+            unwritten.forEach(pendingTurn -> pendingTurn._future.completeExceptionally
+                    (exception));
+            completeWritten(written);
+            abandonSegment();
+            return;
+        }
+        completeWritten(written);
+    }
+
+    /**
+     * Close the current segment after a failed write, keeping the records written before the
+     * failure.
+     */
+    private void abandonSegment() {
+        if (_segmentFile == null) {
+            return;
+        }
+        try {
+            closeSegment();
+        } catch (IOException | RuntimeException exception) {
+            logger.error("Unable to close the turn log segment " + _dayDirectory + _segment
+                    .getFileName() + ", it will be recovered on the next start: " + exception
+                    .getMessage());
+        }
+    }
+
+    /**
+     * Return whether a new segment has to be started for the next record.
+     */
+    private boolean segmentIsFull(long recordSize) {
+        if (_segment.getNumberOfTurns() == 0) {
+            return false;
+        }
+        return _segment.getNumberOfTurns() >= _maxSegmentTurns || _segment.getSizeBytes() +
+                recordSize > _maxSegmentBytes || !LocalDate.now().equals(_segmentDay);
+    }
+
+    /**
+     * Complete the futures of the written turns, or wait for the fsync, depending on the
+     * durability policy.
+     */
+    private void completeWritten(List<PendingTurn> written) {
+        switch (_durabilityPolicy) {
+            case FSYNC_PER_BATCH:
+                _awaitingFsync.addAll(written);
+                fsync();
+                break;
+            case FSYNC_INTERVAL:
+                _awaitingFsync.addAll(written);
+                if (System.nanoTime() - _lastFsyncNanos >= _fsyncIntervalNanos) {
+                    fsync();
+                }
+                break;
+            case NO_FSYNC:
+            default:
+                written.forEach(pendingTurn -> pendingTurn._future.complete(null));
+                break;
+        }
+    }
+
+    /**
+     * Force the written turns to the disk and complete their futures.
+     */
+    private void fsync() {
+        _lastFsyncNanos = System.nanoTime();
+        if (_awaitingFsync.isEmpty()) {
+            return;
+        }
+        try {
+            _segmentFile.force();
+            _awaitingFsync.forEach(pendingTurn -> pendingTurn._future.complete(null));
+        } catch (IOException | RuntimeException exception) {
+            logger.error("Unable to force " + _awaitingFsync.size() + " turns to the disk: " +
+                    exception.getMessage());
+            _awaitingFsync.forEach(pendingTurn -> pendingTurn._future.completeExceptionally
+                    (exception));
+        }
+        _awaitingFsync.clear();
+    }
+
+    /**
+     * Start a new segment file in the directory of the current day.
+     */
+    private void openSegment() throws IOException {
+        _segmentDay = LocalDate.now();
+        _dayDirectory = _logDailyTurnsPath + _segmentDay.toString() + "/";
+        directoryExistsOrCreate(_dayDirectory);
+        String fileName = LocalDateTime.now().toString();
+        // Two segments can be started within the same millisecond.
+        for (int i = 1; new File(_dayDirectory + fileName).exists(); i++) {
+            fileName = LocalDateTime.now().toString() + "_" + i;
+        }
+        _segmentFile = new TurnLogSegmentFile(_dayDirectory + fileName, _nextSequenceNumber,
+                _compression, _compressionBlockSize);
+        _dayDirectories.add(_dayDirectory);
+        _segment = TurnLogSegment.newBuilder()
+                .setFileName(fileName)
+                .setStartTime(getCurrentTimeStamp());
+    }
+
+    /**
+     * Close the current segment file and add it to the manifest of its day directory. The
+     * segment is dropped even if it cannot be closed, so it is never closed twice; a segment
+     * missing from the manifest is recovered on the next start.
+     */
+    private void closeSegment() throws IOException {
+        fsync();
+        _nextSequenceNumber = _segmentFile.getNextSequenceNumber();
+        try {
+            _segmentFile.close();
+        } finally {
+            _segmentFile = null;
+        }
+        TurnLogSegment segment = _segment
+                .setEndTime(getCurrentTimeStamp())
+                .setSizeBytes(new File(_dayDirectory + _segment.getFileName()).length())
+                .build();
+        addToManifest(_dayDirectory, segment);
+        logger.info("Closed the turn log segment " + _dayDirectory + segment.getFileName() + " (" +
+                segment.getNumberOfTurns() + " turns, " + segment.getSizeBytes() + " bytes).");
+    }
+
+    /**
+     * Write all the queued turns, stop the writer thread and close the current segment.
+     *
+     * @return Set<String> - The day directories the segments have been written to or recovered
+     *         in.
+     * @throws IOException - Thrown when the segment cannot be closed.
+     */
+    Set<String> close() throws IOException {
+        _closed = true;
+        LockSupport.unpark(_writerThread);
+        try {
+            _writerThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        // No segment is open if the last one couldn't be replaced.
+        if (_segmentFile != null) {
+            closeSegment();
+        }
+        return _dayDirectories;
+    }
+
+    /**
+     * Append the closed segment to the manifest of its day directory.
+     */
+    private void addToManifest(String dayDirectory, TurnLogSegment segment) throws IOException {
+        try (FileOutputStream manifestOutputStream = new FileOutputStream(dayDirectory +
+                TURN_LOG_MANIFEST_FILE_NAME, true)) {
+            segment.writeDelimitedTo(manifestOutputStream);
+            if (_durabilityPolicy != DurabilityPolicy.NO_FSYNC) {
+                manifestOutputStream.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Find the segments missing from the manifests of the day directories, i.e. the segments
+     * which were being written when the server crashed. Truncate their torn tails and add them
+     * to the manifests.
+     */
+    private void recoverUnclosedSegments() throws IOException {
+        File[] dayDirectories = new File(_logDailyTurnsPath).listFiles(File::isDirectory);
+        if (dayDirectories == null) {
+            return;
+        }
+        for (File dayDirectory : dayDirectories) {
+            String dayDirectoryPath = dayDirectory.getPath() + "/";
+            Set<String> closedSegments = new HashSet<>();
+            for (TurnLogSegment segment : LogEntryManager.readManifest(dayDirectoryPath)) {
+                closedSegments.add(segment.getFileName());
+            }
+            File[] files = dayDirectory.listFiles(File::isFile);
+            for (File file : files == null ? new File[0] : files) {
+                if (closedSegments.contains(file.getName()) || !TurnLogSegmentFile
+                        .isChecksummed(file.getPath())) {
+                    continue;
+                }
+                long numberOfTurns = TurnLogSegmentFile.recover(file.getPath());
+                addToManifest(dayDirectoryPath, TurnLogSegment.newBuilder()
+                        .setFileName(file.getName())
+                        .setEndTime(Timestamp.newBuilder().setSeconds(file.lastModified() /
+                                1000))
+                        .setSizeBytes(file.length())
+                        .setNumberOfTurns(numberOfTurns)
+                        .build());
+                _dayDirectories.add(dayDirectoryPath);
+                logger.warn("Recovered the unclosed turn log segment " + file.getPath() + " (" +
+                        numberOfTurns + " turns).");
+            }
+        }
+    }
+
+    /**
+     * Validate whether the directory exists and if not, then create it.
+     */
+    private static void directoryExistsOrCreate(String path) throws IOException {
+        File directory = new File(path);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (!directory.exists()) {
+            throw new IOException("Unable to create directory." + path);
+        }
+    }
+
+    private static Timestamp getCurrentTimeStamp() {
+        Instant now = Instant.now();
+        return Timestamp.newBuilder()
+                .setSeconds(now.getEpochSecond())
+                .setNanos(now.getNano())
+                .build();
+    }
+}
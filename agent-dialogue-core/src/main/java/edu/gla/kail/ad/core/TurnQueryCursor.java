@@ -0,0 +1,378 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.util.Timestamps;
+import edu.gla.kail.ad.CoreConfiguration.ServiceProvider;
+import edu.gla.kail.ad.core.Log.ResponseLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.Offsets;
+import edu.gla.kail.ad.core.Log.TurnLogSegmentIndex.TimeBlock;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Iterates over the turns of the turn log matching a TurnFilter, reading one turn at a time, so
+ * the number of turns doesn't matter for the memory used.
+ * The turns are read from the closed segments of the day directories, in the order they were
+ * logged. The index of each segment narrows the records read down to those of the session or
+ * the user, or to the blocks of records overlapping the time range. The segments in the older
+ * format of length-delimited Turns have no index and are read whole.
+ *
+ * The position of the cursor is given by its page token, which can be used for opening a new
+ * cursor continuing after the last turn returned.
+ */
+public final class TurnQueryCursor implements Iterator<Turn>, Closeable {
+    private final TurnLogReader _turnLogReader;
+    private final TurnFilter _filter;
+    // The day directories left to be read.
+    private final Iterator<String> _days;
+    // The position the cursor was resumed at, or null.
+    private final Position _resumePosition;
+
+    private String _day;
+    private Iterator<TurnLogSegment> _segments = Collections.emptyIterator();
+    private String _segmentFileName;
+    private FileChannel _fileChannel;
+    private TurnLogSegmentFile.RecordReader _recordReader;
+    // The runs of consecutive records of the segment left to be read, as {offset, count}.
+    private Iterator<long[]> _runs = Collections.emptyIterator();
+    private long _runOffset;
+    private long _runRemaining = 0;
+    // The stream of a segment in the older format, and the number of the next record in it,
+    // which stands for its offset in the positions.
+    private InputStream _delimitedInputStream;
+    private long _delimitedRecordNumber;
+
+    private Turn _next;
+    private Position _nextPosition;
+    // The position of the last turn returned, or the position the cursor was resumed at.
+    private Position _position;
+
+    /**
+     * The position of a record in the turn log.
+     */
+    private static final class Position {
+        private final String _day;
+        private final String _segmentFileName;
+        private final long _offset;
+
+        private Position(String day, String segmentFileName, long offset) {
+            _day = day;
+            _segmentFileName = segmentFileName;
+            _offset = offset;
+        }
+
+        private String toPageToken() {
+            return BaseEncoding.base64Url().omitPadding().encode((_day + "\n" +
+                    _segmentFileName + "\n" + _offset).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static Position fromPageToken(String pageToken) {
+            try {
+                String[] parts = new String(BaseEncoding.base64Url().omitPadding().decode
+                        (pageToken), StandardCharsets.UTF_8).split("\n");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Invalid page token: " + pageToken);
+                }
+                LocalDate.parse(parts[0]);
+                return new Position(parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (DateTimeParseException | IllegalArgumentException exception) {
+                throw new IllegalArgumentException("Invalid page token: " + pageToken,
+                        exception);
+            }
+        }
+    }
+
+    /**
+     * Open the cursor. Use TurnLogReader.query.
+     *
+     * @param turnLogReader - The reader of the turn log.
+     * @param logDailyTurnsPath - The directory holding the day directories.
+     * @param filter - The conditions the turns must meet.
+     * @param pageToken - The page token of a previous cursor to continue after, or null.
+     * @throws IllegalArgumentException - Thrown when the page token is invalid.
+     */
+    TurnQueryCursor(TurnLogReader turnLogReader, String logDailyTurnsPath, TurnFilter filter,
+                    @Nullable String pageToken) {
+        _turnLogReader = turnLogReader;
+        _filter = filter;
+        _resumePosition = pageToken == null || pageToken.isEmpty() ? null : Position
+                .fromPageToken(pageToken);
+        _position = _resumePosition;
+        _days = getDays(logDailyTurnsPath).iterator();
+    }
+
+    /**
+     * Return the day directories which may hold the turns of the time range of the filter, in
+     * the order of the days. A turn is logged on the day of its request, or on the next day if
+     * the request was made just before midnight.
+     */
+    private List<String> getDays(String logDailyTurnsPath) {
+        LocalDate firstDay = _filter.hasStartTime() ? toLocalDate(_filter.getStartTime()) : null;
+        LocalDate lastDay = _filter.hasEndTime() ? toLocalDate(_filter.getEndTime()).plusDays(1)
+                : null;
+        List<String> days = new ArrayList<>();
+        String[] dayDirectories = new File(logDailyTurnsPath).list();
+        for (String dayDirectory : dayDirectories == null ? new String[0] : dayDirectories) {
+            LocalDate day;
+            try {
+                day = LocalDate.parse(dayDirectory);
+            } catch (DateTimeParseException exception) {
+                continue;
+            }
+            if ((firstDay == null || !day.isBefore(firstDay)) && (lastDay == null || !day
+                    .isAfter(lastDay)) && (_resumePosition == null || dayDirectory.compareTo
+                    (_resumePosition._day) >= 0)) {
+                days.add(dayDirectory);
+            }
+        }
+        Collections.sort(days);
+        List<String> dayPaths = new ArrayList<>();
+        for (String day : days) {
+            dayPaths.add(logDailyTurnsPath + day + "/");
+        }
+        return dayPaths;
+    }
+
+    private static LocalDate toLocalDate(com.google.protobuf.Timestamp timestamp) {
+        return Instant.ofEpochMilli(Timestamps.toMillis(timestamp)).atZone(ZoneId
+                .systemDefault()).toLocalDate();
+    }
+
+    /**
+     * @throws UncheckedIOException - Thrown when the turn log cannot be read.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (_next == null) {
+                if (!advance()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    @Override
+    public Turn next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Turn turn = _next;
+        _position = _nextPosition;
+        _next = null;
+        return turn;
+    }
+
+    /**
+     * Return the page token of the position after the last turn returned, or an empty string if
+     * there are no more turns.
+     *
+     * @throws IllegalStateException - Thrown when no turn has been returned yet.
+     */
+    public String getPageToken() {
+        if (!hasNext()) {
+            return "";
+        }
+        checkState(_position != null, "No turn has been returned yet.");
+        return _position.toPageToken();
+    }
+
+    /**
+     * Read the next record, moving to the next segment or day when needed.
+     *
+     * @return boolean - False if there are no more records.
+     */
+    private boolean advance() throws IOException {
+        while (_delimitedInputStream == null && _runRemaining == 0) {
+            if (_runs.hasNext()) {
+                long[] run = _runs.next();
+                _runOffset = run[0];
+                _runRemaining = run[1];
+            } else if (!nextSegment()) {
+                return false;
+            }
+        }
+        long offset;
+        Turn turn;
+        if (_delimitedInputStream != null) {
+            offset = _delimitedRecordNumber++;
+            turn = TurnLogSegmentFile.readDelimitedTurn(_delimitedInputStream, _day +
+                    _segmentFileName);
+            if (turn == null) {
+                closeSegment();
+                return true;
+            }
+        } else {
+            offset = _runOffset;
+            turn = _recordReader.read(offset);
+            _runOffset = _recordReader.getNextOffset();
+            _runRemaining--;
+        }
+        if (_resumePosition != null && _resumePosition._day.equals(getDayName()) &&
+                _resumePosition._segmentFileName.equals(_segmentFileName) && offset <=
+                _resumePosition._offset) {
+            return true;
+        }
+        if (matches(_filter, turn)) {
+            _next = turn;
+            _nextPosition = new Position(getDayName(), _segmentFileName, offset);
+        }
+        return true;
+    }
+
+    private String getDayName() {
+        return Paths.get(_day).getFileName().toString();
+    }
+
+    /**
+     * Open the next segment with records which may match the filter.
+     *
+     * @return boolean - False if there are no more segments.
+     */
+    private boolean nextSegment() throws IOException {
+        closeSegment();
+        while (true) {
+            while (!_segments.hasNext()) {
+                if (!_days.hasNext()) {
+                    return false;
+                }
+                _day = _days.next();
+                List<TurnLogSegment> segments = LogEntryManager.readManifest(_day);
+                if (_resumePosition != null && _resumePosition._day.equals(getDayName())) {
+                    segments = skipToResumeSegment(segments);
+                }
+                _segments = segments.iterator();
+            }
+            TurnLogSegment segment = _segments.next();
+            TurnLogSegmentIndex index = _turnLogReader.getIndex(_day + segment.getFileName());
+            if (index == null) {
+                _segmentFileName = segment.getFileName();
+                _delimitedInputStream = new BufferedInputStream(new FileInputStream(_day +
+                        _segmentFileName));
+                _delimitedRecordNumber = 0;
+                return true;
+            }
+            List<long[]> runs = getRuns(index);
+            if (runs.isEmpty()) {
+                continue;
+            }
+            _segmentFileName = segment.getFileName();
+            _fileChannel = FileChannel.open(Paths.get(_day + _segmentFileName),
+                    StandardOpenOption.READ);
+            _recordReader = new TurnLogSegmentFile.RecordReader(_fileChannel);
+            _runs = runs.iterator();
+            return true;
+        }
+    }
+
+    /**
+     * Return the segments from the segment the cursor was resumed in.
+     */
+    private List<TurnLogSegment> skipToResumeSegment(List<TurnLogSegment> segments) {
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).getFileName().equals(_resumePosition._segmentFileName)) {
+                return segments.subList(i, segments.size());
+            }
+        }
+        throw new IllegalArgumentException("The segment of the page token doesn't exist: " +
+                _resumePosition._segmentFileName);
+    }
+
+    /**
+     * Return the runs of records of the segment which may match the filter, as {offset, count}.
+     */
+    private List<long[]> getRuns(TurnLogSegmentIndex index) {
+        List<long[]> runs = new ArrayList<>();
+        Offsets offsets = null;
+        if (!_filter.getSessionId().isEmpty()) {
+            offsets = index.getSessionOffsetsOrDefault(_filter.getSessionId(), Offsets
+                    .getDefaultInstance());
+        } else if (!_filter.getUserId().isEmpty()) {
+            offsets = index.getUserOffsetsOrDefault(_filter.getUserId(), Offsets
+                    .getDefaultInstance());
+        }
+        if (offsets != null) {
+            for (long offset : offsets.getOffsetList()) {
+                runs.add(new long[]{offset, 1});
+            }
+            return runs;
+        }
+        for (TimeBlock timeBlock : index.getTimeBlockList()) {
+            if ((_filter.hasStartTime() && Timestamps.compare(timeBlock.getMaxTime(), _filter
+                    .getStartTime()) < 0) || (_filter.hasEndTime() && Timestamps.compare
+                    (timeBlock.getMinTime(), _filter.getEndTime()) > 0)) {
+                continue;
+            }
+            runs.add(new long[]{timeBlock.getOffset(), timeBlock.getNumberOfTurns()});
+        }
+        return runs;
+    }
+
+    /**
+     * Return whether the turn meets all the conditions of the filter.
+     */
+    static boolean matches(TurnFilter filter, Turn turn) {
+        ResponseLog response = turn.getResponseLog();
+        return (filter.getUserId().isEmpty() || filter.getUserId().equals(turn.getUserId()))
+                && (filter.getSessionId().isEmpty() || filter.getSessionId().equals(turn
+                .getSessionId()))
+                && (filter.getAgentId().isEmpty() || filter.getAgentId().equals(response
+                .getAgentId()))
+                && (filter.getServiceProvider() == ServiceProvider.UNRECOGNISED || filter
+                .getServiceProvider() == response.getServiceProvider())
+                && (filter.getMessageStatus() == ResponseLog.MessageStatus.NONSET || filter
+                .getMessageStatus() == response.getMessageStatus())
+                && (!filter.hasStartTime() || Timestamps.compare(turn.getRequestLog().getTime(),
+                filter.getStartTime()) >= 0)
+                && (!filter.hasEndTime() || Timestamps.compare(turn.getRequestLog().getTime(),
+                filter.getEndTime()) <= 0);
+    }
+
+    private void closeSegment() throws IOException {
+        _runs = Collections.emptyIterator();
+        _runRemaining = 0;
+        _recordReader = null;
+        if (_fileChannel != null) {
+            _fileChannel.close();
+            _fileChannel = null;
+        }
+        if (_delimitedInputStream != null) {
+            _delimitedInputStream.close();
+            _delimitedInputStream = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
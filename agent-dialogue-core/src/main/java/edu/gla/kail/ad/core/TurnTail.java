@@ -0,0 +1,113 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the turns accepted by LogTurnManagerSingleton to the live subscribers, e.g. the
+ * monitoring dashboards.
+ * Each subscriber has a bounded buffer of turns. Publishing never waits: when the buffer of a
+ * subscriber is full, its oldest turn is dropped, so a slow subscriber only loses turns and
+ * never holds back the logging of the turns.
+ */
+public final class TurnTail {
+    private final Set<Subscription> _subscriptions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong _droppedTurns = new AtomicLong(0);
+
+    /**
+     * The buffer of the turns published to a subscriber.
+     */
+    public final class Subscription implements Closeable {
+        private final TurnFilter _filter;
+        private final ArrayBlockingQueue<Turn> _buffer;
+        // Called after a turn has been added to the buffer.
+        private final Runnable _onTurnAvailable;
+        private final AtomicLong _droppedTurns = new AtomicLong(0);
+
+        private Subscription(TurnFilter filter, int bufferSize, Runnable onTurnAvailable) {
+            _filter = filter;
+            _buffer = new ArrayBlockingQueue<>(bufferSize);
+            _onTurnAvailable = onTurnAvailable;
+        }
+
+        private void offer(Turn turn) {
+            while (!_buffer.offer(turn)) {
+                if (_buffer.poll() != null) {
+                    _droppedTurns.incrementAndGet();
+                    TurnTail.this._droppedTurns.incrementAndGet();
+                }
+            }
+            _onTurnAvailable.run();
+        }
+
+        /**
+         * Take the oldest turn from the buffer.
+         *
+         * @return Turn - The turn, or null if the buffer is empty.
+         */
+        @Nullable
+        public Turn poll() {
+            return _buffer.poll();
+        }
+
+        /**
+         * Return the number of turns dropped from the buffer of the subscriber.
+         */
+        public long getDroppedTurnCount() {
+            return _droppedTurns.get();
+        }
+
+        /**
+         * Stop publishing the turns to the subscriber.
+         */
+        @Override
+        public void close() {
+            _subscriptions.remove(this);
+            _buffer.clear();
+        }
+    }
+
+    /**
+     * Subscribe to the turns matching the filter.
+     *
+     * @param filter - The conditions the turns must meet.
+     * @param bufferSize - The maximum number of turns held for the subscriber.
+     * @param onTurnAvailable - Called after a turn has been added to the buffer, on the thread
+     *         publishing the turn, so it must return quickly.
+     * @return Subscription - The buffer of the turns, which must be closed.
+     */
+    public Subscription subscribe(TurnFilter filter, int bufferSize, Runnable onTurnAvailable) {
+        Subscription subscription = new Subscription(filter, bufferSize, onTurnAvailable);
+        _subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Publish the turn to the subscribers whose filter it matches.
+     */
+    void publish(Turn turn) {
+        for (Subscription subscription : _subscriptions) {
+            if (TurnQueryCursor.matches(subscription._filter, turn)) {
+                subscription.offer(turn);
+            }
+        }
+    }
+
+    public int getNumberOfSubscribers() {
+        return _subscriptions.size();
+    }
+
+    /**
+     * Return the number of turns dropped from the buffers of all the subscribers.
+     */
+    public long getDroppedTurnCount() {
+        return _droppedTurns.get();
+    }
+}
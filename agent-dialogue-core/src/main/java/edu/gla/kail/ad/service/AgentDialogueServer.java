@@ -5,26 +5,45 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
+import com.google.protobuf.Any;
 import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Durations;
 import com.google.protobuf.util.JsonFormat;
+import com.google.rpc.Code;
+import com.google.rpc.RetryInfo;
 import edu.gla.kail.ad.Client.InteractionRequest;
 import edu.gla.kail.ad.Client.InteractionResponse;
 import edu.gla.kail.ad.Client.InteractionResponse.ClientMessageStatus;
+import edu.gla.kail.ad.Client.InteractionType;
+import edu.gla.kail.ad.Client.OutputInteraction;
+import edu.gla.kail.ad.agents.HttpTransportSingleton;
+import edu.gla.kail.ad.core.AgentCallExecutorSingleton;
+import edu.gla.kail.ad.core.AgentRegistrySingleton;
 import edu.gla.kail.ad.core.DialogAgentManager;
-import edu.gla.kail.ad.core.Log.ResponseLog;
+import edu.gla.kail.ad.core.Log.Turn;
 import edu.gla.kail.ad.core.LogTurnManagerSingleton;
 import edu.gla.kail.ad.core.PropertiesSingleton;
+import edu.gla.kail.ad.core.TurnQueryCursor;
+import edu.gla.kail.ad.core.TurnTail;
+import io.grpc.Context;
 import io.grpc.Grpc;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerCredentials;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.TlsServerCredentials;
+import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.time.Instant;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +55,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class AgentDialogueServer {
     private final Server _server;
+    // Routes the calls to the nodes owning the users, or null if the server runs as one node.
+    @Nullable
+    private final ClusterRouter _clusterRouter;
 
     private static final Logger logger = LoggerFactory.getLogger( AgentDialogueServer.class);
 
@@ -43,8 +65,9 @@ public class AgentDialogueServer {
      * Create a localhost server listening on specified port.
      *
      * @param port - the integer specifying the port.
+     * @throws IOException - Thrown when the members of the cluster cannot be read.
      */
-    public AgentDialogueServer(int port) {
+    public AgentDialogueServer(int port) throws IOException {
         this(ServerBuilder.forPort(port));
     }
 
@@ -53,8 +76,12 @@ public class AgentDialogueServer {
      *
      * @param serverBuilder - the builder created for a particular port.
      */
-    private AgentDialogueServer(ServerBuilder<?> serverBuilder) {
-        _server = serverBuilder.addService(new AgentDialogueService()).addService(new GrcpHealthCheck()).build();
+    private AgentDialogueServer(ServerBuilder<?> serverBuilder) throws IOException {
+        _clusterRouter = ClusterRouter.create(PropertiesSingleton.getCoreConfig().getCluster());
+        AgentDialogueService service = new AgentDialogueService(_clusterRouter);
+        _server = serverBuilder.addService(_clusterRouter == null ? service.bindService() :
+                ServerInterceptors.intercept(service, _clusterRouter
+                        .getForwardedCallInterceptor())).addService(new GrcpHealthCheck()).build();
     }
 
     public static void main(String[] args) throws Exception {
@@ -64,6 +91,8 @@ public class AgentDialogueServer {
         logger.info("Loading config file from:" + args[0]);
         PropertiesSingleton.getPropertiesSingleton(new URL(args[0]));
         logger.info("Configuration loaded: " + PropertiesSingleton.getCoreConfig().toString());
+        // Set up the agents shared by all the sessions before the first user arrives.
+        AgentRegistrySingleton.getAgentRegistrySingleton();
         AgentDialogueServer server = new AgentDialogueServer(PropertiesSingleton.getCoreConfig()
                 .getGrpcServerPort());
         server.start();
@@ -102,6 +131,12 @@ public class AgentDialogueServer {
             } catch (IOException exception) {
                 System.err.println("Unable to close output stream for log storing.");
             }
+            DialogAgentManagerSingleton.saveSessions();
+            AgentCallExecutorSingleton.shutDown();
+            HttpTransportSingleton.shutDown();
+            if (_clusterRouter != null) {
+                _clusterRouter.shutDown();
+            }
             _server.shutdown();
         }
     }
@@ -121,12 +156,46 @@ public class AgentDialogueServer {
      * Serves the requests from clients/users.
      */
     static class AgentDialogueService extends AgentDialogueGrpc.AgentDialogueImplBase {
+        @Nullable
+        private final ClusterRouter _clusterRouter;
+
+        /**
+         * @param clusterRouter - The router of the cluster, or null if the server runs as a
+         *         single node.
+         */
+        AgentDialogueService(@Nullable ClusterRouter clusterRouter) {
+            _clusterRouter = clusterRouter;
+        }
+
+        /**
+         * Return the stub for forwarding the call of the user to the node owning it.
+         *
+         * @return AgentDialogueStub - The stub, or null if the call is handled by this node.
+         */
+        @Nullable
+        private AgentDialogueGrpc.AgentDialogueStub getOwnerStub(String userId) {
+            if (_clusterRouter == null) {
+                return null;
+            }
+            String ownerAddress = _clusterRouter.getForwardingAddress(userId);
+            if (ownerAddress == null) {
+                return null;
+            }
+            logger.debug("Forwarding the call of the user " + userId + " to " + ownerAddress);
+            return _clusterRouter.getStub(ownerAddress);
+        }
+
         @Override
         public void endSession(UserID userId, StreamObserver<UserID> responseObserver) {
             if (checkNotNull(userId.getUserId(), "The UserID that have " +
                     "been sent is null!").isEmpty()) {
                 throw new IllegalArgumentException("The provided userID is empty!");
             }
+            AgentDialogueGrpc.AgentDialogueStub ownerStub = getOwnerStub(userId.getUserId());
+            if (ownerStub != null) {
+                ownerStub.endSession(userId, responseObserver);
+                return;
+            }
             boolean deletingWasSuccessful = DialogAgentManagerSingleton.deleteDialogAgentManager
                     (userId.getUserId());
             responseObserver.onNext(userId.toBuilder().setActiveSession(!deletingWasSuccessful)
@@ -135,8 +204,7 @@ public class AgentDialogueServer {
         }
 
         /**
-         * Sends the request to the agents and retrieves the chosen response.
-         * TODO(Adam): This method may cause the calls not to be asynchronous. Check it!
+         * Sends the request to the agents and asynchronously retrieves the chosen response.
          *
          * @param interactionRequest - The instance of InteractionRequest passed by the
          *                           user/client to the agents.
@@ -157,49 +225,120 @@ public class AgentDialogueServer {
             }
             checkNotNull(interactionRequest.getUserId(), "The InteractionRequest that have " +
                     "been sent doesn't have userID!");
-            DialogAgentManager dialogAgentManager;
-            try {
-                dialogAgentManager = DialogAgentManagerSingleton
-                        .getDialogAgentManager(interactionRequest.getUserId());
-            } catch (Exception exception) {
-                exception.printStackTrace();
-                dialogAgentManager = null;
-                logger.error("Caught an exception creating DialogAgentManager" + exception);
+            AgentDialogueGrpc.AgentDialogueStub ownerStub = getOwnerStub(interactionRequest
+                    .getUserId());
+            if (ownerStub != null) {
+                ownerStub.getResponseFromAgents(interactionRequest, responseObserver);
+                return;
             }
-            checkNotNull(dialogAgentManager, "The initialization of the DialogAgentManager " +
-                    "failed!");
-            ResponseLog response;
-            InteractionResponse interactionResponse;
-            Timestamp timestamp = Timestamp.newBuilder()
-                    .setSeconds(Instant.now()
-                            .getEpochSecond())
-                    .setNanos(Instant.now()
-                            .getNano())
-                    .build();
-            try {
-                response = dialogAgentManager.getResponse(interactionRequest);
-                interactionResponse = InteractionResponse.newBuilder()
-                        .setResponseId(response.getResponseId())
-                        .setSessionId(dialogAgentManager.getSessionId())
-                        .setTime(timestamp)
-                        .setClientId(response.getClientId())
-                        .setUserId(interactionRequest.getUserId())
-                        .setMessageStatus(ClientMessageStatus.SUCCESSFUL)
-                        .addAllInteraction(response.getActionList().stream()
-                                .map(action -> action.getInteraction())
-                                .collect(Collectors.toList()))
-                        .build();
-            } catch (Exception exception) {
-                logger.warn("Error processing request :" + exception.getMessage() + " " + exception.getMessage());
+            Context context = Context.current();
+            // A new session may wait for a slot; the gRPC thread isn't held meanwhile.
+            DialogAgentManagerSingleton.getDialogAgentManagerAsync(interactionRequest.getUserId())
+                    .whenComplete((dialogAgentManager, throwable) -> {
+                if (throwable != null) {
+                    responseObserver.onError(toSessionStatusException(throwable));
+                } else {
+                    getResponse(dialogAgentManager, interactionRequest, context,
+                            responseObserver);
+                }
+            });
+        }
 
-                interactionResponse = InteractionResponse.newBuilder()
-                        .setMessageStatus(InteractionResponse.ClientMessageStatus.ERROR)
-                        .setErrorMessage(exception.getMessage())
-                        .setTime(timestamp)
+        /**
+         * Sends the request to the agents of the session and asynchronously sends the chosen
+         * response.
+         */
+        private void getResponse(DialogAgentManager dialogAgentManager, InteractionRequest
+                interactionRequest, Context context, StreamObserver<InteractionResponse>
+                responseObserver) {
+            String sessionId = dialogAgentManager.getSessionId();
+            // The gRPC thread is released here; the response is sent once the agents reply.
+            // The agents are not waited for after the client's deadline or cancellation.
+            dialogAgentManager.getResponse(interactionRequest, context).whenComplete(
+                    (response, throwable) -> {
+                if (((ServerCallStreamObserver<InteractionResponse>) responseObserver)
+                        .isCancelled()) {
+                    logger.info("The client has cancelled the call, the response is dropped.");
+                    return;
+                }
+                InteractionResponse interactionResponse;
+                Timestamp timestamp = Timestamp.newBuilder()
+                        .setSeconds(Instant.now()
+                                .getEpochSecond())
+                        .setNanos(Instant.now()
+                                .getNano())
                         .build();
+                if (throwable == null) {
+                    interactionResponse = InteractionResponse.newBuilder()
+                            .setResponseId(response.getResponseId())
+                            .setSessionId(sessionId)
+                            .setTime(timestamp)
+                            .setClientId(response.getClientId())
+                            .setUserId(interactionRequest.getUserId())
+                            .setMessageStatus(ClientMessageStatus.SUCCESSFUL)
+                            .addAllInteraction(response.getActionList().stream()
+                                    .map(action -> action.getInteraction())
+                                    .collect(Collectors.toList()))
+                            .build();
+                } else {
+                    Throwable exception = throwable instanceof CompletionException && throwable
+                            .getCause() != null ? throwable.getCause() : throwable;
+                    logger.warn("Error processing request :" + exception.getMessage() + " " +
+                            exception.getMessage());
+
+                    interactionResponse = InteractionResponse.newBuilder()
+                            .setMessageStatus(InteractionResponse.ClientMessageStatus.ERROR)
+                            .setErrorMessage(String.valueOf(exception.getMessage()))
+                            .setTime(timestamp)
+                            .build();
+                }
+                responseObserver.onNext(interactionResponse);
+                responseObserver.onCompleted();
+            });
+        }
+
+        /**
+         * Return the coalescing key of a streamed response: the status updates (e.g. the wizard
+         * is typing) are superseded by the next one, so a queued status update is replaced by
+         * the newer one. The other responses are never coalesced.
+         */
+        @Nullable
+        private static Object getCoalescingKey(InteractionResponse response) {
+            if (response.getInteractionCount() == 0) {
+                return null;
             }
-            responseObserver.onNext(interactionResponse);
-            responseObserver.onCompleted();
+            for (OutputInteraction interaction : response.getInteractionList()) {
+                if (interaction.getType() != InteractionType.STATUS) {
+                    return null;
+                }
+            }
+            return InteractionType.STATUS;
+        }
+
+        /**
+         * Return the gRPC error reported when the session of the user couldn't be started:
+         * RESOURCE_EXHAUSTED with the time after which to retry (RetryInfo) if the session limit
+         * has been reached, or INTERNAL otherwise.
+         */
+        private static StatusRuntimeException toSessionStatusException(Throwable throwable) {
+            Throwable exception = throwable instanceof CompletionException && throwable
+                    .getCause() != null ? throwable.getCause() : throwable;
+            if (exception instanceof SessionLimitExceededException) {
+                logger.warn("Rejected a new session: " + exception.getMessage());
+                return StatusProto.toStatusRuntimeException(com.google.rpc.Status.newBuilder()
+                        .setCode(Code.RESOURCE_EXHAUSTED_VALUE)
+                        .setMessage(exception.getMessage())
+                        .addDetails(Any.pack(RetryInfo.newBuilder()
+                                .setRetryDelay(Durations.fromMillis(
+                                        ((SessionLimitExceededException) exception)
+                                                .getRetryAfterMillis()))
+                                .build()))
+                        .build());
+            }
+            logger.error("Caught an exception creating DialogAgentManager" + exception);
+            return Status.INTERNAL.withDescription("The initialization of the " +
+                    "DialogAgentManager failed: " + exception.getMessage()).withCause(exception)
+                    .asRuntimeException();
         }
 
         /**
@@ -213,6 +352,11 @@ public class AgentDialogueServer {
         @Override
         public void listResponses(InteractionRequest interactionRequest,
                                   StreamObserver<InteractionResponse> responseObserver) {
+            // Queue the messages the client isn't ready to receive, up to the configured limit.
+            StreamObserver<InteractionResponse> flowControlledObserver = new
+                    FlowControlledStreamObserver<>((ServerCallStreamObserver<InteractionResponse>)
+                    responseObserver, PropertiesSingleton.getCoreConfig().getStreamFlowControl(),
+                    interactionRequest.getUserId(), AgentDialogueService::getCoalescingKey);
             try {
                 String jsonString = JsonFormat.printer()
                         .preservingProtoFieldNames()
@@ -221,23 +365,81 @@ public class AgentDialogueServer {
                 logger.info("Processing request:" + jsonString);
                 checkNotNull(interactionRequest.getUserId(), "The InteractionRequest that have " +
                         "been sent doesn't have userID!");
-                DialogAgentManager dialogAgentManager;
-                try {
-                    dialogAgentManager = DialogAgentManagerSingleton
-                            .getDialogAgentManager(interactionRequest.getUserId());
-                } catch (Exception exception) {
-                    exception.printStackTrace();
-                    dialogAgentManager = null;
+                AgentDialogueGrpc.AgentDialogueStub ownerStub = getOwnerStub(interactionRequest
+                        .getUserId());
+                if (ownerStub != null) {
+                    // The responses of the owner are queued like the local ones.
+                    ownerStub.listResponses(interactionRequest, flowControlledObserver);
+                    return;
                 }
-                checkNotNull(dialogAgentManager, "The initialization of the DialogAgentManager " +
-                        "failed!");
-
-
-                dialogAgentManager.listResponse(interactionRequest, responseObserver);
+                // A new session may wait for a slot; the gRPC thread isn't held meanwhile.
+                DialogAgentManagerSingleton.getDialogAgentManagerAsync(interactionRequest
+                        .getUserId()).whenComplete((dialogAgentManager, throwable) -> {
+                    if (throwable != null) {
+                        flowControlledObserver.onError(toSessionStatusException(throwable));
+                        return;
+                    }
+                    try {
+                        dialogAgentManager.listResponse(interactionRequest,
+                                flowControlledObserver);
+                    } catch (Exception exception) {
+                        logger.warn("Error processing request :" + exception.getMessage());
+                        flowControlledObserver.onError(exception);
+                    }
+                });
             } catch (Exception exception) {
                 logger.warn("Error processing request :" + exception.getMessage() + " " + exception.getMessage());
-                responseObserver.onError(exception);
+                flowControlledObserver.onError(exception);
+            }
+        }
+
+        /**
+         * Streams the stored turns matching the filter, in pages sent as the client is ready to
+         * receive them.
+         *
+         * @param request - The filter, the page size and the page token of the query.
+         * @param responseObserver - The instance, which is used to pass the pages of turns.
+         */
+        @Override
+        public void queryTurns(QueryTurnsRequest request, StreamObserver<TurnPage>
+                responseObserver) {
+            TurnQueryCursor cursor;
+            try {
+                cursor = LogTurnManagerSingleton.getLogTurnManagerSingleton().getTurnLogReader()
+                        .query(request.getFilter(), request.getPageToken());
+            } catch (IllegalArgumentException exception) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(exception
+                        .getMessage()).asRuntimeException());
+                return;
+            } catch (IOException exception) {
+                logger.warn("Unable to open the turn log: " + exception.getMessage());
+                responseObserver.onError(Status.INTERNAL.withDescription("Unable to open the " +
+                        "turn log.").asRuntimeException());
+                return;
+            }
+            new TurnPageStreamer((ServerCallStreamObserver<TurnPage>) responseObserver, cursor,
+                    request.getPageSize());
+        }
+
+        /**
+         * Streams the turns matching the filter as they are logged.
+         *
+         * @param request - The filter of the turns and the size of the buffer.
+         * @param responseObserver - The instance, which is used to pass the turns.
+         */
+        @Override
+        public void tailTurns(TailTurnsRequest request, StreamObserver<Turn> responseObserver) {
+            TurnTail turnTail;
+            try {
+                turnTail = LogTurnManagerSingleton.getLogTurnManagerSingleton().getTurnTail();
+            } catch (IOException exception) {
+                logger.warn("Unable to open the turn log: " + exception.getMessage());
+                responseObserver.onError(Status.INTERNAL.withDescription("Unable to open the " +
+                        "turn log.").asRuntimeException());
+                return;
             }
+            new TurnTailStreamer((ServerCallStreamObserver<Turn>) responseObserver, turnTail,
+                    request);
         }
     }
 }
@@ -0,0 +1,211 @@
+package edu.gla.kail.ad.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.gla.kail.ad.CoreConfiguration.ClusterConfig;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.stub.MetadataUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes the calls of the users to the nodes of the cluster owning them (see ClusterConfig).
+ * The calls forwarded by another node carry the forwarded header, and are always handled by the
+ * node receiving them: while the members are changing, two nodes may briefly disagree on the
+ * owner of a user, and a call is never forwarded more than once.
+ */
+final class ClusterRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterRouter.class);
+
+    private static final int _DEFAULT_VIRTUAL_NODES = 128;
+    private static final int _DEFAULT_MEMBERSHIP_REFRESH_SECONDS = 10;
+    private static final Metadata.Key<String> _FORWARDED_BY_HEADER = Metadata.Key.of
+            ("x-ad-forwarded-by", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<Boolean> _FORWARDED_CALL = Context.key("forwarded-call");
+
+    private final String _selfAddress;
+    private final int _virtualNodes;
+    private volatile ConsistentHashRing _ring;
+    private volatile List<String> _members = new ArrayList<>();
+    // The channels to the other nodes, by their address.
+    private final Map<String, ManagedChannel> _channels = new ConcurrentHashMap<>();
+    @Nullable
+    private final ScheduledExecutorService _membershipRefresher;
+    @Nullable
+    private final Path _membershipFile;
+    private long _membershipFileModifiedMillis = -1;
+
+    private ClusterRouter(ClusterConfig config) throws IOException {
+        _selfAddress = config.getSelfAddress();
+        _virtualNodes = config.getVirtualNodes() > 0 ? config.getVirtualNodes() :
+                _DEFAULT_VIRTUAL_NODES;
+        if (config.getMembershipFile().isEmpty()) {
+            _membershipFile = null;
+            _membershipRefresher = null;
+            setMembers(config.getNodeAddressesList());
+        } else {
+            _membershipFile = Paths.get(config.getMembershipFile());
+            refreshMembership();
+            int refreshSeconds = config.getMembershipRefreshSeconds() > 0 ? config
+                    .getMembershipRefreshSeconds() : _DEFAULT_MEMBERSHIP_REFRESH_SECONDS;
+            _membershipRefresher = Executors.newSingleThreadScheduledExecutor(new
+                    ThreadFactoryBuilder()
+                    .setNameFormat("cluster-membership-%d")
+                    .setDaemon(true)
+                    .build());
+            _membershipRefresher.scheduleWithFixedDelay(() -> {
+                try {
+                    refreshMembership();
+                } catch (IOException | RuntimeException exception) {
+                    logger.warn("Unable to read the members of the cluster from " +
+                            _membershipFile + ", keeping the current members: " + exception
+                            .getMessage());
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Create the router of the cluster.
+     *
+     * @param config - The configuration of the cluster.
+     * @return ClusterRouter - The router, or null if the server runs as a single node.
+     * @throws IOException - Thrown when the membership file cannot be read.
+     */
+    @Nullable
+    static ClusterRouter create(ClusterConfig config) throws IOException {
+        if (config.getNodeAddressesCount() == 0 && config.getMembershipFile().isEmpty()) {
+            return null;
+        }
+        if (config.getSelfAddress().isEmpty()) {
+            throw new IllegalArgumentException("The self_address of the node must be set in " +
+                    "the cluster mode.");
+        }
+        return new ClusterRouter(config);
+    }
+
+    /**
+     * Reload the members from the membership file, if it has changed.
+     */
+    private synchronized void refreshMembership() throws IOException {
+        long modifiedMillis = Files.getLastModifiedTime(_membershipFile).toMillis();
+        if (modifiedMillis == _membershipFileModifiedMillis) {
+            return;
+        }
+        List<String> members = new ArrayList<>();
+        for (String line : Files.readAllLines(_membershipFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                members.add(line);
+            }
+        }
+        setMembers(members);
+        _membershipFileModifiedMillis = modifiedMillis;
+    }
+
+    private void setMembers(List<String> members) {
+        if (!members.contains(_selfAddress)) {
+            logger.warn("The node " + _selfAddress + " is not one of the members of the " +
+                    "cluster: " + members);
+        }
+        _ring = new ConsistentHashRing(members, _virtualNodes);
+        _members = members;
+        // Close the channels to the nodes which have left.
+        _channels.entrySet().removeIf(entry -> {
+            if (members.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().shutdown();
+            return true;
+        });
+        logger.info("The members of the cluster: " + members);
+    }
+
+    /**
+     * Return the node the call of the user has to be forwarded to.
+     *
+     * @param userId - The userID of the user.
+     * @return String - The address of the owner of the user, or null if the call is handled by
+     *         this node: this node owns the user, or the call has been forwarded already.
+     */
+    @Nullable
+    String getForwardingAddress(String userId) {
+        if (Boolean.TRUE.equals(_FORWARDED_CALL.get())) {
+            return null;
+        }
+        String owner = _ring.getOwner(userId);
+        return owner == null || owner.equals(_selfAddress) ? null : owner;
+    }
+
+    /**
+     * Return the stub for forwarding the calls to the node. The calls made with the stub in the
+     * context of the received call inherit its deadline and cancellation.
+     *
+     * @param address - The address of the node.
+     */
+    AgentDialogueGrpc.AgentDialogueStub getStub(String address) {
+        ManagedChannel channel = _channels.computeIfAbsent(address, target ->
+                ManagedChannelBuilder.forTarget(target)
+                        .usePlaintext()
+                        .build());
+        Metadata headers = new Metadata();
+        headers.put(_FORWARDED_BY_HEADER, _selfAddress);
+        return AgentDialogueGrpc.newStub(channel).withInterceptors(MetadataUtils
+                .newAttachHeadersInterceptor(headers));
+    }
+
+    /**
+     * Return the interceptor marking the calls forwarded by other nodes, which must be added to
+     * the AgentDialogue service.
+     */
+    ServerInterceptor getForwardedCallInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT,
+                    RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                if (headers.containsKey(_FORWARDED_BY_HEADER)) {
+                    return Contexts.interceptCall(Context.current().withValue
+                            (_FORWARDED_CALL, true), call, headers, next);
+                }
+                return next.startCall(call, headers);
+            }
+        };
+    }
+
+    List<String> getMembers() {
+        return _members;
+    }
+
+    /**
+     * Stop refreshing the members and close the channels to the other nodes.
+     */
+    void shutDown() {
+        if (_membershipRefresher != null) {
+            _membershipRefresher.shutdownNow();
+        }
+        for (ManagedChannel channel : _channels.values()) {
+            channel.shutdown();
+        }
+        _channels.clear();
+    }
+}
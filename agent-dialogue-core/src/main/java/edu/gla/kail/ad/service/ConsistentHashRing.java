@@ -0,0 +1,58 @@
+package edu.gla.kail.ad.service;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The consistent hash ring assigning the userIDs to the nodes of the cluster.
+ * Each node is placed on the ring at a number of points (virtual nodes), and a userID belongs to
+ * the node of the first point following the hash of the userID. Adding or removing a node only
+ * moves the users of the points next to its own, and the virtual nodes spread them evenly.
+ * The ring is immutable, a new ring is built when the members of the cluster change.
+ */
+final class ConsistentHashRing {
+    private static final HashFunction _HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final NavigableMap<Long, String> _ring = new TreeMap<>();
+
+    /**
+     * @param nodes - The addresses of the nodes.
+     * @param virtualNodes - The number of points of each node on the ring.
+     */
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // On the rare collision, the point goes to the node which is first in order, so
+                // that all the nodes build the same ring whatever the order of the members.
+                _ring.merge(hash(node + "#" + i), node, (first, second) -> first.compareTo
+                        (second) <= 0 ? first : second);
+            }
+        }
+    }
+
+    private static long hash(String key) {
+        return _HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Return the node owning the userID.
+     *
+     * @param userId - The userID of the user.
+     * @return String - The address of the node, or null if the ring is empty.
+     */
+    @Nullable
+    String getOwner(String userId) {
+        if (_ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = _ring.ceilingEntry(hash(userId));
+        return (point != null ? point : _ring.firstEntry()).getValue();
+    }
+}
@@ -1,24 +1,45 @@
 package edu.gla.kail.ad.service;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.util.Timestamps;
 import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.SessionSnapshotConfig;
 import edu.gla.kail.ad.core.DialogAgentManager;
+import edu.gla.kail.ad.core.Log.SessionSnapshot;
 import edu.gla.kail.ad.core.PropertiesSingleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class used to hold the instances of DialogAgentManager for each session.
+ * The sessions are held in a concurrent map of future instances, without any global lock: the
+ * instance of a new session is set up (which reads the configuration files and credentials of
+ * the agents) on a separate thread, and only the requests of that user wait for it. The
+ * sessions which haven't been used for the session timeout are ended by a periodic sweep.
+ * The new sessions are admitted by the SessionAdmissionController: each session holds a slot
+ * until it ends, and the requests of the existing sessions never wait for a slot.
+ * The session IDs are saved to the snapshot file periodically and on shutdown. After a restart,
+ * the saved sessions are restored lazily: a user gets their session ID back when their next
+ * request arrives, so the restart doesn't set up all the sessions at once.
  */
 final class DialogAgentManagerSingleton {
-    private static DialogAgentManagerSingleton _instance;
+    private static final Logger logger = LoggerFactory.getLogger(DialogAgentManagerSingleton
+            .class);
+
     // The maximum number of sessions that can be active at the same time.
     private static int _MAX_NUMBER_OF_SIMULTANEOUS_CONVERSATIONS = PropertiesSingleton
             .getCoreConfig().getMaxNumberOfSimultaneousConversations();
@@ -27,49 +48,276 @@ final class DialogAgentManagerSingleton {
     private static int _SESSION_TIMEOUT_IN_MINUTES = PropertiesSingleton.getCoreConfig()
             .getSessionTimeoutMinutes();
 
-    // The cache mapping userID and the DialogAgentManager instances assigned to each user.
-    private static LoadingCache<String, DialogAgentManager> _initializedManagers = CacheBuilder
-            .newBuilder()
-            .maximumSize(_MAX_NUMBER_OF_SIMULTANEOUS_CONVERSATIONS)
-            .expireAfterAccess(_SESSION_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES)
-            .removalListener(new RemovalListener<String, DialogAgentManager>() {
-                public void onRemoval(RemovalNotification<String, DialogAgentManager> removal) {
-                    removal.getValue().endSession();
-                }
-            })
-            .build(
-                    new CacheLoader<String, DialogAgentManager>() {
-                        public DialogAgentManager load(String key) throws IOException {
-                            // Execute if the active session for the user doesn't exist.
-                            DialogAgentManager dialogAgentManager = new DialogAgentManager();
-                            dialogAgentManager.setUpAgents((List<AgentConfig>) PropertiesSingleton
-                                    .getCoreConfig()
-                                    .getAgentsList());
-                            return dialogAgentManager;
-                        }
-                    });
+    private static final SessionAdmissionController _admissionController = new
+            SessionAdmissionController(_MAX_NUMBER_OF_SIMULTANEOUS_CONVERSATIONS,
+            PropertiesSingleton.getCoreConfig().getSessionAdmission());
+
+    // The sessions by the userID of their user.
+    private static final Map<String, Session> _sessions = new ConcurrentHashMap<>();
+
+    private static final SessionSnapshotConfig _snapshotConfig = PropertiesSingleton
+            .getCoreConfig().getSessionSnapshot();
+    private static final SessionSnapshotStore _snapshotStore = new SessionSnapshotStore
+            (_snapshotConfig.getSnapshotPath().isEmpty() ? PropertiesSingleton.getCoreConfig()
+                    .getLogStoragePath() + "/sessions.snapshot" : _snapshotConfig
+                    .getSnapshotPath());
+    private static final int _DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+    // The sessions of the snapshot which haven't been restored yet, by the userID of their user.
+    private static final Map<String, SessionSnapshot> _restoredSessions = new
+            ConcurrentHashMap<>(_snapshotConfig.getDisabled() ? new HashMap<>() : _snapshotStore
+            .read());
+
+    // Sets up the DialogAgentManager instances of the new sessions.
+    private static final ExecutorService _sessionLoader = Executors.newCachedThreadPool(new
+            ThreadFactoryBuilder()
+            .setNameFormat("session-loader-%d")
+            .setDaemon(true)
+            .build());
+    // Ends the sessions which have timed out and saves the snapshots of the sessions.
+    private static final ScheduledExecutorService _expirySweeper = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("session-expiry-%d")
+                    .setDaemon(true)
+                    .build());
+
+    // The metrics of the sessions.
+    private static final AtomicLong _hitCount = new AtomicLong(0);
+    private static final AtomicLong _missCount = new AtomicLong(0);
+    private static final AtomicLong _loadFailureCount = new AtomicLong(0);
+    private static final AtomicLong _totalLoadNanos = new AtomicLong(0);
+    private static final AtomicLong _loadCount = new AtomicLong(0);
+
+    static {
+        long sweepIntervalSeconds = Math.max(1, TimeUnit.MINUTES.toSeconds
+                (_SESSION_TIMEOUT_IN_MINUTES) / 4);
+        _expirySweeper.scheduleWithFixedDelay(DialogAgentManagerSingleton::endExpiredSessions,
+                sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        if (!_snapshotConfig.getDisabled()) {
+            int snapshotIntervalSeconds = _snapshotConfig.getSnapshotIntervalSeconds() > 0 ?
+                    _snapshotConfig.getSnapshotIntervalSeconds() :
+                    _DEFAULT_SNAPSHOT_INTERVAL_SECONDS;
+            _expirySweeper.scheduleWithFixedDelay(DialogAgentManagerSingleton::saveSessions,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The DialogAgentManager of a session, which may still be being set up.
+     */
+    private static final class Session {
+        private final CompletableFuture<DialogAgentManager> _dialogAgentManager = new
+                CompletableFuture<>();
+        // The ID of the session restored from the snapshot, or null for a new session.
+        @Nullable
+        private final String _restoredSessionId;
+        private volatile long _lastAccessNanos = System.nanoTime();
+        // Set once the session has been admitted, cleared once its slot has been released.
+        private volatile boolean _holdsSlot = false;
+        private final AtomicBoolean _slotReleased = new AtomicBoolean(false);
 
+        private Session(@Nullable String restoredSessionId) {
+            _restoredSessionId = restoredSessionId;
+        }
+
+        /**
+         * Return the DialogAgentManager of the session, or null if it is still being set up or
+         * its setup has failed.
+         */
+        @Nullable
+        private DialogAgentManager getIfSetUp() {
+            return _dialogAgentManager.isDone() && !_dialogAgentManager
+                    .isCompletedExceptionally() ? _dialogAgentManager.join() : null;
+        }
+
+        /**
+         * Return the snapshot of the session, or null if it is still being set up.
+         */
+        @Nullable
+        private SessionSnapshot toSnapshot(String userId) {
+            DialogAgentManager dialogAgentManager = getIfSetUp();
+            String sessionId = dialogAgentManager != null ? dialogAgentManager.getSessionId() :
+                    _restoredSessionId;
+            if (sessionId == null) {
+                return null;
+            }
+            return SessionSnapshot.newBuilder()
+                    .setUserId(userId)
+                    .setSessionId(sessionId)
+                    .setLastAccessTime(Timestamps.fromMillis(System.currentTimeMillis() -
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                    _lastAccessNanos)))
+                    .build();
+        }
+
+        /**
+         * Return whether the session hasn't been accessed for longer than the session timeout.
+         */
+        private boolean isExpired(long nowNanos) {
+            return nowNanos - _lastAccessNanos > TimeUnit.MINUTES.toNanos
+                    (_SESSION_TIMEOUT_IN_MINUTES);
+        }
+
+        /**
+         * Release the slot of the session, if it holds one. Called both when the session is
+         * removed and when it is admitted after having been removed, so that the slot is
+         * released exactly once whichever happens first.
+         */
+        private void releaseSlot() {
+            if (_holdsSlot && _slotReleased.compareAndSet(false, true)) {
+                _admissionController.release();
+            }
+        }
+    }
 
     /**
-     * Get the DialogAgentManager instance for a particular user. If the user has active session,
-     * the DialogAgentManager for that session will be returned. Otherwise, a new session will be
-     * created, provided the limit of maximum number of sessions hasn't been reached.
+     * Get the future DialogAgentManager instance for a particular user, without waiting for a
+     * new session to be set up.
      *
      * @param userId - The identification String userID, which is sent by each user
      *         with every request.
-     * @return DialogAgentManager - The instance of DialogAgentManager used for particular session.
-     * @throws ExecutionException - Thrown when setting up the agents is unsuccessful or max
+     * @return CompletableFuture<DialogAgentManager> - Completed with the instance of
+     *         DialogAgentManager used for particular session, or completed exceptionally if
+     *         setting up the agents is unsuccessful or with SessionLimitExceededException if max
      *         number of ongoing conversations has been reached.
      */
-    static synchronized DialogAgentManager getDialogAgentManager(String userId) throws Exception {
-        if (_instance == null) {
-            _instance = new DialogAgentManagerSingleton();
+    static CompletableFuture<DialogAgentManager> getDialogAgentManagerAsync(String userId) {
+        Session session = _sessions.get(userId);
+        if (session != null) {
+            _hitCount.incrementAndGet();
+            session._lastAccessNanos = System.nanoTime();
+            return session._dialogAgentManager;
         }
-        if (_initializedManagers.size() == _MAX_NUMBER_OF_SIMULTANEOUS_CONVERSATIONS) {
-            throw new Exception("The maximum number of conversations have been reached - wait " +
-                    "some time or quit coversations on other user accounts.");
+        _missCount.incrementAndGet();
+        SessionSnapshot snapshot = _restoredSessions.get(userId);
+        Session newSession = new Session(snapshot == null || isExpired(snapshot) ? null :
+                snapshot.getSessionId());
+        session = _sessions.putIfAbsent(userId, newSession);
+        if (session != null) {
+            // Another request of the user has started the session meanwhile.
+            return session._dialogAgentManager;
         }
-        return _initializedManagers.get(userId);
+        if (snapshot != null) {
+            _restoredSessions.remove(userId, snapshot);
+        }
+        if (_admissionController.tryAdmit()) {
+            newSession._holdsSlot = true;
+        } else if (!_admissionController.canWait()) {
+            // Shed the session straight away rather than queueing it behind the waiting ones.
+            removeSession(userId, newSession);
+            newSession._dialogAgentManager.completeExceptionally(_admissionController.reject());
+            return newSession._dialogAgentManager;
+        }
+        try {
+            _sessionLoader.execute(() -> loadSession(userId, newSession));
+        } catch (RuntimeException exception) {
+            removeSession(userId, newSession);
+            newSession._dialogAgentManager.completeExceptionally(exception);
+        }
+        return newSession._dialogAgentManager;
+    }
+
+    /**
+     * Set up the DialogAgentManager of a new session, after waiting for a slot if it hasn't been
+     * admitted yet. A session which failed to be set up is removed, so the next request of the
+     * user tries again.
+     */
+    private static void loadSession(String userId, Session session) {
+        try {
+            if (!session._holdsSlot) {
+                _admissionController.admit();
+                session._holdsSlot = true;
+            }
+            if (_sessions.get(userId) != session) {
+                // The session has been ended while waiting.
+                session.releaseSlot();
+                session._dialogAgentManager.completeExceptionally(new Exception("The session " +
+                        "has been ended."));
+                return;
+            }
+        } catch (SessionLimitExceededException | InterruptedException exception) {
+            if (exception instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            removeSession(userId, session);
+            session._dialogAgentManager.completeExceptionally(exception);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            DialogAgentManager dialogAgentManager = session._restoredSessionId == null ? new
+                    DialogAgentManager() : new DialogAgentManager(session._restoredSessionId);
+            dialogAgentManager.setUpAgents((List<AgentConfig>) PropertiesSingleton
+                    .getCoreConfig()
+                    .getAgentsList());
+            long loadNanos = System.nanoTime() - startNanos;
+            _totalLoadNanos.addAndGet(loadNanos);
+            _loadCount.incrementAndGet();
+            logger.debug("Set up the session of the user " + userId + " in " + TimeUnit
+                    .NANOSECONDS.toMillis(loadNanos) + " ms.");
+            session._dialogAgentManager.complete(dialogAgentManager);
+        } catch (Exception exception) {
+            _loadFailureCount.incrementAndGet();
+            removeSession(userId, session);
+            logger.error("Unable to set up the session of the user " + userId + ": " + exception
+                    .getMessage());
+            session._dialogAgentManager.completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * End the sessions which haven't been used for the session timeout.
+     */
+    private static void endExpiredSessions() {
+        long nowNanos = System.nanoTime();
+        for (Map.Entry<String, Session> entry : _sessions.entrySet()) {
+            if (entry.getValue().isExpired(nowNanos)) {
+                removeSession(entry.getKey(), entry.getValue());
+            }
+        }
+        _restoredSessions.values().removeIf(DialogAgentManagerSingleton::isExpired);
+    }
+
+    private static boolean isExpired(SessionSnapshot snapshot) {
+        return System.currentTimeMillis() - Timestamps.toMillis(snapshot.getLastAccessTime()) >
+                TimeUnit.MINUTES.toMillis(_SESSION_TIMEOUT_IN_MINUTES);
+    }
+
+    /**
+     * Save the snapshot of the active sessions, including the restored sessions whose users
+     * haven't come back yet. Called periodically and when the server shuts down.
+     */
+    static void saveSessions() {
+        if (_snapshotConfig.getDisabled()) {
+            return;
+        }
+        Map<String, SessionSnapshot> snapshots = new HashMap<>(_restoredSessions);
+        for (Map.Entry<String, Session> entry : _sessions.entrySet()) {
+            SessionSnapshot snapshot = entry.getValue().toSnapshot(entry.getKey());
+            if (snapshot != null) {
+                snapshots.put(entry.getKey(), snapshot);
+            }
+        }
+        try {
+            _snapshotStore.write(snapshots.values());
+            logger.debug("Saved the snapshot of " + snapshots.size() + " sessions.");
+        } catch (IOException exception) {
+            logger.error("Unable to save the snapshot of the sessions: " + exception
+                    .getMessage());
+        }
+    }
+
+    /**
+     * Remove the session, free its slot and end it once it has been set up.
+     *
+     * @return boolean - False if the session had already been removed.
+     */
+    private static boolean removeSession(String userId, Session session) {
+        if (!_sessions.remove(userId, session)) {
+            return false;
+        }
+        session.releaseSlot();
+        session._dialogAgentManager.thenAccept(DialogAgentManager::endSession);
+        return true;
     }
 
     /**
@@ -78,8 +326,71 @@ final class DialogAgentManagerSingleton {
      * @param userId - The identification String userID, which is sent by each user
      *         with every request.
      */
-    static synchronized boolean deleteDialogAgentManager(String userId) {
-        _initializedManagers.invalidate(userId);
+    static boolean deleteDialogAgentManager(String userId) {
+        Session session = _sessions.get(userId);
+        if (session != null) {
+            removeSession(userId, session);
+        }
         return true;
     }
+
+    static int getNumberOfSessions() {
+        return _sessions.size();
+    }
+
+    /**
+     * Return the number of resources (e.g. listeners and streams) the agents hold for the active
+     * sessions. It should drop back once the sessions end; if it doesn't, the agents leak them.
+     */
+    static int getNumberOfOpenResources() {
+        int openResources = 0;
+        for (Session session : _sessions.values()) {
+            DialogAgentManager dialogAgentManager = session.getIfSetUp();
+            if (dialogAgentManager != null) {
+                openResources += dialogAgentManager.getOpenResourceCount();
+            }
+        }
+        return openResources;
+    }
+
+    /**
+     * Return the number of new sessions waiting for a slot.
+     */
+    static int getNumberOfWaitingSessions() {
+        return _admissionController.getNumberOfWaitingSessions();
+    }
+
+    /**
+     * Return the number of new sessions rejected because all the slots were taken.
+     */
+    static long getRejectedSessionCount() {
+        return _admissionController.getRejectedSessionCount();
+    }
+
+    /**
+     * Return the number of requests which found the session of their user.
+     */
+    static long getHitCount() {
+        return _hitCount.get();
+    }
+
+    /**
+     * Return the number of requests which didn't find the session of their user.
+     */
+    static long getMissCount() {
+        return _missCount.get();
+    }
+
+    static long getLoadFailureCount() {
+        return _loadFailureCount.get();
+    }
+
+    /**
+     * Return the average time of setting up a session, in milliseconds.
+     */
+    static double getAverageLoadMillis() {
+        long loadCount = _loadCount.get();
+        return loadCount == 0 ? 0 : (double) TimeUnit.NANOSECONDS.toMicros(_totalLoadNanos
+                .get()) / loadCount / 1000;
+    }
 }
@@ -0,0 +1,324 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.CoreConfiguration.StreamFlowControlConfig;
+import edu.gla.kail.ad.CoreConfiguration.StreamFlowControlConfig.OverflowPolicy;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The server stream observer which sends the messages only when the client is ready to receive
+ * them (see ServerCallStreamObserver.isReady). The messages the client isn't ready for are held
+ * in a bounded queue and sent from the onReady handler; when the queue is full, the
+ * OverflowPolicy of the StreamFlowControlConfig is applied. This keeps a slow client from making
+ * gRPC buffer the messages on the heap without any limit.
+ *
+ * The observer can be called from any thread, e.g. the Firestore callback threads.
+ *
+ * @param <T> - The type of the messages of the stream.
+ */
+public class FlowControlledStreamObserver<T> extends ServerCallStreamObserver<T> {
+    private static final Logger logger = LoggerFactory.getLogger(FlowControlledStreamObserver
+            .class);
+
+    private static final int _DEFAULT_MAX_QUEUED_MESSAGES = 100;
+
+    // The streams currently open, for the metrics.
+    private static final Set<FlowControlledStreamObserver<?>> _openStreams = ConcurrentHashMap
+            .newKeySet();
+    private static final AtomicLong _droppedMessages = new AtomicLong(0);
+    private static final AtomicLong _cancelledStreams = new AtomicLong(0);
+
+    private final ServerCallStreamObserver<T> _delegate;
+    // The name of the stream used in the logs and the metrics, e.g. the user ID.
+    private final String _streamName;
+    private final int _maxQueuedMessages;
+    private final OverflowPolicy _overflowPolicy;
+    // Return the key of a message, the messages with the same key are coalesced.
+    private final Function<T, ?> _coalescingKey;
+    // The messages waiting for the client to be ready.
+    private final ArrayDeque<T> _queue = new ArrayDeque<>();
+    private Runnable _onCancelHandler;
+    private Runnable _onReadyHandler;
+    private boolean _completionPending = false;
+    private boolean _closed = false;
+
+    /**
+     * Wrap the observer of the server stream. Must be called before the gRPC call handler
+     * returns, as it sets the onReady and onCancel handlers of the stream.
+     *
+     * @param delegate - The observer of the gRPC server stream.
+     * @param config - The flow control configuration.
+     * @param streamName - The name of the stream used in the logs and the metrics.
+     * @param coalescingKey - Return the key of a message, used by the COALESCE overflow policy,
+     *         or null if the message is never coalesced.
+     */
+    public FlowControlledStreamObserver(ServerCallStreamObserver<T> delegate,
+                                        StreamFlowControlConfig config, String streamName,
+                                        Function<T, ?> coalescingKey) {
+        _delegate = delegate;
+        _streamName = streamName;
+        _maxQueuedMessages = config.getMaxQueuedMessages() > 0 ? config.getMaxQueuedMessages() :
+                _DEFAULT_MAX_QUEUED_MESSAGES;
+        _overflowPolicy = config.getOverflowPolicy();
+        _coalescingKey = coalescingKey;
+        _delegate.setOnReadyHandler(this::onReady);
+        _delegate.setOnCancelHandler(this::onCancel);
+        _openStreams.add(this);
+    }
+
+    @Override
+    public void onNext(T value) {
+        boolean cancelled = false;
+        synchronized (this) {
+            if (!_closed) {
+                if (_queue.isEmpty() && _delegate.isReady()) {
+                    _delegate.onNext(value);
+                    return;
+                }
+                if (_queue.size() < _maxQueuedMessages) {
+                    _queue.addLast(value);
+                    return;
+                }
+                if (handleOverflow(value)) {
+                    return;
+                }
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            // The caller may hold its own locks while sending, as gRPC runs the handler on
+            // another thread.
+            CompletableFuture.runAsync(this::runOnCancelHandler);
+        }
+        // Let the caller stop sending to the stream, as gRPC does for a cancelled call.
+        throw Status.CANCELLED.withDescription("The stream " + _streamName + " has been closed.")
+                .asRuntimeException();
+    }
+
+    /**
+     * Apply the overflow policy to the new message, when the queue is full.
+     *
+     * @return false if the stream has been cancelled.
+     */
+    private boolean handleOverflow(T value) {
+        switch (_overflowPolicy) {
+            case CANCEL_STREAM:
+                logger.warn("The client of the stream " + _streamName + " is too slow, " +
+                        _queue.size() + " messages are queued. Cancelling the stream.");
+                _cancelledStreams.incrementAndGet();
+                _queue.clear();
+                close();
+                _delegate.onError(Status.RESOURCE_EXHAUSTED.withDescription("The client is " +
+                        "too slow to receive the messages of the stream.").asRuntimeException());
+                return false;
+            case COALESCE:
+                Object key = _coalescingKey.apply(value);
+                if (key == null) {
+                    break;
+                }
+                Iterator<T> iterator = _queue.iterator();
+                while (iterator.hasNext()) {
+                    if (key.equals(_coalescingKey.apply(iterator.next()))) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+                break;
+            case DROP_OLDEST:
+            default:
+                break;
+        }
+        if (_queue.size() >= _maxQueuedMessages) {
+            _queue.pollFirst();
+            long droppedMessages = _droppedMessages.incrementAndGet();
+            logger.warn("The client of the stream " + _streamName + " is too slow, dropped the " +
+                    "oldest queued message. Total number of dropped messages: " +
+                    droppedMessages);
+        }
+        _queue.addLast(value);
+        return true;
+    }
+
+    /**
+     * Send the queued messages, then let the onReady handler of the caller send its own.
+     */
+    private void onReady() {
+        if (!drain()) {
+            runOnCancelHandler();
+            return;
+        }
+        Runnable onReadyHandler;
+        synchronized (this) {
+            onReadyHandler = _closed ? null : _onReadyHandler;
+        }
+        if (onReadyHandler != null) {
+            onReadyHandler.run();
+        }
+    }
+
+    /**
+     * Send the queued messages for as long as the client is ready to receive them.
+     *
+     * @return false if the stream has been closed as the messages couldn't be sent.
+     */
+    private synchronized boolean drain() {
+        try {
+            while (!_closed && !_queue.isEmpty() && _delegate.isReady()) {
+                _delegate.onNext(_queue.pollFirst());
+            }
+        } catch (RuntimeException exception) {
+            logger.warn("Unable to send the queued messages of the stream " + _streamName + ": " +
+                    exception.getMessage());
+            _queue.clear();
+            close();
+            return false;
+        }
+        if (!_closed && _completionPending && _queue.isEmpty()) {
+            close();
+            _delegate.onCompleted();
+        }
+        return true;
+    }
+
+    private void onCancel() {
+        synchronized (this) {
+            _queue.clear();
+            close();
+        }
+        runOnCancelHandler();
+    }
+
+    /**
+     * Run the onCancel handler once the stream has been closed, by the client or because of the
+     * flow control, so the caller stops sending to it. Called without holding the lock, as the
+     * handler may take the locks of the caller, and only from the gRPC callbacks or
+     * asynchronously.
+     */
+    private void runOnCancelHandler() {
+        Runnable onCancelHandler;
+        synchronized (this) {
+            onCancelHandler = _onCancelHandler;
+            _onCancelHandler = null;
+        }
+        if (onCancelHandler != null) {
+            onCancelHandler.run();
+        }
+    }
+
+    private void close() {
+        _closed = true;
+        _openStreams.remove(this);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        if (!_closed) {
+            _queue.clear();
+            close();
+            _delegate.onError(throwable);
+        }
+    }
+
+    /**
+     * Complete the stream once all the queued messages have been sent.
+     */
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _completionPending = true;
+            if (drain()) {
+                return;
+            }
+        }
+        CompletableFuture.runAsync(this::runOnCancelHandler);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _delegate.isCancelled();
+    }
+
+    @Override
+    public synchronized void setOnCancelHandler(Runnable onCancelHandler) {
+        _onCancelHandler = onCancelHandler;
+    }
+
+    @Override
+    public synchronized void setCompression(String compression) {
+        _delegate.setCompression(compression);
+    }
+
+    /**
+     * Return whether a message would be sent straight away, rather than queued.
+     */
+    @Override
+    public synchronized boolean isReady() {
+        return !_closed && _queue.isEmpty() && _delegate.isReady();
+    }
+
+    /**
+     * Set the handler run when the client is ready, once the queued messages have been sent.
+     */
+    @Override
+    public synchronized void setOnReadyHandler(Runnable onReadyHandler) {
+        _onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public synchronized void disableAutoInboundFlowControl() {
+        _delegate.disableAutoInboundFlowControl();
+    }
+
+    @Override
+    public synchronized void request(int count) {
+        _delegate.request(count);
+    }
+
+    @Override
+    public synchronized void setMessageCompression(boolean enable) {
+        _delegate.setMessageCompression(enable);
+    }
+
+    public synchronized int getQueueDepth() {
+        return _queue.size();
+    }
+
+    /**
+     * Return the number of queued messages of each open stream, by the name of the stream.
+     */
+    public static Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new LinkedHashMap<>();
+        for (FlowControlledStreamObserver<?> stream : _openStreams) {
+            queueDepths.merge(stream._streamName, stream.getQueueDepth(), Integer::sum);
+        }
+        return Collections.unmodifiableMap(queueDepths);
+    }
+
+    public static int getNumberOfOpenStreams() {
+        return _openStreams.size();
+    }
+
+    public static long getDroppedMessageCount() {
+        return _droppedMessages.get();
+    }
+
+    public static long getCancelledStreamCount() {
+        return _cancelledStreams.get();
+    }
+}
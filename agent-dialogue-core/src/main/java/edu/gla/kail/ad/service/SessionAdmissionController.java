@@ -0,0 +1,132 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.CoreConfiguration.SessionAdmissionConfig;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits the new sessions into the limited number of session slots.
+ * Each session holds a slot from its admission until it ends, so the requests of the existing
+ * sessions never compete with the new sessions. When all the slots are taken, a bounded number of
+ * new sessions wait for a slot for a short time; the other ones are rejected straight away, so an
+ * overloaded server sheds the new sessions instead of slowing down the ongoing conversations.
+ */
+final class SessionAdmissionController {
+    private static final int _DEFAULT_MAX_WAITING_SESSIONS = 16;
+    private static final int _DEFAULT_MAX_WAIT_MILLIS = 2000;
+    private static final int _DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    private final int _maxSessions;
+    private final Semaphore _slots;
+    private final int _maxWaitingSessions;
+    private final long _maxWaitMillis;
+    private final long _retryAfterMillis;
+    private final AtomicInteger _waitingSessions = new AtomicInteger(0);
+    private final AtomicLong _rejectedSessions = new AtomicLong(0);
+
+    /**
+     * @param maxSessions - The number of session slots.
+     * @param config - The configuration of the admission, the unset values are replaced with the
+     *         defaults.
+     */
+    SessionAdmissionController(int maxSessions, SessionAdmissionConfig config) {
+        _maxSessions = maxSessions;
+        _slots = new Semaphore(maxSessions, true);
+        _maxWaitingSessions = config.getMaxWaitingSessions() > 0 ? config
+                .getMaxWaitingSessions() : _DEFAULT_MAX_WAITING_SESSIONS;
+        _maxWaitMillis = config.getMaxWaitMillis() > 0 ? config.getMaxWaitMillis() :
+                _DEFAULT_MAX_WAIT_MILLIS;
+        _retryAfterMillis = TimeUnit.SECONDS.toMillis(config.getRetryAfterSeconds() > 0 ?
+                config.getRetryAfterSeconds() : _DEFAULT_RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * Take a free slot, without waiting. A slot freed while sessions are waiting is left to
+     * them.
+     *
+     * @return boolean - True if the slot has been taken.
+     */
+    boolean tryAdmit() {
+        try {
+            return tryAcquireInTurn();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Take a free slot unless sessions are waiting for one. Unlike tryAcquire(), the timed
+     * tryAcquire keeps the fairness of the semaphore, so the sessions waiting get the slots in
+     * the order they came.
+     */
+    private boolean tryAcquireInTurn() throws InterruptedException {
+        return _slots.tryAcquire(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for a free slot, unless too many sessions are waiting already.
+     *
+     * @throws SessionLimitExceededException - Thrown when the wait queue is full or no slot has
+     *         been freed in time.
+     * @throws InterruptedException - Thrown when the thread is interrupted while waiting.
+     */
+    void admit() throws SessionLimitExceededException, InterruptedException {
+        if (tryAcquireInTurn()) {
+            return;
+        }
+        int waitingSessions;
+        do {
+            waitingSessions = _waitingSessions.get();
+            if (waitingSessions >= _maxWaitingSessions) {
+                throw reject();
+            }
+        } while (!_waitingSessions.compareAndSet(waitingSessions, waitingSessions + 1));
+        try {
+            if (!_slots.tryAcquire(_maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw reject();
+            }
+        } finally {
+            _waitingSessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Check whether a new session can wait for a slot, i.e. the wait queue isn't full.
+     */
+    boolean canWait() {
+        return _waitingSessions.get() < _maxWaitingSessions;
+    }
+
+    SessionLimitExceededException reject() {
+        _rejectedSessions.incrementAndGet();
+        return new SessionLimitExceededException("The maximum number of conversations have " +
+                "been reached - wait some time or quit coversations on other user accounts.",
+                _retryAfterMillis);
+    }
+
+    /**
+     * Free the slot of an ended session.
+     */
+    void release() {
+        _slots.release();
+    }
+
+    int getNumberOfAdmittedSessions() {
+        return _maxSessions - _slots.availablePermits();
+    }
+
+    int getNumberOfWaitingSessions() {
+        return _waitingSessions.get();
+    }
+
+    /**
+     * Return the number of new sessions rejected since the start of the server.
+     */
+    long getRejectedSessionCount() {
+        return _rejectedSessions.get();
+    }
+}
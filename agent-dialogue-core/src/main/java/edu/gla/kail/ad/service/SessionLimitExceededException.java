@@ -0,0 +1,23 @@
+package edu.gla.kail.ad.service;
+
+/**
+ * Thrown when a new session cannot be started because all the session slots are taken.
+ */
+class SessionLimitExceededException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final long _retryAfterMillis;
+
+    /**
+     * @param message - The description of the error sent to the client.
+     * @param retryAfterMillis - The time after which the client should try again.
+     */
+    SessionLimitExceededException(String message, long retryAfterMillis) {
+        super(message);
+        _retryAfterMillis = retryAfterMillis;
+    }
+
+    long getRetryAfterMillis() {
+        return _retryAfterMillis;
+    }
+}
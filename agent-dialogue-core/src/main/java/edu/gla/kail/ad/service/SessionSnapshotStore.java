@@ -0,0 +1,83 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.core.Log.SessionSnapshot;
+import edu.gla.kail.ad.core.Log.SessionSnapshots;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the snapshot file of the active sessions (SessionSnapshots).
+ * The snapshot is written to a temporary file first and then moved over the previous one, so a
+ * crash while writing leaves the previous snapshot in place.
+ */
+final class SessionSnapshotStore {
+    private static final Logger logger = LoggerFactory.getLogger(SessionSnapshotStore.class);
+
+    private final Path _snapshotPath;
+
+    /**
+     * @param snapshotPath - The path of the snapshot file.
+     */
+    SessionSnapshotStore(String snapshotPath) {
+        _snapshotPath = Paths.get(snapshotPath);
+    }
+
+    /**
+     * Read the sessions of the snapshot file. A missing or damaged file is read as no sessions,
+     * so the server always starts.
+     *
+     * @return Map<String, SessionSnapshot> - The sessions by the userID of their user.
+     */
+    Map<String, SessionSnapshot> read() {
+        Map<String, SessionSnapshot> sessions = new HashMap<>();
+        try (InputStream inputStream = Files.newInputStream(_snapshotPath)) {
+            for (SessionSnapshot session : SessionSnapshots.parseFrom(inputStream)
+                    .getSessionList()) {
+                sessions.put(session.getUserId(), session);
+            }
+            logger.info("Read " + sessions.size() + " sessions from the snapshot " +
+                    _snapshotPath + ".");
+        } catch (NoSuchFileException exception) {
+            logger.info("There is no session snapshot " + _snapshotPath + ".");
+        } catch (IOException exception) {
+            logger.warn("Unable to read the session snapshot " + _snapshotPath + ": " +
+                    exception.getMessage());
+            sessions.clear();
+        }
+        return sessions;
+    }
+
+    /**
+     * Replace the snapshot file with the sessions.
+     *
+     * @param sessions - The sessions to save.
+     * @throws IOException - Thrown when the snapshot cannot be written.
+     */
+    void write(Collection<SessionSnapshot> sessions) throws IOException {
+        Path parent = _snapshotPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporaryPath = Paths.get(_snapshotPath + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporaryPath)) {
+            SessionSnapshots.newBuilder()
+                    .addAllSession(sessions)
+                    .build()
+                    .writeTo(outputStream);
+        }
+        Files.move(temporaryPath, _snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
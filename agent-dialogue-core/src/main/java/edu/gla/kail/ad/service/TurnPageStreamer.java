@@ -0,0 +1,152 @@
+package edu.gla.kail.ad.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.gla.kail.ad.core.TurnQueryCursor;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams the turns of a TurnQueryCursor in pages, reading the next page only when the client is
+ * ready to receive it (see ServerCallStreamObserver.isReady). At most one page is held in memory,
+ * however many turns the query matches.
+ * The pages are read from the segments on a separate pool shared by all the streams, so the gRPC
+ * transport threads running the onReady handler never wait for the disk. A page is sent as soon
+ * as it has been read if the client is ready, or from the onReady handler otherwise.
+ */
+class TurnPageStreamer {
+    private static final Logger logger = LoggerFactory.getLogger(TurnPageStreamer.class);
+
+    private static final int _DEFAULT_PAGE_SIZE = 100;
+    private static final int _MAX_PAGE_SIZE = 1000;
+
+    // Reads the pages of all the streams.
+    private static final ExecutorService _executor = Executors.newFixedThreadPool(Runtime
+            .getRuntime().availableProcessors(), new ThreadFactoryBuilder()
+            .setNameFormat("turn-page-reader-%d")
+            .setDaemon(true)
+            .build());
+
+    private final ServerCallStreamObserver<TurnPage> _responseObserver;
+    private final TurnQueryCursor _cursor;
+    private final int _pageSize;
+
+    // Guarded by this.
+    // The page read and not sent yet, or null.
+    private TurnPage _nextPage = null;
+    private boolean _lastPage = false;
+    // True while a page is being read; the cursor is only used by the reading task.
+    private boolean _reading = false;
+    private boolean _closed = false;
+
+    /**
+     * Set up the handlers of the stream. Must be called before the gRPC call handler returns;
+     * the first page is sent once the stream is ready.
+     *
+     * @param responseObserver - The observer of the gRPC server stream.
+     * @param cursor - The cursor of the query, closed once the stream ends.
+     * @param pageSize - The requested number of turns in a page, or 0 for the default.
+     */
+    TurnPageStreamer(ServerCallStreamObserver<TurnPage> responseObserver, TurnQueryCursor
+            cursor, int pageSize) {
+        _responseObserver = responseObserver;
+        _cursor = cursor;
+        _pageSize = pageSize > 0 ? Math.min(pageSize, _MAX_PAGE_SIZE) : _DEFAULT_PAGE_SIZE;
+        _responseObserver.setOnReadyHandler(this::send);
+        _responseObserver.setOnCancelHandler(this::close);
+    }
+
+    /**
+     * Send the page read, if the client is ready to receive it, and start reading the next one.
+     */
+    private synchronized void send() {
+        if (_closed || !_responseObserver.isReady()) {
+            return;
+        }
+        try {
+            if (_nextPage != null) {
+                TurnPage page = _nextPage;
+                _nextPage = null;
+                if (page.getTurnCount() > 0) {
+                    _responseObserver.onNext(page);
+                }
+                if (_lastPage) {
+                    close();
+                    _responseObserver.onCompleted();
+                    return;
+                }
+            }
+        } catch (RuntimeException exception) {
+            logger.warn("Unable to send the turns of the query: " + exception.getMessage());
+            close();
+            return;
+        }
+        if (!_reading) {
+            _reading = true;
+            _executor.execute(this::readPage);
+        }
+    }
+
+    /**
+     * Read the next page from the cursor, then send it.
+     */
+    private void readPage() {
+        TurnPage.Builder page = TurnPage.newBuilder();
+        boolean lastPage;
+        try {
+            while (page.getTurnCount() < _pageSize && _cursor.hasNext()) {
+                page.addTurn(_cursor.next());
+            }
+            lastPage = !_cursor.hasNext();
+        } catch (RuntimeException exception) {
+            logger.warn("Unable to read the turns of the query: " + exception.getMessage());
+            synchronized (this) {
+                _reading = false;
+                if (_closed) {
+                    closeCursor();
+                    return;
+                }
+                close();
+            }
+            _responseObserver.onError(Status.INTERNAL.withDescription("Unable to read the " +
+                    "turns: " + exception.getMessage()).asRuntimeException());
+            return;
+        }
+        synchronized (this) {
+            _reading = false;
+            if (_closed) {
+                // The stream has been cancelled while the page was being read.
+                closeCursor();
+                return;
+            }
+            _nextPage = page.setNextPageToken(_cursor.getPageToken()).build();
+            _lastPage = lastPage;
+            send();
+        }
+    }
+
+    private synchronized void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _nextPage = null;
+        if (!_reading) {
+            // Otherwise the cursor is closed by the reading task once it has finished.
+            closeCursor();
+        }
+    }
+
+    private void closeCursor() {
+        try {
+            _cursor.close();
+        } catch (IOException exception) {
+            logger.warn("Unable to close the turn log: " + exception.getMessage());
+        }
+    }
+}
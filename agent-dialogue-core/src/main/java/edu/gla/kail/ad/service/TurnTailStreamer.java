@@ -0,0 +1,83 @@
+package edu.gla.kail.ad.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.TurnTail;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the turns of a TurnTail subscription to a client. The turns are sent from a separate
+ * thread shared by all the streams, and only while the client is ready to receive them (see
+ * ServerCallStreamObserver.isReady), so neither the thread logging the turns nor the other
+ * streams wait for a slow client; its turns pile up in the bounded buffer of its subscription
+ * until the oldest ones are dropped.
+ */
+class TurnTailStreamer {
+    private static final Logger logger = LoggerFactory.getLogger(TurnTailStreamer.class);
+
+    private static final int _DEFAULT_BUFFER_SIZE = 1000;
+    private static final int _MAX_BUFFER_SIZE = 10000;
+
+    // Sends the turns of all the streams.
+    private static final ExecutorService _executor = Executors.newSingleThreadExecutor(new
+            ThreadFactoryBuilder()
+            .setNameFormat("turn-tail-%d")
+            .setDaemon(true)
+            .build());
+
+    private final ServerCallStreamObserver<Turn> _responseObserver;
+    private final TurnTail.Subscription _subscription;
+    // True if sending the turns has been scheduled and hasn't started yet.
+    private final AtomicBoolean _sendScheduled = new AtomicBoolean(false);
+
+    /**
+     * Subscribe the stream to the turns. Must be called before the gRPC call handler returns.
+     *
+     * @param responseObserver - The observer of the gRPC server stream.
+     * @param turnTail - The publisher of the turns.
+     * @param request - The filter of the turns and the size of the buffer.
+     */
+    TurnTailStreamer(ServerCallStreamObserver<Turn> responseObserver, TurnTail turnTail,
+                     TailTurnsRequest request) {
+        _responseObserver = responseObserver;
+        int bufferSize = request.getBufferSize() > 0 ? Math.min(request.getBufferSize(),
+                _MAX_BUFFER_SIZE) : _DEFAULT_BUFFER_SIZE;
+        _subscription = turnTail.subscribe(request.getFilter(), bufferSize, this::scheduleSend);
+        _responseObserver.setOnReadyHandler(this::scheduleSend);
+        _responseObserver.setOnCancelHandler(this::close);
+    }
+
+    private void scheduleSend() {
+        if (_sendScheduled.compareAndSet(false, true)) {
+            _executor.execute(this::send);
+        }
+    }
+
+    /**
+     * Send the buffered turns for as long as the client is ready to receive them.
+     */
+    private void send() {
+        _sendScheduled.set(false);
+        try {
+            Turn turn;
+            while (_responseObserver.isReady() && (turn = _subscription.poll()) != null) {
+                _responseObserver.onNext(turn);
+            }
+        } catch (RuntimeException exception) {
+            logger.warn("Unable to send the turns to the subscriber: " + exception.getMessage());
+            close();
+        }
+    }
+
+    private void close() {
+        _subscription.close();
+        logger.info("Turn tail subscriber left, " + _subscription.getDroppedTurnCount() +
+                " turns were dropped.");
+    }
+}
@@ -0,0 +1,165 @@
+package edu.gla.kail.ad.agents;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class HttpTransportSingletonTest {
+    // More than the connections the transport keeps open to an endpoint.
+    private static final int _NUMBER_OF_REQUESTS = 20;
+
+    private HttpServer _server;
+    private ExecutorService _serverExecutor;
+    // Released once the test is over, so the slow requests never get their responses before.
+    private final CountDownLatch _testFinished = new CountDownLatch(1);
+    private HttpTransportSingleton _httpTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        _serverExecutor = Executors.newCachedThreadPool();
+        _server.setExecutor(_serverExecutor);
+        _server.createContext("/hello", exchange -> respond(exchange, "hello"));
+        _server.createContext("/slow", exchange -> {
+            try {
+                _testFinished.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "slow");
+        });
+        _server.createContext("/late", exchange -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "late");
+        });
+        _server.start();
+        _httpTransport = HttpTransportSingleton.getHttpTransportSingleton();
+    }
+
+    @After
+    public void tearDown() {
+        _testFinished.countDown();
+        HttpTransportSingleton.shutDown();
+        _server.stop(0);
+        _serverExecutor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private CompletableFuture<HttpTransportSingleton.Response> get(String path, long
+            timeoutMillis) throws IOException {
+        return _httpTransport.send("GET", new URL("http", "localhost", _server.getAddress()
+                .getPort(), path), Collections.emptyMap(), new byte[0], 0, timeoutMillis);
+    }
+
+    /**
+     * Test if the responses are received over the pooled connections.
+     */
+    @Test
+    public void testResponses() throws Exception {
+        for (int i = 0; i < _NUMBER_OF_REQUESTS; i++) {
+            HttpTransportSingleton.Response response = get("/hello", 0).get(5, TimeUnit
+                    .SECONDS);
+            assertEquals(200, response.getStatusCode());
+            assertEquals("hello", response.getBodyAsString());
+        }
+        assertEquals(0, _httpTransport.getRequestsInFlight());
+    }
+
+    /**
+     * Test if a request is completed with a TimeoutException once its time budget is spent.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try {
+            get("/slow", 100).get(5, TimeUnit.SECONDS);
+            fail("The request has not timed out!");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, _httpTransport.getRequestsInFlight());
+    }
+
+    /**
+     * Test if the cancelled requests give their connections back, so the requests sent
+     * afterwards don't wait for a free connection.
+     */
+    @Test
+    public void testCancelledRequestsReleaseConnections() throws Exception {
+        List<CompletableFuture<HttpTransportSingleton.Response>> slowRequests = new
+                ArrayList<>();
+        for (int i = 0; i < _NUMBER_OF_REQUESTS; i++) {
+            slowRequests.add(get("/slow", 0));
+        }
+        // Let the requests take the connections of the pool.
+        Thread.sleep(200);
+        for (CompletableFuture<HttpTransportSingleton.Response> slowRequest : slowRequests) {
+            slowRequest.cancel(true);
+            try {
+                slowRequest.join();
+                fail("The cancelled request has completed!");
+            } catch (CancellationException exception) {
+                // Expected.
+            }
+        }
+        assertEquals(0, _httpTransport.getRequestsInFlight());
+        assertEquals("hello", get("/hello", 2000).get(5, TimeUnit.SECONDS)
+                .getBodyAsString());
+    }
+
+    /**
+     * Test if the late response of a timed out request is not read by the next requests sent
+     * over the same connections.
+     */
+    @Test
+    public void testLateResponseIsNotReused() throws Exception {
+        try {
+            get("/late", 100).get(5, TimeUnit.SECONDS);
+            fail("The request has not timed out!");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof TimeoutException);
+        }
+        // Let the late response arrive.
+        Thread.sleep(400);
+        for (int i = 0; i < _NUMBER_OF_REQUESTS; i++) {
+            assertEquals("The response of another request has been read!", "hello", get
+                    ("/hello", 0).get(5, TimeUnit.SECONDS).getBodyAsString());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.gla.kail.ad.core;
+
+import com.google.common.io.ByteStreams;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class BlockCompressionTest {
+    private static final int _BLOCK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Return data which compresses well, with some random bytes.
+     */
+    private static byte[] buildData(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(7);
+        for (int i = 0; i < length; i++) {
+            data[i] = i % 10 == 0 ? (byte) random.nextInt() : (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private static byte[] roundTripBlock(Compression compression, byte[] data) throws
+            IOException {
+        ByteBuffer block = BlockCompression.encodeBlock(compression, data, data.length);
+        ByteBuffer blockHeader = (ByteBuffer) block.duplicate().limit(BlockCompression
+                .BLOCK_HEADER_SIZE);
+        ByteBuffer compressedData = (ByteBuffer) block.duplicate().position(BlockCompression
+                .BLOCK_HEADER_SIZE);
+        return BlockCompression.decodeBlock(blockHeader, compressedData.slice());
+    }
+
+    private byte[] roundTripFile(Compression compression, byte[] data) throws IOException {
+        File file = _temporaryFolder.newFile();
+        try (OutputStream outputStream = new BlockCompression.BlockOutputStream(new
+                FileOutputStream(file), compression, _BLOCK_SIZE)) {
+            // Written in uneven pieces, across the boundaries of the blocks.
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, 333);
+                outputStream.write(data, offset, length);
+                offset += length;
+            }
+        }
+        try (InputStream inputStream = BlockCompression.openInputStream(file.getPath())) {
+            return ByteStreams.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Test if a block is decompressed into the same data, for both compressions.
+     */
+    @Test
+    public void testBlockRoundTrip() throws IOException {
+        byte[] data = buildData(5000);
+        assertArrayEquals(data, roundTripBlock(Compression.GZIP, data));
+        assertArrayEquals(data, roundTripBlock(Compression.DEFLATE, data));
+        assertArrayEquals(new byte[0], roundTripBlock(Compression.DEFLATE, new byte[0]));
+    }
+
+    /**
+     * Test if the data written to a file in several blocks is read back the same, for both
+     * compressions.
+     */
+    @Test
+    public void testFileRoundTrip() throws IOException {
+        byte[] data = buildData(10 * _BLOCK_SIZE + 17);
+        assertArrayEquals(data, roundTripFile(Compression.GZIP, data));
+        assertArrayEquals(data, roundTripFile(Compression.DEFLATE, data));
+    }
+
+    /**
+     * Test if the files which aren't compressed are read as they are.
+     */
+    @Test
+    public void testUncompressedFileIsReadAsIs() throws IOException {
+        File file = _temporaryFolder.newFile();
+        byte[] data = buildData(100);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(data);
+        }
+        try (InputStream inputStream = BlockCompression.openInputStream(file.getPath())) {
+            assertArrayEquals(data, ByteStreams.toByteArray(inputStream));
+        }
+    }
+
+    /**
+     * Test if a block with damaged compressed data is rejected by its checksum.
+     */
+    @Test
+    public void testDamagedBlockIsRejected() throws IOException {
+        byte[] data = buildData(5000);
+        ByteBuffer block = BlockCompression.encodeBlock(Compression.DEFLATE, data, data.length);
+        byte[] damaged = Arrays.copyOf(block.array(), block.limit());
+        damaged[BlockCompression.BLOCK_HEADER_SIZE + 5] ^= 0x01;
+        ByteBuffer damagedBlock = ByteBuffer.wrap(damaged);
+        try {
+            BlockCompression.decodeBlock((ByteBuffer) damagedBlock.duplicate().limit
+                    (BlockCompression.BLOCK_HEADER_SIZE), ByteBuffer.wrap(damaged, BlockCompression
+                    .BLOCK_HEADER_SIZE, damaged.length - BlockCompression.BLOCK_HEADER_SIZE)
+                    .slice());
+            fail("The damaged block has been decoded!");
+        } catch (IOException exception) {
+            assertTrue(exception.getMessage().contains("checksum"));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.CircuitBreakerConfig;
+import edu.gla.kail.ad.core.CircuitBreaker.State;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+    private static final long _AGENT_TIMEOUT_MILLIS = 1000;
+    private static final int _PERMITTED_CALLS_IN_HALF_OPEN_STATE = 2;
+
+    /**
+     * Return a new breaker, which opens for one second once half of the last 4 calls have
+     * failed.
+     */
+    private static CircuitBreaker createCircuitBreaker(String agentId) {
+        return CircuitBreaker.getCircuitBreaker(AgentConfig.newBuilder()
+                .setProjectId(agentId)
+                .setCircuitBreaker(CircuitBreakerConfig.newBuilder()
+                        .setSlidingWindowSize(4)
+                        .setMinimumNumberOfCalls(4)
+                        .setFailureRateThresholdPercent(50)
+                        .setOpenStateDurationSeconds(1)
+                        .setPermittedCallsInHalfOpenState(_PERMITTED_CALLS_IN_HALF_OPEN_STATE))
+                .build(), _AGENT_TIMEOUT_MILLIS);
+    }
+
+    private static long acquirePermission(CircuitBreaker circuitBreaker) {
+        long permission = circuitBreaker.tryAcquirePermission();
+        assertNotEquals("The call has not been permitted!", CircuitBreaker.NOT_PERMITTED,
+                permission);
+        return permission;
+    }
+
+    private static void call(CircuitBreaker circuitBreaker, boolean successful) {
+        circuitBreaker.onCallFinished(acquirePermission(circuitBreaker), successful, 10);
+    }
+
+    /**
+     * Open the circuit of the breaker and wait until it lets the trial calls through.
+     */
+    private static void openAndWait(CircuitBreaker circuitBreaker) throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            call(circuitBreaker, false);
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        Thread.sleep(1100);
+    }
+
+    /**
+     * Test if the agents without the circuit breaker configured have no breaker.
+     */
+    @Test
+    public void testNoCircuitBreakerConfigured() {
+        assertNull(CircuitBreaker.getCircuitBreaker(AgentConfig.newBuilder()
+                .setProjectId("no-breaker")
+                .build(), _AGENT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Test if the circuit stays closed until the minimum number of calls has been made, then
+     * opens once the failure rate reaches the threshold, and refuses the calls while open.
+     */
+    @Test
+    public void testOpensAtFailureRateThreshold() {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("opens");
+        call(circuitBreaker, false);
+        call(circuitBreaker, false);
+        call(circuitBreaker, true);
+        assertEquals("The circuit has opened before the minimum number of calls!", State.CLOSED,
+                circuitBreaker.getState());
+
+        call(circuitBreaker, true);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals("A call has been permitted while the circuit is open!", CircuitBreaker
+                .NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+        assertEquals(1, circuitBreaker.getNumberOfTransitions());
+    }
+
+    /**
+     * Test if a slow call counts towards the slow call rate, not the failure rate.
+     */
+    @Test
+    public void testOpensAtSlowCallRateThreshold() {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("slow");
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onCallFinished(acquirePermission(circuitBreaker), true,
+                    _AGENT_TIMEOUT_MILLIS);
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    /**
+     * Test if only the permitted number of trial calls is let through in the HALF_OPEN state,
+     * and the circuit closes once they have all succeeded.
+     */
+    @Test
+    public void testHalfOpenClosesAfterSuccessfulTrialCalls() throws InterruptedException {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("half-open-closes");
+        openAndWait(circuitBreaker);
+
+        long[] permissions = new long[_PERMITTED_CALLS_IN_HALF_OPEN_STATE];
+        for (int i = 0; i < _PERMITTED_CALLS_IN_HALF_OPEN_STATE; i++) {
+            permissions[i] = acquirePermission(circuitBreaker);
+            assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        }
+        assertEquals("More trial calls than permitted have been let through!", CircuitBreaker
+                .NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onCallFinished(permissions[0], true, 10);
+        assertEquals("The circuit has closed before all the trial calls finished!", State
+                .HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onCallFinished(permissions[1], true, 10);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        acquirePermission(circuitBreaker);
+    }
+
+    /**
+     * Test if the circuit opens again when the trial calls fail.
+     */
+    @Test
+    public void testHalfOpenReopensAfterFailedTrialCalls() throws InterruptedException {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("half-open-reopens");
+        openAndWait(circuitBreaker);
+
+        call(circuitBreaker, true);
+        call(circuitBreaker, false);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(CircuitBreaker.NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+    }
+
+    /**
+     * Test if a released permission of a trial call lets another trial call through.
+     */
+    @Test
+    public void testReleasedTrialPermissionIsReused() throws InterruptedException {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("half-open-release");
+        openAndWait(circuitBreaker);
+
+        long permission = acquirePermission(circuitBreaker);
+        acquirePermission(circuitBreaker);
+        assertEquals(CircuitBreaker.NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+        circuitBreaker.releasePermission(permission);
+        assertNotEquals("The released permission hasn't been given to a new trial call!",
+                CircuitBreaker.NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    /**
+     * Test if the outcome of a call permitted while the circuit was closed, which finishes once
+     * the circuit is half open, is not taken for the outcome of a trial call.
+     */
+    @Test
+    public void testStaleOutcomeIsIgnoredInHalfOpen() throws InterruptedException {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("half-open-stale-outcome");
+        long stalePermission = acquirePermission(circuitBreaker);
+        openAndWait(circuitBreaker);
+
+        long permission = acquirePermission(circuitBreaker);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onCallFinished(stalePermission, false, 10);
+        assertEquals("The stale outcome has been counted as a trial call!", State.HALF_OPEN,
+                circuitBreaker.getState());
+        circuitBreaker.onCallFinished(permission, true, 10);
+        call(circuitBreaker, true);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    /**
+     * Test if the release of a permission granted while the circuit was closed doesn't let
+     * more trial calls through.
+     */
+    @Test
+    public void testStaleReleaseIsIgnoredInHalfOpen() throws InterruptedException {
+        CircuitBreaker circuitBreaker = createCircuitBreaker("half-open-stale-release");
+        long stalePermission = acquirePermission(circuitBreaker);
+        openAndWait(circuitBreaker);
+
+        acquirePermission(circuitBreaker);
+        acquirePermission(circuitBreaker);
+        circuitBreaker.releasePermission(stalePermission);
+        assertEquals("A trial permission has been released by a call made while closed!",
+                CircuitBreaker.NOT_PERMITTED, circuitBreaker.tryAcquirePermission());
+    }
+}
@@ -0,0 +1,291 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.Client.InputInteraction;
+import edu.gla.kail.ad.Client.InteractionRequest;
+import edu.gla.kail.ad.Client.InteractionType;
+import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.ResponseSelectionMode;
+import edu.gla.kail.ad.core.Log.ResponseLog;
+import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+import io.grpc.Context;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class DialogAgentManagerAsyncTest {
+    // Holds the turn log, which is opened once for all the tests by the first session.
+    @ClassRule
+    public static TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    // The agents are registered under new IDs in each test, as the registry is shared.
+    private static final AtomicInteger _numberOfAgents = new AtomicInteger(0);
+
+    private final ScheduledExecutorService _scheduler = Executors
+            .newSingleThreadScheduledExecutor();
+    // The turns logged by the session of the test.
+    private TurnTail.Subscription _turns;
+
+    @After
+    public void tearDown() {
+        if (_turns != null) {
+            _turns.close();
+        }
+        _scheduler.shutdownNow();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        LogTurnManagerSingleton.getLogTurnManagerSingleton().saveAndExit();
+        File configFile = _temporaryFolder.newFile("default.json");
+        Files.write(configFile.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        PropertiesSingleton.reloadProperties(configFile.toURI().toURL());
+    }
+
+    private static void setResponseSelectionMode(ResponseSelectionMode responseSelectionMode)
+            throws IOException {
+        File configFile = new File(_temporaryFolder.getRoot(), "config.json");
+        Files.write(configFile.toPath(), ("{\"logStoragePath\": \"" + _temporaryFolder.getRoot()
+                .getPath() + "\", \"responseSelectionMode\": \"" + responseSelectionMode.name() +
+                "\"}").getBytes(StandardCharsets.UTF_8));
+        PropertiesSingleton.reloadProperties(configFile.toURI().toURL());
+    }
+
+    /**
+     * Create an agent shared through the registry.
+     *
+     * @param timeoutMillis - The timeout of the calls to the agent, or 0 for the default.
+     */
+    private static FakeAgent createAgent(int timeoutMillis) {
+        FakeAgent agent = new FakeAgent("agent" + _numberOfAgents.incrementAndGet(),
+                timeoutMillis);
+        AgentRegistrySingleton.getAgentRegistrySingleton().registerSharedAgent(agent
+                .getAgentConfig(), agent);
+        return agent;
+    }
+
+    /**
+     * Start a session using the agents, and subscribe to the turns it logs.
+     */
+    private DialogAgentManager startSession(ResponseSelectionMode responseSelectionMode,
+                                            FakeAgent... agents) throws IOException {
+        setResponseSelectionMode(responseSelectionMode);
+        DialogAgentManager dialogAgentManager = new DialogAgentManager();
+        List<AgentConfig> agentConfigs = new ArrayList<>();
+        for (FakeAgent agent : agents) {
+            agentConfigs.add(agent.getAgentConfig());
+        }
+        dialogAgentManager.setUpAgents(agentConfigs);
+        _turns = LogTurnManagerSingleton.getLogTurnManagerSingleton().getTurnTail().subscribe
+                (TurnFilter.newBuilder()
+                        .setSessionId(dialogAgentManager.getSessionId())
+                        .build(), 10, () -> {
+                });
+        return dialogAgentManager;
+    }
+
+    private static InteractionRequest buildRequest(FakeAgent... agents) {
+        InteractionRequest.Builder interactionRequest = InteractionRequest.newBuilder()
+                .setUserId("user")
+                .setInteraction(InputInteraction.newBuilder()
+                        .setType(InteractionType.TEXT)
+                        .setText("Hello"));
+        for (FakeAgent agent : agents) {
+            interactionRequest.addChosenAgents(agent.getAgentId());
+        }
+        return interactionRequest.build();
+    }
+
+    /**
+     * Return the turn logged by the session, waiting for it if needed.
+     */
+    private Turn takeTurn() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Turn turn;
+        while ((turn = _turns.poll()) == null) {
+            assertTrue("The turn has not been logged!", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        return turn;
+    }
+
+    /**
+     * Wait until the call to the agent has been cancelled, which happens right after its
+     * unsuccessful response has been completed.
+     */
+    private static void assertCancelled(FakeAgent.Call call) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!call._responseFuture.isCancelled()) {
+            assertTrue("The call to the agent has not been cancelled!", System.nanoTime() <
+                    deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Test if the response is chosen and the turn is logged once all the agents have replied,
+     * without the caller waiting for the agents.
+     */
+    @Test
+    public void testResponseWaitsForAllAgents() throws Exception {
+        FakeAgent firstAgent = createAgent(0);
+        FakeAgent secondAgent = createAgent(0);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .WAIT_FOR_ALL_AGENTS, firstAgent, secondAgent);
+        CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse(buildRequest
+                (firstAgent, secondAgent), null);
+        FakeAgent.Call firstCall = firstAgent.takeCall();
+        FakeAgent.Call secondCall = secondAgent.takeCall();
+        assertFalse("The response has been chosen before the agents replied!", response
+                .isDone());
+
+        secondCall.respond(MessageStatus.SUCCESSFUL, "second");
+        assertFalse("The response has been chosen before all the agents replied!", response
+                .isDone());
+        firstCall.respond(MessageStatus.UNSUCCESSFUL, "first");
+        ResponseLog responseLog = response.get(5, TimeUnit.SECONDS);
+        assertEquals("second", responseLog.getRawResponse());
+        assertEquals(secondAgent.getAgentId(), responseLog.getAgentId());
+
+        Turn turn = takeTurn();
+        assertEquals(responseLog, turn.getResponseLog());
+        assertEquals(2, turn.getCandidateResponseCount());
+        assertEquals(firstAgent.getAgentId(), turn.getCandidateResponse(0).getAgentId());
+    }
+
+    /**
+     * Test if the first successful response is sent back without waiting for the slower agents,
+     * and the turn is logged with all the responses once they have been collected.
+     */
+    @Test
+    public void testFirstSuccessfulResponse() throws Exception {
+        FakeAgent slowAgent = createAgent(0);
+        FakeAgent fastAgent = createAgent(0);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .FIRST_SUCCESSFUL, slowAgent, fastAgent);
+        CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse(buildRequest
+                (slowAgent, fastAgent), null);
+        FakeAgent.Call slowCall = slowAgent.takeCall();
+        fastAgent.takeCall().respond(MessageStatus.SUCCESSFUL, "fast");
+        ResponseLog responseLog = response.get(5, TimeUnit.SECONDS);
+        assertEquals("fast", responseLog.getRawResponse());
+        assertNull("The turn has been logged before all the responses were collected!", _turns
+                .poll());
+
+        slowCall.respond(MessageStatus.SUCCESSFUL, "slow");
+        Turn turn = takeTurn();
+        assertEquals(responseLog, turn.getResponseLog());
+        assertEquals(2, turn.getCandidateResponseCount());
+    }
+
+    /**
+     * Test if an unsuccessful response is sent back once all the agents have failed, when
+     * the first successful response is waited for.
+     */
+    @Test
+    public void testFirstSuccessfulResponseWhenAllAgentsFail() throws Exception {
+        FakeAgent firstAgent = createAgent(0);
+        FakeAgent secondAgent = createAgent(0);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .FIRST_SUCCESSFUL, firstAgent, secondAgent);
+        CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse(buildRequest
+                (firstAgent, secondAgent), null);
+        firstAgent.takeCall().respond(MessageStatus.UNSUCCESSFUL, "first");
+        FakeAgent.Call secondCall = secondAgent.takeCall();
+        assertFalse(response.isDone());
+
+        secondCall._responseFuture.completeExceptionally(new IllegalStateException("Failed."));
+        assertEquals(MessageStatus.UNSUCCESSFUL, response.get(5, TimeUnit.SECONDS)
+                .getMessageStatus());
+        assertEquals(2, takeTurn().getCandidateResponseCount());
+    }
+
+    /**
+     * Test if an agent which doesn't reply within its timeout is given up on: its call is
+     * cancelled and its response is unsuccessful.
+     */
+    @Test
+    public void testAgentTimeout() throws Exception {
+        FakeAgent agent = createAgent(100);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .WAIT_FOR_ALL_AGENTS, agent);
+        CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse(buildRequest
+                (agent), null);
+        FakeAgent.Call call = agent.takeCall();
+        assertTrue(call._deadline.timeRemaining(TimeUnit.MILLISECONDS) <= 100);
+
+        assertEquals(MessageStatus.UNSUCCESSFUL, response.get(5, TimeUnit.SECONDS)
+                .getMessageStatus());
+        assertCancelled(call);
+    }
+
+    /**
+     * Test if the deadline of the client's call is passed down to the agent when it comes
+     * before the timeout of the agent, and the agent is not waited for after it.
+     */
+    @Test
+    public void testDeadlineOfCallIsPropagated() throws Exception {
+        FakeAgent agent = createAgent(60000);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .WAIT_FOR_ALL_AGENTS, agent);
+        Context.CancellableContext callContext = Context.current().withDeadlineAfter(200,
+                TimeUnit.MILLISECONDS, _scheduler);
+        try {
+            CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse
+                    (buildRequest(agent), callContext);
+            FakeAgent.Call call = agent.takeCall();
+            assertTrue("The deadline of the call has not been passed to the agent!", call
+                    ._deadline.timeRemaining(TimeUnit.MILLISECONDS) <= 200);
+
+            assertEquals(MessageStatus.UNSUCCESSFUL, response.get(5, TimeUnit.SECONDS)
+                    .getMessageStatus());
+            assertCancelled(call);
+        } finally {
+            callContext.cancel(null);
+        }
+    }
+
+    /**
+     * Test if the agent is not waited for once the client has cancelled its call.
+     */
+    @Test
+    public void testCancelledCall() throws Exception {
+        FakeAgent agent = createAgent(60000);
+        DialogAgentManager dialogAgentManager = startSession(ResponseSelectionMode
+                .WAIT_FOR_ALL_AGENTS, agent);
+        Context.CancellableContext callContext = Context.current().withCancellation();
+        CompletableFuture<ResponseLog> response = dialogAgentManager.getResponse(buildRequest
+                (agent), callContext);
+        FakeAgent.Call call = agent.takeCall();
+        callContext.cancel(null);
+
+        assertEquals(MessageStatus.UNSUCCESSFUL, response.get(5, TimeUnit.SECONDS)
+                .getMessageStatus());
+        assertEquals("The call has been cancelled by the client.", takeTurn()
+                .getCandidateResponse(0).getErrorMessage());
+        assertCancelled(call);
+    }
+}
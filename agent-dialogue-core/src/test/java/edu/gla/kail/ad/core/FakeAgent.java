@@ -0,0 +1,106 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.Client;
+import edu.gla.kail.ad.Client.InteractionRequest;
+import edu.gla.kail.ad.CoreConfiguration.AgentConfig;
+import edu.gla.kail.ad.CoreConfiguration.ServiceProvider;
+import edu.gla.kail.ad.core.Log.ResponseLog;
+import edu.gla.kail.ad.core.Log.ResponseLog.MessageStatus;
+import io.grpc.Deadline;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * An agent whose responses are completed by the tests. Each call is recorded with its deadline,
+ * and holds no thread while it waits for the test.
+ */
+class FakeAgent implements AgentInterface {
+    private final AgentConfig _agentConfig;
+    private final BlockingQueue<Call> _calls = new LinkedBlockingQueue<>();
+
+    /**
+     * A call to the agent waiting for its response.
+     */
+    static final class Call {
+        final CompletableFuture<ResponseLog> _responseFuture = new CompletableFuture<>();
+        final Deadline _deadline;
+
+        private Call(Deadline deadline) {
+            _deadline = deadline;
+        }
+
+        /**
+         * Respond with a response of the given status, holding the text.
+         */
+        void respond(MessageStatus messageStatus, String text) {
+            _responseFuture.complete(ResponseLog.newBuilder()
+                    .setMessageStatus(messageStatus)
+                    .setRawResponse(text)
+                    .build());
+        }
+    }
+
+    /**
+     * @param agentId - The ID of the agent.
+     * @param timeoutMillis - The timeout of the calls to the agent, or 0 for the default.
+     */
+    FakeAgent(String agentId, int timeoutMillis) {
+        _agentConfig = AgentConfig.newBuilder()
+                .setServiceProvider(getServiceProvider())
+                .setProjectId(agentId)
+                .setTimeoutMillis(timeoutMillis)
+                .build();
+    }
+
+    /**
+     * Return the configuration the agent is set up with.
+     */
+    AgentConfig getAgentConfig() {
+        return _agentConfig;
+    }
+
+    /**
+     * Return the oldest call to the agent which hasn't been taken yet, waiting for it if needed.
+     */
+    Call takeCall() throws InterruptedException {
+        Call call = _calls.poll(5, TimeUnit.SECONDS);
+        assertNotNull("The agent " + getAgentId() + " has not been called!", call);
+        return call;
+    }
+
+    @Override
+    public ServiceProvider getServiceProvider() {
+        return ServiceProvider.SEARCH;
+    }
+
+    @Override
+    public String getAgentId() {
+        return _agentConfig.getProjectId();
+    }
+
+    @Override
+    public ResponseLog getResponseFromAgent(InteractionRequest interactionRequest) {
+        throw new UnsupportedOperationException("The agent is only called asynchronously.");
+    }
+
+    @Override
+    public CompletableFuture<ResponseLog> getResponseFromAgentAsync(InteractionRequest
+            interactionRequest, Deadline deadline) {
+        Call call = new Call(deadline);
+        _calls.add(call);
+        return call._responseFuture;
+    }
+
+    @Override
+    public void streamingResponseFromAgent(InteractionRequest interactionRequest,
+                                           StreamObserver<Client.InteractionResponse>
+                                                   responseObserver) {
+        throw new UnsupportedOperationException("The agent doesn't stream its responses.");
+    }
+}
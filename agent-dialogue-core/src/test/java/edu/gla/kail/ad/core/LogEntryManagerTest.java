@@ -0,0 +1,126 @@
+package edu.gla.kail.ad.core;
+
+import com.google.protobuf.Timestamp;
+import edu.gla.kail.ad.Client.InputInteraction;
+import edu.gla.kail.ad.core.Log.LogEntry;
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(JUnit4.class)
+public class LogEntryManagerTest {
+    private static final int _NUMBER_OF_FILES = 3;
+    private static final int _TURNS_PER_FILE = 300;
+    private static final int _NUMBER_OF_SESSIONS = 7;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Set a memory small enough for the turns to be spilled to many runs, merged two at a time
+     * in several passes.
+     */
+    @Before
+    public void setUp() throws IOException {
+        File configFile = _temporaryFolder.newFile("config.json");
+        Files.write(configFile.toPath(), ("{\"turnLog\": {\"segregationMemoryBytes\": " +
+                (3 << 16) + "}}").getBytes(StandardCharsets.UTF_8));
+        PropertiesSingleton.reloadProperties(configFile.toURI().toURL());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File configFile = new File(_temporaryFolder.getRoot(), "default.json");
+        Files.write(configFile.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        PropertiesSingleton.reloadProperties(configFile.toURI().toURL());
+    }
+
+    private static Turn buildTurn(String sessionId, long seconds, int nanos, String text) {
+        return Turn.newBuilder()
+                .setSessionId(sessionId)
+                .setRequestLog(RequestLog.newBuilder()
+                        .setTime(Timestamp.newBuilder()
+                                .setSeconds(seconds)
+                                .setNanos(nanos))
+                        .setInteraction(InputInteraction.newBuilder()
+                                .setText(text)))
+                .build();
+    }
+
+    /**
+     * Test if the turns of each session are written to its LogEntry in the order of their time,
+     * when the turns of the files are spilled to many sorted runs.
+     */
+    @Test
+    public void testSegregateFilesOrdersTurnsAcrossSpills() throws IOException {
+        Random random = new Random(42);
+        char[] padding = new char[2000];
+        Arrays.fill(padding, 'x');
+        List<String> readFiles = new ArrayList<>();
+        List<List<Turn>> expectedTurns = new ArrayList<>();
+        for (int session = 0; session < _NUMBER_OF_SESSIONS; session++) {
+            expectedTurns.add(new ArrayList<>());
+        }
+        for (int file = 0; file < _NUMBER_OF_FILES; file++) {
+            File readFile = _temporaryFolder.newFile("segment" + file);
+            try (OutputStream outputStream = new FileOutputStream(readFile)) {
+                for (int i = 0; i < _TURNS_PER_FILE; i++) {
+                    int session = random.nextInt(_NUMBER_OF_SESSIONS);
+                    Turn turn = buildTurn("session" + session, random.nextInt(100000), random
+                            .nextInt(1000000), file + "-" + i + new String(padding));
+                    turn.writeDelimitedTo(outputStream);
+                    expectedTurns.get(session).add(turn);
+                }
+            }
+            readFiles.add(readFile.getPath());
+        }
+        File writeDirectory = _temporaryFolder.newFolder("entries");
+
+        LogEntryManager.segregateFiles(readFiles, writeDirectory.getPath());
+
+        for (int session = 0; session < _NUMBER_OF_SESSIONS; session++) {
+            List<Turn> turns = expectedTurns.get(session);
+            Collections.sort(turns, (first, second) -> {
+                Timestamp firstTime = first.getRequestLog().getTime();
+                Timestamp secondTime = second.getRequestLog().getTime();
+                return firstTime.getSeconds() != secondTime.getSeconds() ? Long.compare
+                        (firstTime.getSeconds(), secondTime.getSeconds()) : Integer.compare
+                        (firstTime.getNanos(), secondTime.getNanos());
+            });
+            LogEntry logEntry;
+            try (InputStream inputStream = BlockCompression.openInputStream(new File
+                    (writeDirectory, "session" + session + ".log").getPath())) {
+                logEntry = LogEntry.parseFrom(inputStream);
+            }
+            assertEquals("session" + session, logEntry.getSessionId());
+            assertEquals("The turns of the session are not in the order of their time!", turns,
+                    logEntry.getTurnList());
+        }
+        String[] leftFiles = writeDirectory.list((directory, name) -> name.startsWith
+                (".segregation"));
+        assertFalse("The run files have not been deleted!", leftFiles != null && leftFiles
+                .length > 0);
+    }
+}
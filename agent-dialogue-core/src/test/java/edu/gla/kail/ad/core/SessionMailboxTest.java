@@ -0,0 +1,88 @@
+package edu.gla.kail.ad.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SessionMailboxTest {
+    private static final int _NUMBER_OF_TASKS = 200;
+
+    /**
+     * Test if the tasks of a mailbox run one at a time, in the order they were submitted, even
+     * when their asynchronous work completes in a different order.
+     */
+    @Test
+    public void testTasksRunInSubmissionOrder() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        try {
+            SessionMailbox mailbox = new SessionMailbox();
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger running = new AtomicInteger(0);
+            AtomicBoolean overlapped = new AtomicBoolean(false);
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (int i = 0; i < _NUMBER_OF_TASKS; i++) {
+                int task = i;
+                results.add(mailbox.submit(() -> {
+                    if (running.incrementAndGet() > 1) {
+                        overlapped.set(true);
+                    }
+                    order.add(task);
+                    CompletableFuture<Void> work = new CompletableFuture<>();
+                    // The earlier tasks take longer, so they would finish last if not serialized.
+                    scheduler.schedule(() -> {
+                        running.decrementAndGet();
+                        work.complete(null);
+                    }, (_NUMBER_OF_TASKS - task) % 3, TimeUnit.MILLISECONDS);
+                    return work;
+                }));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(30,
+                    TimeUnit.SECONDS);
+
+            assertFalse("Two tasks of the mailbox have run at the same time!", overlapped.get());
+            for (int i = 0; i < _NUMBER_OF_TASKS; i++) {
+                assertEquals("The tasks haven't run in the order of submission!", i, (int) order
+                        .get(i));
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Test if a failed task completes its own result exceptionally, without stopping the tasks
+     * submitted after it.
+     */
+    @Test
+    public void testFailedTaskDoesNotBlockNextTask() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        SessionMailbox mailbox = new SessionMailbox();
+        CompletableFuture<Void> failed = mailbox.submit(() -> {
+            throw new IllegalStateException("Failed task.");
+        });
+        CompletableFuture<Void> next = mailbox.submit(() -> CompletableFuture.completedFuture
+                (null));
+
+        next.get(5, TimeUnit.SECONDS);
+        assertTrue("The failed task has completed successfully!", failed
+                .isCompletedExceptionally());
+    }
+}
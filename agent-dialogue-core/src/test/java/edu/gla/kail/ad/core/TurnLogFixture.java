@@ -0,0 +1,87 @@
+package edu.gla.kail.ad.core;
+
+import com.google.protobuf.Timestamp;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The turn log read by the tests of the readers: the turns of three sessions of two users,
+ * written to several segments of one day directory.
+ */
+final class TurnLogFixture {
+    static final int NUMBER_OF_TURNS = 40;
+    private static final int _MAX_SEGMENT_TURNS = 10;
+    // Small enough for each compressed segment to have several blocks.
+    private static final int _COMPRESSION_BLOCK_BYTES = 128;
+
+    private final List<Turn> _turns = new ArrayList<>();
+    private final String _dayDirectory;
+    // The requests are made on the day the turns are logged, one a second.
+    private final long _firstRequestSeconds = LocalDate.now().atStartOfDay(ZoneId
+            .systemDefault()).toEpochSecond();
+
+    /**
+     * Write the turns of the fixture to the turn log.
+     *
+     * @param logDailyTurnsPath - The directory in which the day directory is created.
+     * @param compression - The compression of the segments.
+     * @throws IOException - Thrown when the turn log cannot be written.
+     */
+    TurnLogFixture(String logDailyTurnsPath, Compression compression) throws IOException {
+        TurnLogWriter turnLogWriter = new TurnLogWriter(logDailyTurnsPath, TurnLogConfig
+                .newBuilder()
+                .setMaxSegmentTurns(_MAX_SEGMENT_TURNS)
+                .setCompression(compression)
+                .setCompressionBlockBytes(_COMPRESSION_BLOCK_BYTES)
+                .build());
+        for (int i = 0; i < NUMBER_OF_TURNS; i++) {
+            Turn turn = Turn.newBuilder()
+                    .setSessionId("session" + i % 3)
+                    .setUserId("user" + i % 2)
+                    .setRequestLog(RequestLog.newBuilder()
+                            .setRequestId("request" + i)
+                            .setTime(getRequestTime(i)))
+                    .build();
+            _turns.add(turn);
+            turnLogWriter.append(turn);
+        }
+        _dayDirectory = turnLogWriter.close().iterator().next();
+    }
+
+    /**
+     * Return the compressions the tests are run with, as the parameters of a Parameterized test.
+     */
+    static Collection<Object[]> getCompressions() {
+        return Arrays.asList(new Object[][]{{Compression.NONE}, {Compression.GZIP},
+                {Compression.DEFLATE}});
+    }
+
+    /**
+     * Return the turns written, in the order they were logged.
+     */
+    List<Turn> getTurns() {
+        return Collections.unmodifiableList(_turns);
+    }
+
+    /**
+     * Return the time of the request of the i-th turn.
+     */
+    Timestamp getRequestTime(int i) {
+        return Timestamp.newBuilder().setSeconds(_firstRequestSeconds + i).build();
+    }
+
+    String getDayDirectory() {
+        return _dayDirectory;
+    }
+}
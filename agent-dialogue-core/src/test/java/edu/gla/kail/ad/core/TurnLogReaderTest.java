@@ -0,0 +1,92 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class TurnLogReaderTest {
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> compressions() {
+        return TurnLogFixture.getCompressions();
+    }
+
+    @Parameterized.Parameter
+    public Compression _compression;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    private String _logDailyTurnsPath;
+    private TurnLogFixture _fixture;
+    private String _dayDirectory;
+    private List<Turn> _turns;
+
+    @Before
+    public void setUp() throws IOException {
+        _logDailyTurnsPath = _temporaryFolder.newFolder("DailyTurns").getPath() + "/";
+        _fixture = new TurnLogFixture(_logDailyTurnsPath, _compression);
+        _turns = _fixture.getTurns();
+        _dayDirectory = _fixture.getDayDirectory();
+    }
+
+    private List<Turn> filterTurns(Predicate<Turn> filter) {
+        return _turns.stream().filter(filter).collect(Collectors.toList());
+    }
+
+    /**
+     * Test if the turns of a session and of a user are found through the indexes of the
+     * segments, in the order they were logged.
+     */
+    @Test
+    public void testSessionAndUserTurns() throws IOException {
+        TurnLogReader turnLogReader = new TurnLogReader(_logDailyTurnsPath);
+        assertEquals(filterTurns(turn -> turn.getSessionId().equals("session1")), turnLogReader
+                .getSessionTurns(LocalDate.now(), "session1"));
+        assertEquals(filterTurns(turn -> turn.getUserId().equals("user0")), turnLogReader
+                .getUserTurns(LocalDate.now(), "user0"));
+        assertTrue(turnLogReader.getSessionTurns(LocalDate.now(), "unknown").isEmpty());
+    }
+
+    /**
+     * Test if the turns are found by the time range of their requests, including both ends.
+     */
+    @Test
+    public void testTurnsInTimeRange() throws IOException {
+        List<Turn> turns = new TurnLogReader(_logDailyTurnsPath).getTurns(LocalDate.now(),
+                _fixture.getRequestTime(8), _fixture.getRequestTime(23));
+        assertEquals(_turns.subList(8, 24), turns);
+    }
+
+    /**
+     * Test if a missing index is rebuilt from its segment and written again.
+     */
+    @Test
+    public void testMissingIndexIsRebuilt() throws IOException {
+        List<TurnLogSegment> segments = LogEntryManager.readManifest(_dayDirectory);
+        File index = new File(TurnLogIndexBuilder.getIndexPath(_dayDirectory + segments.get(0)
+                .getFileName()));
+        assertTrue("The index of the segment has not been written!", index.delete());
+
+        assertEquals(filterTurns(turn -> turn.getSessionId().equals("session2")), new
+                TurnLogReader(_logDailyTurnsPath).getSessionTurns(LocalDate.now(), "session2"));
+        assertTrue("The missing index has not been rebuilt!", index.exists());
+    }
+}
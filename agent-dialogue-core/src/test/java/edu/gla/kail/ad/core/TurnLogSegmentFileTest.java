@@ -0,0 +1,138 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class TurnLogSegmentFileTest {
+    private static final int _FILE_HEADER_SIZE = 8;
+    private static final int _BLOCK_SIZE = 1 << 16;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    private static List<Turn> buildTurns(int numberOfTurns) {
+        List<Turn> turns = new ArrayList<>();
+        for (int i = 0; i < numberOfTurns; i++) {
+            turns.add(Turn.newBuilder()
+                    .setSessionId("session" + i)
+                    .setUserId("user")
+                    .setRequestLog(RequestLog.newBuilder().setRequestId("request" + i))
+                    .build());
+        }
+        return turns;
+    }
+
+    /**
+     * Write the turns to a new segment file and close it.
+     */
+    private String writeSegment(List<Turn> turns, Compression compression) throws IOException {
+        String path = new File(_temporaryFolder.getRoot(), "segment").getPath();
+        try (TurnLogSegmentFile segmentFile = new TurnLogSegmentFile(path, 0, compression,
+                _BLOCK_SIZE)) {
+            for (Turn turn : turns) {
+                segmentFile.append(turn);
+            }
+        }
+        return path;
+    }
+
+    private static List<Turn> readTurns(String path) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        TurnLogSegmentFile.readTurns(path, turns::add);
+        return turns;
+    }
+
+    private static void appendBytes(String path, byte[] bytes) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(new File(path).toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            fileChannel.write(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * Test if the turns written are read back in order, in both formats.
+     */
+    @Test
+    public void testAppendAndRead() throws IOException {
+        List<Turn> turns = buildTurns(20);
+        assertEquals(turns, readTurns(writeSegment(turns, Compression.NONE)));
+        new File(_temporaryFolder.getRoot(), "segment").delete();
+        assertEquals(turns, readTurns(writeSegment(turns, Compression.GZIP)));
+    }
+
+    /**
+     * Test if the recovery truncates a torn record and the zeros left after it by a crash, and
+     * keeps the valid records.
+     */
+    @Test
+    public void testRecoverTruncatesTornTail() throws IOException {
+        List<Turn> turns = buildTurns(5);
+        String path = writeSegment(turns, Compression.NONE);
+        long validSize = new File(path).length();
+        // The header of a record promising 100 bytes, followed by only a part of them.
+        ByteBuffer tornRecord = ByteBuffer.allocate(16 + 10).putInt(100).putInt(0).putLong(5);
+        appendBytes(path, tornRecord.array());
+        appendBytes(path, new byte[4096]);
+
+        assertEquals(turns, readTurns(path));
+        assertEquals(5, TurnLogSegmentFile.recover(path));
+        assertEquals("The torn tail has not been truncated!", validSize, new File(path)
+                .length());
+        assertEquals(turns, readTurns(path));
+    }
+
+    /**
+     * Test if the recovery truncates a compressed file after its last complete block.
+     */
+    @Test
+    public void testRecoverTruncatesTornBlock() throws IOException {
+        List<Turn> turns = buildTurns(5);
+        String path = writeSegment(turns, Compression.DEFLATE);
+        long validSize = new File(path).length();
+        appendBytes(path, ByteBuffer.allocate(64).putInt(1000).array());
+
+        assertEquals(5, TurnLogSegmentFile.recover(path));
+        assertEquals(validSize, new File(path).length());
+        assertEquals(turns, readTurns(path));
+    }
+
+    /**
+     * Test if a record with a wrong checksum ends the valid part of the file.
+     */
+    @Test
+    public void testCorruptedRecordIsRejected() throws IOException {
+        List<Turn> turns = buildTurns(3);
+        String path = writeSegment(turns, Compression.NONE);
+        long firstRecordEnd = _FILE_HEADER_SIZE + TurnLogSegmentFile.getRecordSize(turns.get(0));
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            // Flip a byte of the Turn of the second record, leaving its header intact.
+            long position = firstRecordEnd + 16 + 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        assertEquals(turns.subList(0, 1), readTurns(path));
+        assertEquals(1, TurnLogSegmentFile.recover(path));
+        assertEquals(firstRecordEnd, new File(path).length());
+    }
+}
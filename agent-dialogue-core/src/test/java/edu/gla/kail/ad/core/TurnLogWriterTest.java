@@ -0,0 +1,231 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.DurabilityPolicy;
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class TurnLogWriterTest {
+    private static final int _NUMBER_OF_THREADS = 4;
+    private static final int _TURNS_PER_THREAD = 250;
+    private static final int _MAX_SEGMENT_TURNS = 100;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    private String _logDailyTurnsPath;
+
+    @Before
+    public void setUp() throws IOException {
+        _logDailyTurnsPath = _temporaryFolder.newFolder("DailyTurns").getPath() + "/";
+    }
+
+    private static Turn buildTurn(String sessionId, int i) {
+        return Turn.newBuilder()
+                .setSessionId(sessionId)
+                .setUserId("user")
+                .setRequestLog(RequestLog.newBuilder().setRequestId(sessionId + "request" + i))
+                .build();
+    }
+
+    /**
+     * Read the turns of the segments listed in the manifest of the day directory, in the order
+     * of the manifest.
+     */
+    private static List<Turn> readDay(String dayDirectory) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        for (TurnLogSegment segment : LogEntryManager.readManifest(dayDirectory)) {
+            TurnLogSegmentFile.readTurns(dayDirectory + segment.getFileName(), turns::add);
+        }
+        return turns;
+    }
+
+    /**
+     * Read the turns of all the segment files in the directory, in the order of their names.
+     */
+    private static List<Turn> readSegments(File directory) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        File[] files = directory.listFiles(file -> !file.getName().endsWith(TurnLogIndexBuilder
+                .TURN_LOG_INDEX_SUFFIX));
+        Arrays.sort(files);
+        for (File file : files) {
+            TurnLogSegmentFile.readTurns(file.getPath(), turns::add);
+        }
+        return turns;
+    }
+
+    /**
+     * Test if the turns appended concurrently are all written once, in the order each thread
+     * appended them, and the segments rolled over are listed in the manifest.
+     */
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        TurnLogWriter turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, TurnLogConfig
+                .newBuilder()
+                .setDurabilityPolicy(DurabilityPolicy.FSYNC_PER_BATCH)
+                .setMaxSegmentTurns(_MAX_SEGMENT_TURNS)
+                .setMaxBatchSize(16)
+                .build());
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < _NUMBER_OF_THREADS; t++) {
+            String sessionId = "session" + t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < _TURNS_PER_THREAD; i++) {
+                    futures.add(turnLogWriter.append(buildTurn(sessionId, i)));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit
+                .SECONDS);
+        Set<String> dayDirectories = turnLogWriter.close();
+        assertEquals(1, dayDirectories.size());
+        String dayDirectory = dayDirectories.iterator().next();
+
+        List<TurnLogSegment> segments = LogEntryManager.readManifest(dayDirectory);
+        assertEquals(_NUMBER_OF_THREADS * _TURNS_PER_THREAD / _MAX_SEGMENT_TURNS, segments
+                .size());
+        for (TurnLogSegment segment : segments) {
+            assertEquals(_MAX_SEGMENT_TURNS, segment.getNumberOfTurns());
+        }
+        List<Turn> turns = readDay(dayDirectory);
+        assertEquals(_NUMBER_OF_THREADS * _TURNS_PER_THREAD, turns.size());
+        for (int t = 0; t < _NUMBER_OF_THREADS; t++) {
+            String sessionId = "session" + t;
+            List<Turn> expectedTurns = new ArrayList<>();
+            List<Turn> sessionTurns = new ArrayList<>();
+            for (int i = 0; i < _TURNS_PER_THREAD; i++) {
+                expectedTurns.add(buildTurn(sessionId, i));
+            }
+            for (Turn turn : turns) {
+                if (turn.getSessionId().equals(sessionId)) {
+                    sessionTurns.add(turn);
+                }
+            }
+            assertEquals("The turns of " + sessionId + " have been reordered!", expectedTurns,
+                    sessionTurns);
+        }
+    }
+
+    /**
+     * Test if the turns appended after the writer has been closed are refused.
+     */
+    @Test
+    public void testAppendAfterClose() throws IOException, InterruptedException,
+            TimeoutException {
+        TurnLogWriter turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, TurnLogConfig
+                .getDefaultInstance());
+        turnLogWriter.close();
+        try {
+            turnLogWriter.append(buildTurn("session", 0)).get(1, TimeUnit.SECONDS);
+            fail("A turn has been appended to the closed writer!");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * Test if a failed segment roll only fails the turns which couldn't be written, and the
+     * next batch starts a new segment once the day directory can be written to again.
+     */
+    @Test
+    public void testFailedRollIsRetried() throws Exception {
+        TurnLogWriter turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, TurnLogConfig
+                .newBuilder()
+                .setMaxSegmentTurns(2)
+                .build());
+        File dayDirectory = new File(_logDailyTurnsPath, LocalDate.now().toString());
+        File movedDayDirectory = new File(_logDailyTurnsPath, "moved");
+        // The manifest and the next segment cannot be created while a file is in the way.
+        assertTrue(dayDirectory.renameTo(movedDayDirectory));
+        assertTrue(dayDirectory.createNewFile());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(turnLogWriter.append(buildTurn("session", i)));
+        }
+        futures.get(0).get(1, TimeUnit.SECONDS);
+        futures.get(1).get(1, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> future : futures.subList(2, 4)) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("A turn has been written without a segment!");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof IOException);
+            }
+        }
+
+        assertTrue(dayDirectory.delete());
+        assertTrue(dayDirectory.mkdir());
+        turnLogWriter.append(buildTurn("session", 4)).get(1, TimeUnit.SECONDS);
+        turnLogWriter.close();
+        List<TurnLogSegment> segments = LogEntryManager.readManifest(dayDirectory.getPath() +
+                "/");
+        assertEquals("The closed segment has been added to the manifest again!", 1, segments
+                .size());
+        assertEquals(Collections.singletonList(buildTurn("session", 4)), readDay(dayDirectory
+                .getPath() + "/"));
+        assertEquals(Arrays.asList(buildTurn("session", 0), buildTurn("session", 1)), readSegments
+                (movedDayDirectory));
+    }
+
+    /**
+     * Test if a segment left unclosed by a crash is recovered and added to the manifest when a
+     * new writer starts.
+     */
+    @Test
+    public void testRecoverUnclosedSegment() throws IOException {
+        String dayDirectory = _temporaryFolder.newFolder("DailyTurns", LocalDate.now()
+                .toString()).getPath() + "/";
+        List<Turn> turns = new ArrayList<>();
+        // Not closed, as if the server had crashed while writing it.
+        TurnLogSegmentFile segmentFile = new TurnLogSegmentFile(dayDirectory + "unclosed", 0,
+                Compression.NONE, 1 << 16);
+        for (int i = 0; i < 5; i++) {
+            turns.add(buildTurn("session", i));
+            segmentFile.append(turns.get(i));
+        }
+        segmentFile.force();
+
+        TurnLogWriter turnLogWriter = new TurnLogWriter(_logDailyTurnsPath, TurnLogConfig
+                .getDefaultInstance());
+        List<TurnLogSegment> segments = LogEntryManager.readManifest(dayDirectory);
+        assertEquals("The unclosed segment has not been added to the manifest!", 1, segments
+                .size());
+        assertEquals("unclosed", segments.get(0).getFileName());
+        assertEquals(5, segments.get(0).getNumberOfTurns());
+        turnLogWriter.close();
+        segmentFile.close();
+        assertEquals(turns, readDay(dayDirectory));
+    }
+}
@@ -0,0 +1,174 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.CoreConfiguration.TurnLogConfig.Compression;
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+import edu.gla.kail.ad.core.Log.TurnLogSegment;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(Parameterized.class)
+public class TurnQueryCursorTest {
+    private static final int _NUMBER_OF_TURNS = TurnLogFixture.NUMBER_OF_TURNS;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> compressions() {
+        return TurnLogFixture.getCompressions();
+    }
+
+    @Parameterized.Parameter
+    public Compression _compression;
+
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    private String _logDailyTurnsPath;
+    private TurnLogFixture _fixture;
+    private List<Turn> _turns;
+
+    @Before
+    public void setUp() throws IOException {
+        _logDailyTurnsPath = _temporaryFolder.newFolder("DailyTurns").getPath() + "/";
+        _fixture = new TurnLogFixture(_logDailyTurnsPath, _compression);
+        _turns = _fixture.getTurns();
+    }
+
+    /**
+     * Read the turns of a query, opening a new cursor from the page token of the previous one
+     * after each page.
+     */
+    private List<Turn> readInPages(TurnFilter filter, int pageSize) throws IOException {
+        TurnLogReader turnLogReader = new TurnLogReader(_logDailyTurnsPath);
+        List<Turn> turns = new ArrayList<>();
+        String pageToken = null;
+        boolean hasNext = true;
+        while (hasNext) {
+            try (TurnQueryCursor cursor = turnLogReader.query(filter, pageToken)) {
+                for (int i = 0; i < pageSize && cursor.hasNext(); i++) {
+                    turns.add(cursor.next());
+                }
+                hasNext = cursor.hasNext();
+                pageToken = cursor.getPageToken();
+            }
+        }
+        return turns;
+    }
+
+    /**
+     * Test if the cursors resumed from the page tokens return every turn once, in the order they
+     * were logged, across the segments.
+     */
+    @Test
+    public void testResumeFromPageToken() throws IOException {
+        assertEquals(_turns, readInPages(TurnFilter.getDefaultInstance(), 7));
+    }
+
+    /**
+     * Test if a cursor resumed from a page token keeps applying the filter.
+     */
+    @Test
+    public void testResumeFromPageTokenWithFilter() throws IOException {
+        List<Turn> expectedTurns = _turns.stream()
+                .filter(turn -> turn.getSessionId().equals("session1"))
+                .collect(Collectors.toList());
+        assertEquals(expectedTurns, readInPages(TurnFilter.newBuilder()
+                .setSessionId("session1")
+                .build(), 4));
+    }
+
+    /**
+     * Test if a cursor resumed from a page token keeps to the time range of the filter.
+     */
+    @Test
+    public void testResumeFromPageTokenWithTimeRange() throws IOException {
+        assertEquals(_turns.subList(12, 31), readInPages(TurnFilter.newBuilder()
+                .setStartTime(_fixture.getRequestTime(12))
+                .setEndTime(_fixture.getRequestTime(30))
+                .build(), 5));
+    }
+
+    /**
+     * Test if the page token is empty once the cursor has returned all the turns, and a cursor
+     * resumed from the page token of the second to last turn only returns the last one.
+     */
+    @Test
+    public void testPageTokenAtEnd() throws IOException {
+        TurnLogReader turnLogReader = new TurnLogReader(_logDailyTurnsPath);
+        String pageToken;
+        try (TurnQueryCursor cursor = turnLogReader.query(TurnFilter.getDefaultInstance(),
+                null)) {
+            for (int i = 0; i < _NUMBER_OF_TURNS - 1; i++) {
+                cursor.next();
+            }
+            pageToken = cursor.getPageToken();
+            cursor.next();
+            assertFalse(cursor.hasNext());
+            assertEquals("", cursor.getPageToken());
+        }
+        try (TurnQueryCursor cursor = turnLogReader.query(TurnFilter.getDefaultInstance(),
+                pageToken)) {
+            assertEquals(_turns.get(_NUMBER_OF_TURNS - 1), cursor.next());
+            assertFalse("The resumed cursor has returned a turn again!", cursor.hasNext());
+        }
+    }
+
+    /**
+     * Test if the segments in the older format of length-delimited Turns, which have no index,
+     * are read too, and the cursors can be resumed inside them.
+     */
+    @Test
+    public void testResumeInUnindexedSegment() throws IOException {
+        File legacyDay = _temporaryFolder.newFolder("DailyTurns", "2000-01-01");
+        List<Turn> legacyTurns = new ArrayList<>();
+        try (OutputStream outputStream = new FileOutputStream(new File(legacyDay, "legacy"))) {
+            for (int i = 0; i < 9; i++) {
+                Turn turn = Turn.newBuilder()
+                        .setSessionId("session" + i % 2)
+                        .setRequestLog(RequestLog.newBuilder().setRequestId("legacy" + i))
+                        .build();
+                legacyTurns.add(turn);
+                turn.writeDelimitedTo(outputStream);
+            }
+        }
+        try (OutputStream outputStream = new FileOutputStream(new File(legacyDay, TurnLogWriter
+                .TURN_LOG_MANIFEST_FILE_NAME))) {
+            TurnLogSegment.newBuilder().setFileName("legacy").build().writeDelimitedTo
+                    (outputStream);
+        }
+
+        List<Turn> expectedTurns = new ArrayList<>(legacyTurns);
+        expectedTurns.addAll(_turns);
+        assertEquals(expectedTurns, readInPages(TurnFilter.getDefaultInstance(), 4));
+        assertEquals(expectedTurns.stream()
+                .filter(turn -> turn.getSessionId().equals("session0"))
+                .collect(Collectors.toList()), readInPages(TurnFilter.newBuilder()
+                .setSessionId("session0")
+                .build(), 3));
+    }
+
+    /**
+     * Test if an invalid page token is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPageToken() throws IOException {
+        new TurnLogReader(_logDailyTurnsPath).query(TurnFilter.getDefaultInstance(), "not a " +
+                "page token").close();
+    }
+}
@@ -0,0 +1,97 @@
+package edu.gla.kail.ad.core;
+
+import edu.gla.kail.ad.core.Log.RequestLog;
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.Log.TurnFilter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class TurnTailTest {
+    private static Turn buildTurn(String sessionId, int i) {
+        return Turn.newBuilder()
+                .setSessionId(sessionId)
+                .setRequestLog(RequestLog.newBuilder().setRequestId(sessionId + "request" + i))
+                .build();
+    }
+
+    private static List<Turn> pollAll(TurnTail.Subscription subscription) {
+        List<Turn> turns = new ArrayList<>();
+        Turn turn;
+        while ((turn = subscription.poll()) != null) {
+            turns.add(turn);
+        }
+        return turns;
+    }
+
+    /**
+     * Test if a subscriber which doesn't keep up loses the oldest turns, and the dropped turns
+     * are counted.
+     */
+    @Test
+    public void testOldestTurnsAreDropped() {
+        TurnTail turnTail = new TurnTail();
+        AtomicInteger turnsAvailable = new AtomicInteger(0);
+        TurnTail.Subscription subscription = turnTail.subscribe(TurnFilter.getDefaultInstance(),
+                2, turnsAvailable::incrementAndGet);
+        for (int i = 0; i < 5; i++) {
+            turnTail.publish(buildTurn("session", i));
+        }
+        assertEquals(5, turnsAvailable.get());
+        assertEquals(Arrays.asList(buildTurn("session", 3), buildTurn("session", 4)), pollAll
+                (subscription));
+        assertEquals(3, subscription.getDroppedTurnCount());
+        assertEquals(3, turnTail.getDroppedTurnCount());
+    }
+
+    /**
+     * Test if only the turns matching the filter of a subscriber are buffered for it, and a
+     * full buffer of one subscriber doesn't affect the others.
+     */
+    @Test
+    public void testSubscribersAreIndependent() {
+        TurnTail turnTail = new TurnTail();
+        TurnTail.Subscription allTurns = turnTail.subscribe(TurnFilter.getDefaultInstance(), 10,
+                () -> {
+                });
+        TurnTail.Subscription sessionTurns = turnTail.subscribe(TurnFilter.newBuilder()
+                .setSessionId("session1")
+                .build(), 1, () -> {
+        });
+        for (int i = 0; i < 3; i++) {
+            turnTail.publish(buildTurn("session0", i));
+            turnTail.publish(buildTurn("session1", i));
+        }
+        assertEquals(6, pollAll(allTurns).size());
+        assertEquals(0, allTurns.getDroppedTurnCount());
+        assertEquals(Arrays.asList(buildTurn("session1", 2)), pollAll(sessionTurns));
+        assertEquals(2, sessionTurns.getDroppedTurnCount());
+    }
+
+    /**
+     * Test if the turns are not published to a closed subscription anymore.
+     */
+    @Test
+    public void testClosedSubscription() {
+        TurnTail turnTail = new TurnTail();
+        TurnTail.Subscription subscription = turnTail.subscribe(TurnFilter.getDefaultInstance(),
+                10, () -> {
+                });
+        turnTail.publish(buildTurn("session", 0));
+        assertEquals(1, turnTail.getNumberOfSubscribers());
+
+        subscription.close();
+        turnTail.publish(buildTurn("session", 1));
+        assertEquals(0, turnTail.getNumberOfSubscribers());
+        assertNull("A turn has been kept for the closed subscription!", subscription.poll());
+    }
+}
@@ -0,0 +1,89 @@
+package edu.gla.kail.ad.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ConsistentHashRingTest {
+    private static final int _VIRTUAL_NODES = 128;
+    private static final int _NUMBER_OF_USERS = 30000;
+    private static final List<String> _NODES = Arrays.asList("node-a:8070", "node-b:8070",
+            "node-c:8070");
+
+    /**
+     * Test if the users only move to the new node when a node is added, and the new node gets
+     * about its share of them.
+     */
+    @Test
+    public void testAddingNodeOnlyMovesUsersToIt() {
+        ConsistentHashRing ring = new ConsistentHashRing(_NODES, _VIRTUAL_NODES);
+        String newNode = "node-d:8070";
+        ConsistentHashRing grownRing = new ConsistentHashRing(Arrays.asList("node-a:8070",
+                "node-b:8070", "node-c:8070", newNode), _VIRTUAL_NODES);
+        int movedUsers = 0;
+        for (int i = 0; i < _NUMBER_OF_USERS; i++) {
+            String userId = "user" + i;
+            String owner = ring.getOwner(userId);
+            String newOwner = grownRing.getOwner(userId);
+            if (!owner.equals(newOwner)) {
+                assertEquals("The user " + userId + " has moved between the old nodes!", newNode,
+                        newOwner);
+                movedUsers++;
+            }
+        }
+        // A quarter of the users is expected to move.
+        assertTrue("Too few or too many users have moved: " + movedUsers, movedUsers >
+                _NUMBER_OF_USERS / 8 && movedUsers < _NUMBER_OF_USERS / 2);
+    }
+
+    /**
+     * Test if the users are spread evenly over the nodes.
+     */
+    @Test
+    public void testUsersAreSpreadEvenly() {
+        ConsistentHashRing ring = new ConsistentHashRing(_NODES, _VIRTUAL_NODES);
+        Map<String, Integer> usersByNode = new HashMap<>();
+        for (int i = 0; i < _NUMBER_OF_USERS; i++) {
+            usersByNode.merge(ring.getOwner("user" + i), 1, Integer::sum);
+        }
+        assertEquals(_NODES.size(), usersByNode.size());
+        for (Map.Entry<String, Integer> node : usersByNode.entrySet()) {
+            assertTrue("The node " + node.getKey() + " owns " + node.getValue() + " users.",
+                    Math.abs(node.getValue() - _NUMBER_OF_USERS / _NODES.size()) <
+                            _NUMBER_OF_USERS / 10);
+        }
+    }
+
+    /**
+     * Test if all the nodes build the same ring whatever the order of the members.
+     */
+    @Test
+    public void testOwnerDoesNotDependOnMemberOrder() {
+        ConsistentHashRing ring = new ConsistentHashRing(_NODES, _VIRTUAL_NODES);
+        ConsistentHashRing reversedRing = new ConsistentHashRing(Arrays.asList("node-c:8070",
+                "node-b:8070", "node-a:8070"), _VIRTUAL_NODES);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.getOwner("user" + i), reversedRing.getOwner("user" + i));
+        }
+    }
+
+    /**
+     * Test if a ring without any nodes has no owner for the users.
+     */
+    @Test
+    public void testEmptyRingHasNoOwner() {
+        assertNull(new ConsistentHashRing(Collections.emptyList(), _VIRTUAL_NODES).getOwner
+                ("user"));
+    }
+}
@@ -0,0 +1,115 @@
+package edu.gla.kail.ad.service;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The observer of a server stream, recording the messages sent to the client. The tests decide
+ * when the client is ready to receive them and when the client cancels the call.
+ *
+ * @param <T> - The type of the messages of the stream.
+ */
+class FakeServerCallStreamObserver<T> extends ServerCallStreamObserver<T> {
+    private final List<T> _messages = new ArrayList<>();
+    private boolean _ready = true;
+    private boolean _cancelled = false;
+    private boolean _completed = false;
+    private Throwable _error;
+    private Runnable _onReadyHandler;
+    private Runnable _onCancelHandler;
+
+    /**
+     * Set whether the client is ready to receive the messages. The onReady handler is run when
+     * the client becomes ready, as gRPC does.
+     */
+    void setReady(boolean ready) {
+        Runnable onReadyHandler;
+        synchronized (this) {
+            boolean becameReady = ready && !_ready;
+            _ready = ready;
+            onReadyHandler = becameReady ? _onReadyHandler : null;
+        }
+        if (onReadyHandler != null) {
+            onReadyHandler.run();
+        }
+    }
+
+    /**
+     * Cancel the call, as the client does when it goes away.
+     */
+    void cancel() {
+        Runnable onCancelHandler;
+        synchronized (this) {
+            _cancelled = true;
+            onCancelHandler = _onCancelHandler;
+        }
+        if (onCancelHandler != null) {
+            onCancelHandler.run();
+        }
+    }
+
+    synchronized List<T> getMessages() {
+        return new ArrayList<>(_messages);
+    }
+
+    synchronized boolean isCompleted() {
+        return _completed;
+    }
+
+    synchronized Throwable getError() {
+        return _error;
+    }
+
+    @Override
+    public synchronized void onNext(T value) {
+        _messages.add(value);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        _error = throwable;
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        _completed = true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    @Override
+    public synchronized void setOnCancelHandler(Runnable onCancelHandler) {
+        _onCancelHandler = onCancelHandler;
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return _ready && !_cancelled;
+    }
+
+    @Override
+    public synchronized void setOnReadyHandler(Runnable onReadyHandler) {
+        _onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+}
@@ -0,0 +1,179 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.CoreConfiguration.StreamFlowControlConfig;
+import edu.gla.kail.ad.CoreConfiguration.StreamFlowControlConfig.OverflowPolicy;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class FlowControlledStreamObserverTest {
+    private FakeServerCallStreamObserver<String> _delegate;
+
+    @Before
+    public void setUp() {
+        _delegate = new FakeServerCallStreamObserver<>();
+    }
+
+    private FlowControlledStreamObserver<String> createObserver(int maxQueuedMessages,
+                                                                OverflowPolicy overflowPolicy) {
+        // The messages starting with the same letter are coalesced.
+        return new FlowControlledStreamObserver<>(_delegate, StreamFlowControlConfig.newBuilder()
+                .setMaxQueuedMessages(maxQueuedMessages)
+                .setOverflowPolicy(overflowPolicy)
+                .build(), "stream", message -> message.startsWith("_") ? null : message
+                .charAt(0));
+    }
+
+    /**
+     * Test if the messages are held back while the client isn't ready, and sent in order before
+     * the onReady handler of the caller is run.
+     */
+    @Test
+    public void testMessagesAreQueuedUntilReady() {
+        FlowControlledStreamObserver<String> observer = createObserver(10, OverflowPolicy
+                .DROP_OLDEST);
+        AtomicInteger onReadyCalls = new AtomicInteger(0);
+        observer.setOnReadyHandler(() -> {
+            assertEquals("The queued messages have not been sent first!", 3, _delegate
+                    .getMessages().size());
+            onReadyCalls.incrementAndGet();
+        });
+        observer.onNext("a1");
+        _delegate.setReady(false);
+        observer.onNext("b1");
+        observer.onNext("c1");
+        assertFalse(observer.isReady());
+        assertEquals(2, observer.getQueueDepth());
+        assertEquals(Arrays.asList("a1"), _delegate.getMessages());
+
+        _delegate.setReady(true);
+        assertEquals(Arrays.asList("a1", "b1", "c1"), _delegate.getMessages());
+        assertEquals(0, observer.getQueueDepth());
+        assertEquals(1, onReadyCalls.get());
+        assertTrue(observer.isReady());
+    }
+
+    /**
+     * Test if the oldest queued message is dropped when the queue is full.
+     */
+    @Test
+    public void testDropOldest() {
+        FlowControlledStreamObserver<String> observer = createObserver(2, OverflowPolicy
+                .DROP_OLDEST);
+        long droppedMessages = FlowControlledStreamObserver.getDroppedMessageCount();
+        _delegate.setReady(false);
+        observer.onNext("a1");
+        observer.onNext("a2");
+        observer.onNext("a3");
+        assertEquals(2, observer.getQueueDepth());
+        assertEquals(droppedMessages + 1, FlowControlledStreamObserver.getDroppedMessageCount());
+
+        _delegate.setReady(true);
+        assertEquals(Arrays.asList("a2", "a3"), _delegate.getMessages());
+    }
+
+    /**
+     * Test if a message replaces the queued message with the same key when the queue is full,
+     * and the oldest message is dropped if none has its key.
+     */
+    @Test
+    public void testCoalesce() {
+        FlowControlledStreamObserver<String> observer = createObserver(3, OverflowPolicy
+                .COALESCE);
+        _delegate.setReady(false);
+        observer.onNext("a1");
+        observer.onNext("b1");
+        observer.onNext("c1");
+        observer.onNext("b2");
+        assertEquals(3, observer.getQueueDepth());
+        observer.onNext("_1");
+        observer.onNext("d1");
+
+        _delegate.setReady(true);
+        assertEquals(Arrays.asList("b2", "_1", "d1"), _delegate.getMessages());
+    }
+
+    /**
+     * Test if the stream is cancelled with RESOURCE_EXHAUSTED when the queue is full, and the
+     * caller is told to stop sending.
+     */
+    @Test
+    public void testCancelStream() throws InterruptedException {
+        FlowControlledStreamObserver<String> observer = createObserver(1, OverflowPolicy
+                .CANCEL_STREAM);
+        CountDownLatch onCancelCalled = new CountDownLatch(1);
+        observer.setOnCancelHandler(onCancelCalled::countDown);
+        _delegate.setReady(false);
+        observer.onNext("a1");
+        try {
+            observer.onNext("a2");
+            fail("A message has been queued over the limit!");
+        } catch (StatusRuntimeException exception) {
+            assertEquals(Status.Code.CANCELLED, exception.getStatus().getCode());
+        }
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(_delegate.getError())
+                .getCode());
+        assertTrue("The onCancel handler of the caller has not been run!", onCancelCalled
+                .await(1, TimeUnit.SECONDS));
+
+        _delegate.setReady(true);
+        assertTrue("A message has been sent to the cancelled stream!", _delegate.getMessages()
+                .isEmpty());
+    }
+
+    /**
+     * Test if the stream is completed only once the queued messages have been sent.
+     */
+    @Test
+    public void testCompletionWaitsForQueuedMessages() {
+        FlowControlledStreamObserver<String> observer = createObserver(10, OverflowPolicy
+                .DROP_OLDEST);
+        _delegate.setReady(false);
+        observer.onNext("a1");
+        observer.onCompleted();
+        assertFalse("The stream has been completed before its messages were sent!", _delegate
+                .isCompleted());
+
+        _delegate.setReady(true);
+        assertEquals(Arrays.asList("a1"), _delegate.getMessages());
+        assertTrue(_delegate.isCompleted());
+    }
+
+    /**
+     * Test if the onCancel handler of the caller is run when the client cancels the call, and
+     * the messages sent afterwards are refused.
+     */
+    @Test
+    public void testClientCancellation() {
+        FlowControlledStreamObserver<String> observer = createObserver(10, OverflowPolicy
+                .DROP_OLDEST);
+        AtomicInteger onCancelCalls = new AtomicInteger(0);
+        observer.setOnCancelHandler(onCancelCalls::incrementAndGet);
+        _delegate.setReady(false);
+        observer.onNext("a1");
+        _delegate.cancel();
+        assertEquals(1, onCancelCalls.get());
+        assertEquals(0, observer.getQueueDepth());
+        try {
+            observer.onNext("a2");
+            fail("A message has been sent to the cancelled stream!");
+        } catch (StatusRuntimeException exception) {
+            assertEquals(Status.Code.CANCELLED, exception.getStatus().getCode());
+        }
+        assertEquals("The onCancel handler has been run twice!", 1, onCancelCalls.get());
+    }
+}
@@ -0,0 +1,134 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.CoreConfiguration.SessionAdmissionConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class SessionAdmissionControllerTest {
+    private static SessionAdmissionController createController(int maxSessions, int
+            maxWaitingSessions, int maxWaitMillis) {
+        return new SessionAdmissionController(maxSessions, SessionAdmissionConfig.newBuilder()
+                .setMaxWaitingSessions(maxWaitingSessions)
+                .setMaxWaitMillis(maxWaitMillis)
+                .setRetryAfterSeconds(7)
+                .build());
+    }
+
+    /**
+     * Test if the slots are taken until none is left, and a released slot can be taken again.
+     */
+    @Test
+    public void testTryAdmitAndRelease() {
+        SessionAdmissionController controller = createController(2, 1, 10);
+        assertTrue(controller.tryAdmit());
+        assertTrue(controller.tryAdmit());
+        assertFalse("A session has been admitted over the limit!", controller.tryAdmit());
+        assertEquals(2, controller.getNumberOfAdmittedSessions());
+
+        controller.release();
+        assertEquals(1, controller.getNumberOfAdmittedSessions());
+        assertTrue("The released slot couldn't be taken!", controller.tryAdmit());
+    }
+
+    /**
+     * Test if a session waiting for a slot is rejected with the configured retry-after time once
+     * the wait has timed out.
+     */
+    @Test
+    public void testAdmitTimesOutWithRetryAfter() throws InterruptedException {
+        SessionAdmissionController controller = createController(1, 1, 20);
+        assertTrue(controller.tryAdmit());
+        try {
+            controller.admit();
+            fail("A session has been admitted over the limit!");
+        } catch (SessionLimitExceededException exception) {
+            assertEquals(TimeUnit.SECONDS.toMillis(7), exception.getRetryAfterMillis());
+        }
+        assertEquals(1, controller.getRejectedSessionCount());
+        assertEquals(0, controller.getNumberOfWaitingSessions());
+    }
+
+    /**
+     * Test if a waiting session is admitted once a slot is released, and the sessions over the
+     * limit of the wait queue are rejected straight away.
+     */
+    @Test
+    public void testAdmitWaitsForReleasedSlot() throws InterruptedException {
+        SessionAdmissionController controller = createController(1, 1, 10000);
+        assertTrue(controller.tryAdmit());
+        CountDownLatch admitted = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread waitingSession = new Thread(() -> {
+            try {
+                controller.admit();
+                admitted.countDown();
+            } catch (Exception exception) {
+                failure.set(exception);
+            }
+        });
+        waitingSession.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (controller.getNumberOfWaitingSessions() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertFalse("The wait queue is not full!", controller.canWait());
+        try {
+            controller.admit();
+            fail("A session has been queued over the limit of the wait queue!");
+        } catch (SessionLimitExceededException exception) {
+            assertEquals(1, controller.getRejectedSessionCount());
+        }
+
+        controller.release();
+        assertTrue("The waiting session hasn't been admitted!", admitted.await(5, TimeUnit
+                .SECONDS));
+        waitingSession.join();
+        assertNull(failure.get());
+        assertEquals(1, controller.getNumberOfAdmittedSessions());
+        assertTrue(controller.canWait());
+    }
+
+    /**
+     * Test if a slot released while a session is waiting goes to the waiting session, not to a
+     * new session taking a free slot without waiting.
+     */
+    @Test
+    public void testReleasedSlotGoesToWaitingSession() throws InterruptedException {
+        SessionAdmissionController controller = createController(1, 1, 10000);
+        assertTrue(controller.tryAdmit());
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waitingSession = new Thread(() -> {
+            try {
+                controller.admit();
+                admitted.countDown();
+            } catch (Exception exception) {
+                // The latch isn't counted down, which fails the test.
+            }
+        });
+        waitingSession.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (waitingSession.getState() != Thread.State.TIMED_WAITING && System.nanoTime() <
+                deadline) {
+            Thread.sleep(1);
+        }
+
+        controller.release();
+        assertFalse("A new session has taken the slot ahead of the waiting one!", controller
+                .tryAdmit());
+        assertTrue("The waiting session hasn't been admitted!", admitted.await(5, TimeUnit
+                .SECONDS));
+        waitingSession.join();
+    }
+}
@@ -0,0 +1,77 @@
+package edu.gla.kail.ad.service;
+
+import com.google.protobuf.Timestamp;
+import edu.gla.kail.ad.core.Log.SessionSnapshot;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SessionSnapshotStoreTest {
+    @Rule
+    public TemporaryFolder _temporaryFolder = new TemporaryFolder();
+
+    private String _snapshotPath;
+
+    @Before
+    public void setUp() {
+        _snapshotPath = new File(_temporaryFolder.getRoot(), "sessions/snapshot.bin").getPath();
+    }
+
+    private static SessionSnapshot buildSession(String userId, long lastAccessSeconds) {
+        return SessionSnapshot.newBuilder()
+                .setUserId(userId)
+                .setSessionId(userId + "session")
+                .setLastAccessTime(Timestamp.newBuilder().setSeconds(lastAccessSeconds))
+                .build();
+    }
+
+    /**
+     * Test if the written sessions are read back by the userID of their user, and a new
+     * snapshot replaces the previous one.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        SessionSnapshotStore store = new SessionSnapshotStore(_snapshotPath);
+        store.write(Arrays.asList(buildSession("user0", 10), buildSession("user1", 20)));
+        Map<String, SessionSnapshot> sessions = new SessionSnapshotStore(_snapshotPath).read();
+        assertEquals(2, sessions.size());
+        assertEquals(buildSession("user0", 10), sessions.get("user0"));
+        assertEquals(buildSession("user1", 20), sessions.get("user1"));
+
+        store.write(Collections.singletonList(buildSession("user2", 30)));
+        assertEquals(Collections.singletonMap("user2", buildSession("user2", 30)), store.read());
+        assertFalse("The temporary snapshot file has been left behind!", new File(_snapshotPath
+                + ".tmp").exists());
+    }
+
+    /**
+     * Test if a missing or a damaged snapshot is read as no sessions.
+     */
+    @Test
+    public void testMissingAndDamagedSnapshots() throws IOException {
+        SessionSnapshotStore store = new SessionSnapshotStore(_snapshotPath);
+        assertTrue(store.read().isEmpty());
+
+        store.write(Collections.singletonList(buildSession("user0", 10)));
+        File snapshotFile = new File(_snapshotPath);
+        byte[] snapshot = Files.readAllBytes(snapshotFile.toPath());
+        // Cut the snapshot in the middle of the session, as a torn write would.
+        Files.write(snapshotFile.toPath(), Arrays.copyOf(snapshot, snapshot.length - 3));
+        assertTrue("A damaged snapshot has been read!", store.read().isEmpty());
+    }
+}
@@ -0,0 +1,28 @@
+package edu.gla.kail.ad.service;
+
+import edu.gla.kail.ad.core.Log.Turn;
+import edu.gla.kail.ad.core.TurnTail;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class TurnTailStreamerTest {
+    /**
+     * Test if the subscription is closed when the client cancels the call.
+     */
+    @Test
+    public void testCancellationClosesSubscription() {
+        TurnTail turnTail = new TurnTail();
+        FakeServerCallStreamObserver<Turn> responseObserver = new
+                FakeServerCallStreamObserver<>();
+        new TurnTailStreamer(responseObserver, turnTail, TailTurnsRequest.getDefaultInstance());
+        assertEquals(1, turnTail.getNumberOfSubscribers());
+
+        responseObserver.cancel();
+        assertEquals("The subscription of the cancelled stream is still open!", 0, turnTail
+                .getNumberOfSubscribers());
+    }
+}
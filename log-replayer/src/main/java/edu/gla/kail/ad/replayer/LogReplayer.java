@@ -4,6 +4,7 @@ import com.google.protobuf.Timestamp;
 import edu.gla.kail.ad.Client;
 import edu.gla.kail.ad.Client.InteractionRequest;
 import edu.gla.kail.ad.Client.InteractionResponse;
+import edu.gla.kail.ad.core.BlockCompression;
 import edu.gla.kail.ad.core.Log.LogEntry;
 import edu.gla.kail.ad.core.Log.Turn;
 import edu.gla.kail.ad.service.AgentDialogueGrpc;
@@ -13,7 +14,6 @@ import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -177,7 +177,9 @@ public class LogReplayer {
         Runnable singularDialogManagerThread = () -> {
             client._numberOfThreadsRunning.incrementAndGet();
             try {
-                InputStream inputStream = new FileInputStream(directoryFile);
+                // The LogEntry files may be compressed in blocks.
+                InputStream inputStream = BlockCompression.openInputStream(directoryFile
+                        .getPath());
                 List<InteractionResponse> interactionResponses = client.replayConversation
                         (inputStream);
                 System.out.println("The following turns were successfully stored in the Log " +